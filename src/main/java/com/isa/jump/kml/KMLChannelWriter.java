@@ -0,0 +1,306 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Unsynchronized Writer encoding chars to UTF-8 into a large direct
+ * ByteBuffer which is written to a FileChannel when full, with no charset
+ * encoder or char buffer. Runs of ASCII chars, most of a KML file, are
+ * copied one byte per char into a small array, which is then copied in
+ * bulk to the direct buffer.
+ * <p>
+ * With a background flush, full buffers are written by another thread while
+ * the next one is being filled, two buffers being used in turn. An error of
+ * the background write is thrown by the next write, flush or close.
+ */
+public class KMLChannelWriter extends Writer {
+
+  /** Default size of the byte buffers. */
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+  // room for the longest encoded char, a surrogate pair
+  private static final int MAX_CHAR_BYTES = 4;
+  // size of the array chars are encoded into, then copied in bulk to the
+  // direct buffer
+  private static final int STAGE_SIZE = 8192;
+
+  private final FileChannel channel;
+  private final ExecutorService flusher;
+  private final byte[] bytes = new byte[STAGE_SIZE];
+  private int count = 0;
+  private ByteBuffer buffer;
+  // the other buffer with a background flush
+  private ByteBuffer spare;
+  private Future<?> pendingWrite;
+  // high surrogate waiting for the low surrogate of the next write
+  private char highSurrogate = 0;
+  private boolean closed = false;
+
+  /**
+   * Creates or truncates a file and opens a writer on it.
+   * 
+   * @param path
+   *          file to write
+   * @param backgroundFlush
+   *          true to write full buffers on a background thread
+   */
+  public static KMLChannelWriter open(Path path, boolean backgroundFlush)
+      throws IOException {
+    return new KMLChannelWriter(FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING), DEFAULT_BUFFER_SIZE,
+        backgroundFlush);
+  }
+
+  /**
+   * @param channel
+   *          destination, closed with the writer
+   * @param bufferSize
+   *          size of each byte buffer
+   * @param backgroundFlush
+   *          true to write full buffers on a background thread
+   */
+  public KMLChannelWriter(FileChannel channel, int bufferSize,
+      boolean backgroundFlush) {
+    this.channel = channel;
+    bufferSize = Math.max(bufferSize, STAGE_SIZE);
+    this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    if (backgroundFlush) {
+      this.spare = ByteBuffer.allocateDirect(bufferSize);
+      this.flusher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kml-flusher");
+        thread.setDaemon(true);
+        return thread;
+      });
+    } else {
+      this.flusher = null;
+    }
+  }
+
+  public void write(int c) throws IOException {
+    if (count > STAGE_SIZE - MAX_CHAR_BYTES) {
+      stage();
+    }
+    encode((char) c);
+  }
+
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    byte[] bytes = this.bytes;
+    int end = off + len;
+    while (off < end) {
+      if (count > STAGE_SIZE - MAX_CHAR_BYTES) {
+        stage();
+      }
+      if (highSurrogate != 0) {
+        encode(cbuf[off++]);
+        continue;
+      }
+      // ASCII run, leaving room for the char ending it
+      int run = Math.min(end, off + STAGE_SIZE - MAX_CHAR_BYTES + 1 - count);
+      int n = count;
+      while (off < run) {
+        char c = cbuf[off];
+        if (c >= 0x80) {
+          break;
+        }
+        bytes[n++] = (byte) c;
+        off++;
+      }
+      count = n;
+      if (off < run) {
+        encode(cbuf[off++]);
+      }
+    }
+  }
+
+  public void write(String str, int off, int len) throws IOException {
+    byte[] bytes = this.bytes;
+    int end = off + len;
+    while (off < end) {
+      if (count > STAGE_SIZE - MAX_CHAR_BYTES) {
+        stage();
+      }
+      if (highSurrogate != 0) {
+        encode(str.charAt(off++));
+        continue;
+      }
+      int run = Math.min(end, off + STAGE_SIZE - MAX_CHAR_BYTES + 1 - count);
+      int n = count;
+      while (off < run) {
+        char c = str.charAt(off);
+        if (c >= 0x80) {
+          break;
+        }
+        bytes[n++] = (byte) c;
+        off++;
+      }
+      count = n;
+      if (off < run) {
+        encode(str.charAt(off++));
+      }
+    }
+  }
+
+  /**
+   * Encodes one char, the staging array having room for MAX_CHAR_BYTES
+   * bytes. An unpaired surrogate is written as '?', like the standard UTF-8
+   * encoder does.
+   */
+  private void encode(char c) {
+    byte[] bytes = this.bytes;
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int codePoint = Character.toCodePoint(high, c);
+        bytes[count++] = (byte) (0xF0 | (codePoint >> 18));
+        bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        bytes[count++] = (byte) (0x80 | (codePoint & 0x3F));
+        return;
+      }
+      bytes[count++] = '?';
+    }
+    if (c < 0x80) {
+      bytes[count++] = (byte) c;
+    } else if (c < 0x800) {
+      bytes[count++] = (byte) (0xC0 | (c >> 6));
+      bytes[count++] = (byte) (0x80 | (c & 0x3F));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      bytes[count++] = '?';
+    } else {
+      bytes[count++] = (byte) (0xE0 | (c >> 12));
+      bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      bytes[count++] = (byte) (0x80 | (c & 0x3F));
+    }
+  }
+
+  /** Copies the staged bytes to the direct buffer. */
+  private void stage() throws IOException {
+    if (buffer.remaining() < count) {
+      drain();
+    }
+    buffer.put(bytes, 0, count);
+    count = 0;
+  }
+
+  /** Writes the full buffer, or hands it to the background thread. */
+  private void drain() throws IOException {
+    buffer.flip();
+    if (flusher == null) {
+      writeFully(buffer);
+      buffer.clear();
+      return;
+    }
+    awaitPendingWrite();
+    ByteBuffer full = buffer;
+    pendingWrite = flusher.submit(() -> {
+      writeFully(full);
+      return null;
+    });
+    buffer = spare;
+    buffer.clear();
+    spare = full;
+  }
+
+  private void awaitPendingWrite() throws IOException {
+    if (pendingWrite == null) {
+      return;
+    }
+    try {
+      pendingWrite.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      pendingWrite = null;
+    }
+  }
+
+  private void writeFully(ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+
+  /**
+   * Writes the buffered bytes to the channel. A high surrogate stays
+   * buffered until its low surrogate is written.
+   */
+  public void flush() throws IOException {
+    stage();
+    awaitPendingWrite();
+    buffer.flip();
+    writeFully(buffer);
+    buffer.clear();
+  }
+
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (highSurrogate != 0) {
+        highSurrogate = 0;
+        bytes[count++] = '?';
+      }
+      flush();
+    } finally {
+      if (flusher != null) {
+        flusher.shutdownNow();
+      }
+      channel.close();
+    }
+  }
+}
@@ -0,0 +1,703 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+/**
+ * Writes a large point layer as clusters: a quadtree of grid cells over the
+ * layer, each level halving the cells. A cell is written as a Folder with
+ * a Region, holding one Placemark for its cluster, at the mean of its
+ * points, with the number of points and their envelope as ExtendedData,
+ * followed by the Folders of its four sub-cells. The Region of the cluster
+ * hides it when the cell gets twice the minimum size on screen, the size at
+ * which the Regions of the sub-cells become active, so viewers show about
+ * one Placemark per cell in view. The cells of the deepest level hold the
+ * features themselves, as does a cell of a single feature at any level.
+ * The document is KML 2.2, the attributes of the features being written
+ * as SchemaData.
+ * <p>
+ * Features are placed by the center of their envelope, so other geometries
+ * are clustered too. Features without geometry are written after the
+ * cells, in a Folder of their own.
+ * <p>
+ * Each point gets the Morton code of its cell at the deepest level, packed
+ * with its position into a long, and the array of these keys is sorted:
+ * the points of every cell at every level are then a contiguous run of
+ * keys. The cells of one level in a few partitions of the layer are
+ * accumulated in primitive arrays, in parallel, from the keys for the
+ * deepest level and then each level from the one below. The partitions
+ * are serialized in parallel too, and written in order.
+ */
+public class KMLClusterWriter {
+
+  public static final int DEFAULT_LEVELS = 8;
+  public static final int MAX_LEVELS = 15;
+  public static final int DEFAULT_MIN_LOD_PIXELS = 128;
+
+  private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+  // Schema of the attributes of the features, as KML 2.2 SchemaData
+  private static final String SCHEMA_ID = "features";
+
+  private final KMLGeometryWriter geometryWriter;
+  private final Function<AttributeType, KMLOutputPlan.Encoder> encoders;
+  private int levels = DEFAULT_LEVELS;
+  private int minLodPixels = DEFAULT_MIN_LOD_PIXELS;
+  private int threads = 1;
+  private boolean compact = false;
+  private KMLStyleTable styleTable = null;
+
+  /** Cells of one level, ordered by Morton code */
+  private static final class Clusters {
+    int size;
+    long[] cells = new long[16];
+    // position in the sorted keys of the first point of the cell
+    int[] first = new int[16];
+    int[] counts = new int[16];
+    double[] sumX = new double[16];
+    double[] sumY = new double[16];
+    double[] minX = new double[16];
+    double[] minY = new double[16];
+    double[] maxX = new double[16];
+    double[] maxY = new double[16];
+
+    /** Adds points to the last cell, or to a new cell after it */
+    void add(long cell, int firstKey, int count, double x, double y,
+        double x0, double y0, double x1, double y1) {
+      int c = size - 1;
+      if (c < 0 || cells[c] != cell) {
+        if (size == cells.length) {
+          grow();
+        }
+        c = size++;
+        cells[c] = cell;
+        first[c] = firstKey;
+        minX[c] = x0;
+        minY[c] = y0;
+        maxX[c] = x1;
+        maxY[c] = y1;
+      } else {
+        minX[c] = Math.min(minX[c], x0);
+        minY[c] = Math.min(minY[c], y0);
+        maxX[c] = Math.max(maxX[c], x1);
+        maxY[c] = Math.max(maxY[c], y1);
+      }
+      counts[c] += count;
+      sumX[c] += x;
+      sumY[c] += y;
+    }
+
+    /** Adds the points of cell c of the given cells to a cell */
+    void add(long cell, Clusters from, int c) {
+      add(cell, from.first[c], from.counts[c], from.sumX[c], from.sumY[c],
+          from.minX[c], from.minY[c], from.maxX[c], from.maxY[c]);
+    }
+
+    /** @return the cells of the level above */
+    Clusters parents() {
+      Clusters parents = new Clusters();
+      for (int c = 0; c < size; c++) {
+        parents.add(cells[c] >>> 2, this, c);
+      }
+      return parents;
+    }
+
+    private void grow() {
+      int capacity = 2 * size;
+      cells = Arrays.copyOf(cells, capacity);
+      first = Arrays.copyOf(first, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+      sumX = Arrays.copyOf(sumX, capacity);
+      sumY = Arrays.copyOf(sumY, capacity);
+      minX = Arrays.copyOf(minX, capacity);
+      minY = Arrays.copyOf(minY, capacity);
+      maxX = Arrays.copyOf(maxX, capacity);
+      maxY = Arrays.copyOf(maxY, capacity);
+    }
+  }
+
+  /**
+   * @param geometryWriter
+   *          writer whose settings (projection, decimals, ...) are used
+   * @param encoders
+   *          provides the encoder of each attribute type
+   */
+  public KMLClusterWriter(KMLGeometryWriter geometryWriter,
+      Function<AttributeType, KMLOutputPlan.Encoder> encoders) {
+    this.geometryWriter = geometryWriter;
+    this.encoders = encoders;
+  }
+
+  /**
+   * @param levels number of cluster levels, the features being written at
+   *          the level below, of 2^levels x 2^levels cells
+   */
+  public void setLevels(int levels) {
+    this.levels = Math.max(1, Math.min(MAX_LEVELS, levels));
+  }
+
+  /**
+   * @param minLodPixels size on screen at which a cell is split into its
+   *          sub-cells
+   */
+  public void setMinLodPixels(int minLodPixels) {
+    this.minLodPixels = Math.max(1, minLodPixels);
+  }
+
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * @param compact true to write the Placemarks in the compact profile
+   */
+  public void setCompact(boolean compact) {
+    this.compact = compact;
+  }
+
+  /**
+   * @param styleTable styles of the features, or null for no style
+   */
+  public void setStyleTable(KMLStyleTable styleTable) {
+    this.styleTable = styleTable;
+  }
+
+  /**
+   * Writes the clusters and the features of a layer.
+   * 
+   * @param featureCollection
+   *          features to write
+   * @param name
+   *          name of the Document
+   * @param out
+   *          destination of the kml document
+   */
+  public void write(FeatureCollection featureCollection, String name,
+      Writer out) throws Exception {
+    FeatureSchema schema = featureCollection.getFeatureSchema();
+    KMLOutputPlan plan = KMLOutputPlan.compile(
+        KMLWriter.makeExtendedDataTemplate(schema, compact, styleTable,
+            SCHEMA_ID), schema, encoders, styleTable);
+    List<Feature> features = featureCollection.getFeatures();
+    ExecutorService pool = threads > 1 ? newPool() : null;
+    try {
+      new Layer(features, plan, pool).write(name,
+          KMLWriter.getSchemaHeader(schema, compact, SCHEMA_ID, SCHEMA_ID),
+          out);
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  /** State of the clustering of one layer */
+  private final class Layer {
+    final List<Feature> features;
+    final KMLOutputPlan plan;
+    final ExecutorService pool;
+    final int n;
+    // centers of the features, NaN without geometry
+    final double[] x;
+    final double[] y;
+    // Morton code << 31 | position, sorted, features without geometry last
+    final long[] keys;
+    int located;
+    // square extent of the cells
+    double minX;
+    double minY;
+    double side;
+    // level of the partitions
+    int partitionLevel;
+    // cells of the levels above and at the partition level
+    Clusters[] upper;
+    // cells of each partition, from the partition level down, null once
+    // written
+    List<Clusters[]> partitions;
+    final ThreadLocal<KMLGeometryWriter> geometryWriters;
+    final ThreadLocal<KMLValueEncoder> valueEncoders;
+    final String[] indents;
+
+    Layer(List<Feature> features, KMLOutputPlan plan, ExecutorService pool) {
+      this.features = features;
+      this.plan = plan;
+      this.pool = pool;
+      n = features.size();
+      x = new double[n];
+      y = new double[n];
+      keys = new long[n];
+      geometryWriters = ThreadLocal.withInitial(() -> new KMLGeometryWriter(
+          geometryWriter));
+      valueEncoders = ThreadLocal.withInitial(KMLValueEncoder::new);
+      indents = new String[levels + 3];
+      for (int l = 0; l < indents.length; l++) {
+        indents[l] = compact ? "" : new String(new char[2 * l + 4]).replace(
+            '\0', ' ');
+      }
+    }
+
+    void write(String name, String schemaHeader, Writer out)
+        throws Exception {
+      locate();
+      cluster();
+
+      KMLValueEncoder valueEncoder = valueEncoders.get();
+      // Region needs KML 2.1, ExtendedData KML 2.2
+      out.write("<?xml version='1.0' encoding='UTF-8'?>\n"
+          + "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n<Document>\n"
+          + "  <name>");
+      valueEncoder.writeEscaped(name, out);
+      out.write("</name>\n");
+      if (styleTable != null) {
+        out.write(styleTable.getStylesText(compact));
+      }
+      out.write(schemaHeader);
+      if (located > 0) {
+        new CellWriter(upper, partitionLevel, new PartitionOutput(),
+            geometryWriters.get(), valueEncoder, out).writeCell(0, 0);
+      }
+      if (located < n) {
+        out.write(indents[0]);
+        out.write("<Folder>\n");
+        for (int k = located; k < n; k++) {
+          plan.write(features.get((int) (keys[k] & Integer.MAX_VALUE)),
+              geometryWriters.get(), valueEncoder, out);
+        }
+        out.write(indents[0]);
+        out.write("</Folder>\n");
+      }
+      out.write("</Document>\n</kml>\n");
+      out.flush();
+    }
+
+    /** Computes the centers and the sorted keys */
+    private void locate() throws Exception {
+      List<Callable<Envelope>> centers = new ArrayList<>();
+      for (int[] range : ranges()) {
+        centers.add(() -> {
+          Envelope extent = new Envelope();
+          for (int i = range[0]; i < range[1]; i++) {
+            Geometry g = features.get(i).getGeometry();
+            Envelope e = g == null ? null : g.getEnvelopeInternal();
+            if (e == null || e.isNull()) {
+              x[i] = Double.NaN;
+              continue;
+            }
+            x[i] = (e.getMinX() + e.getMaxX()) / 2;
+            y[i] = (e.getMinY() + e.getMaxY()) / 2;
+            extent.expandToInclude(x[i], y[i]);
+          }
+          return extent;
+        });
+      }
+      Envelope extent = new Envelope();
+      for (Envelope e : invoke(centers)) {
+        extent.expandToInclude(e);
+      }
+      minX = extent.getMinX();
+      minY = extent.getMinY();
+      side = Math.max(extent.getWidth(), extent.getHeight());
+      if (!(side > 0)) {
+        side = 1;
+      }
+
+      int gridMax = (1 << levels) - 1;
+      double scale = (gridMax + 1) / side;
+      List<Callable<Integer>> codes = new ArrayList<>();
+      for (int[] range : ranges()) {
+        codes.add(() -> {
+          int count = 0;
+          for (int i = range[0]; i < range[1]; i++) {
+            if (Double.isNaN(x[i])) {
+              // after every point, the Morton codes having 30 bits
+              keys[i] = (0xffffffffL << 31) | i;
+              continue;
+            }
+            int cx = Math.min(gridMax, (int) ((x[i] - minX) * scale));
+            int cy = Math.min(gridMax, (int) ((y[i] - minY) * scale));
+            keys[i] = (morton(cx, cy) << 31) | i;
+            count++;
+          }
+          return count;
+        });
+      }
+      for (int count : invoke(codes)) {
+        located += count;
+      }
+      Arrays.parallelSort(keys);
+    }
+
+    /** @return index ranges of the features for the tasks */
+    private List<int[]> ranges() {
+      int chunks = pool == null ? 1 : 4 * threads;
+      int chunk = Math.max(1, (n + chunks - 1) / chunks);
+      List<int[]> ranges = new ArrayList<>();
+      for (int from = 0; from < n; from += chunk) {
+        ranges.add(new int[] { from, Math.min(n, from + chunk) });
+      }
+      return ranges;
+    }
+
+    /** Accumulates the cells of every level */
+    private void cluster() throws Exception {
+      // enough partitions to balance the threads and bound the memory of
+      // the partitions serialized ahead
+      partitionLevel = 1;
+      while ((1 << 2 * partitionLevel) < 64 * threads) {
+        partitionLevel++;
+      }
+      partitionLevel = Math.min(partitionLevel, levels - 1);
+      int shift = 31 + 2 * (levels - partitionLevel);
+
+      List<Callable<Clusters[]>> tasks = new ArrayList<>();
+      int from = 0;
+      while (from < located) {
+        long partition = keys[from] >>> shift;
+        int to = from + 1;
+        while (to < located && keys[to] >>> shift == partition) {
+          to++;
+        }
+        int start = from;
+        int end = to;
+        tasks.add(() -> clusterPartition(start, end));
+        from = to;
+      }
+      partitions = invoke(tasks);
+
+      upper = new Clusters[partitionLevel + 1];
+      upper[partitionLevel] = new Clusters();
+      for (Clusters[] partition : partitions) {
+        Clusters root = partition[partitionLevel];
+        upper[partitionLevel].add(root.cells[0], root, 0);
+      }
+      for (int l = partitionLevel - 1; l >= 0; l--) {
+        upper[l] = upper[l + 1].parents();
+      }
+    }
+
+    private Clusters[] clusterPartition(int from, int to) {
+      Clusters[] result = new Clusters[levels];
+      Clusters deepest = new Clusters();
+      for (int k = from; k < to; k++) {
+        int i = (int) (keys[k] & Integer.MAX_VALUE);
+        deepest.add(keys[k] >>> 33, k, 1, x[i], y[i], x[i], y[i], x[i],
+            y[i]);
+      }
+      result[levels - 1] = deepest;
+      for (int l = levels - 2; l >= partitionLevel; l--) {
+        result[l] = result[l + 1].parents();
+      }
+      return result;
+    }
+
+    private <T> List<T> invoke(List<Callable<T>> tasks) throws Exception {
+      List<T> results = new ArrayList<>(tasks.size());
+      if (pool == null) {
+        for (Callable<T> task : tasks) {
+          results.add(task.call());
+        }
+        return results;
+      }
+      for (Future<T> result : pool.invokeAll(tasks)) {
+        results.add(get(result));
+      }
+      return results;
+    }
+
+    /** @return the longitude/latitude bounds of a cell */
+    private Envelope cellBox(KMLGeometryWriter cellGeometryWriter, int level,
+        long cell) {
+      double size = side / (1 << level);
+      double x0 = minX + size * compactBits(cell);
+      double y0 = minY + size * compactBits(cell >>> 1);
+      return cellGeometryWriter.toGeographic(new Envelope(x0, x0 + size, y0,
+          y0 + size));
+    }
+
+    /**
+     * Writes the partitions of more than one point in order, serialized in
+     * parallel when there is a pool.
+     */
+    private final class PartitionOutput {
+      int next;
+      int submitted;
+      final ArrayDeque<Future<KMLOutputBuffer>> pending = new ArrayDeque<>();
+
+      void writeNext(Writer out) throws Exception {
+        if (pool == null) {
+          next = skipSingle(next);
+          writePartition(next++, geometryWriters.get(), valueEncoders.get(),
+              out);
+          return;
+        }
+        while (pending.size() < 2 * threads
+            && (submitted = skipSingle(submitted)) < partitions.size()) {
+          int p = submitted++;
+          pending.add(pool.submit(() -> {
+            KMLOutputBuffer buffer = new KMLOutputBuffer();
+            writePartition(p, geometryWriters.get(), valueEncoders.get(),
+                buffer);
+            return buffer;
+          }));
+        }
+        get(pending.poll()).writeTo(out);
+      }
+
+      private int skipSingle(int p) {
+        while (p < partitions.size() && upper[partitionLevel].counts[p] == 1) {
+          p++;
+        }
+        return p;
+      }
+
+      private void writePartition(int p, KMLGeometryWriter partitionWriter,
+          KMLValueEncoder valueEncoder, Writer out) throws Exception {
+        Clusters[] cells = partitions.get(p);
+        partitions.set(p, null);
+        new CellWriter(cells, -1, null, partitionWriter, valueEncoder, out)
+            .writeCell(partitionLevel, 0);
+      }
+    }
+
+    /** Writes cells depth first */
+    private final class CellWriter {
+      final Clusters[] cells;
+      // level whose cells of more than one point are written by the
+      // partition output
+      final int stopLevel;
+      final PartitionOutput partitionOutput;
+      final KMLGeometryWriter cellGeometryWriter;
+      final KMLValueEncoder valueEncoder;
+      final Writer out;
+      // next cell of each level
+      final int[] cursors;
+
+      CellWriter(Clusters[] cells, int stopLevel,
+          PartitionOutput partitionOutput,
+          KMLGeometryWriter cellGeometryWriter, KMLValueEncoder valueEncoder,
+          Writer out) {
+        this.cells = cells;
+        this.stopLevel = stopLevel;
+        this.partitionOutput = partitionOutput;
+        this.cellGeometryWriter = cellGeometryWriter;
+        this.valueEncoder = valueEncoder;
+        this.out = out;
+        cursors = new int[cells.length];
+      }
+
+      void writeCell(int level, int c) throws Exception {
+        Clusters clusters = cells[level];
+        if (level == stopLevel && clusters.counts[c] > 1) {
+          partitionOutput.writeNext(out);
+          return;
+        }
+        String indent = indents[level];
+        // the root cell is always active
+        openFolder(level, level == 0 ? null : cellBox(cellGeometryWriter,
+            level, clusters.cells[c]));
+        if (clusters.counts[c] == 1) {
+          writeFeatures(clusters.first[c], clusters.first[c] + 1);
+          // the single point is the only cell of the levels below
+          for (int l = level + 1; l < cells.length; l++) {
+            cursors[l]++;
+          }
+        } else {
+          writeCluster(clusters, c, level);
+          if (level == levels - 1) {
+            writeDeepestCells(clusters.first[c], clusters.first[c]
+                + clusters.counts[c]);
+          } else {
+            Clusters children = cells[level + 1];
+            long cell = clusters.cells[c];
+            while (cursors[level + 1] < children.size
+                && children.cells[cursors[level + 1]] >>> 2 == cell) {
+              writeCell(level + 1, cursors[level + 1]++);
+            }
+          }
+        }
+        out.write(indent);
+        out.write("</Folder>\n");
+      }
+
+      private void writeCluster(Clusters clusters, int c, int level)
+          throws IOException {
+        String indent = indents[level + 1];
+        String inner = indents[level + 2];
+        String line = compact ? "" : "\n";
+        int count = clusters.counts[c];
+        out.write(indent);
+        out.write("<" + KMLWriter.placemarkName + ">" + line);
+        out.write(inner);
+        out.write("<name>");
+        valueEncoder.writeLong(count, out);
+        out.write("</name>" + line);
+        // shown until the sub-cells get active
+        KMLSuperOverlayWriter.writeRegion(cellBox(cellGeometryWriter, level,
+            clusters.cells[c]), 0, 2 * minLodPixels, compact, indents[level + 2],
+            valueEncoder, out);
+        out.write(inner);
+        out.write("<ExtendedData>" + line);
+        out.write(inner);
+        out.write(compact ? "" : "  ");
+        out.write("<Data name=\"count\"><value>");
+        valueEncoder.writeLong(count, out);
+        out.write("</value></Data>" + line);
+        Envelope box = cellGeometryWriter.toGeographic(new Envelope(
+            clusters.minX[c], clusters.maxX[c], clusters.minY[c],
+            clusters.maxY[c]));
+        out.write(inner);
+        out.write(compact ? "" : "  ");
+        out.write("<Data name=\"envelope\"><value>");
+        valueEncoder.writeDouble(box.getMinX(), out);
+        out.write(',');
+        valueEncoder.writeDouble(box.getMinY(), out);
+        out.write(',');
+        valueEncoder.writeDouble(box.getMaxX(), out);
+        out.write(',');
+        valueEncoder.writeDouble(box.getMaxY(), out);
+        out.write("</value></Data>" + line);
+        out.write(inner);
+        out.write("</ExtendedData>" + line);
+        cellGeometryWriter.write(GEOMETRY_FACTORY.createPoint(new Coordinate(
+            clusters.sumX[c] / count, clusters.sumY[c] / count)), out);
+        out.write(indent);
+        out.write("</" + KMLWriter.placemarkName + ">\n");
+      }
+
+      /** Writes the features of a cell of the last cluster level by cell */
+      private void writeDeepestCells(int from, int to) throws IOException {
+        String indent = indents[levels];
+        while (from < to) {
+          long cell = keys[from] >>> 31;
+          int end = from + 1;
+          while (end < to && keys[end] >>> 31 == cell) {
+            end++;
+          }
+          openFolder(levels, cellBox(cellGeometryWriter, levels, cell));
+          writeFeatures(from, end);
+          out.write(indent);
+          out.write("</Folder>\n");
+          from = end;
+        }
+      }
+
+      /** Opens the Folder of a cell, with the Region of its box if any */
+      private void openFolder(int level, Envelope box) throws IOException {
+        out.write(indents[level]);
+        out.write(compact ? "<Folder>" : "<Folder>\n");
+        if (box != null) {
+          KMLSuperOverlayWriter.writeRegion(box, minLodPixels, -1, compact,
+              indents[level + 1], valueEncoder, out);
+        }
+        if (compact) {
+          out.write('\n');
+        }
+      }
+
+      private void writeFeatures(int from, int to) throws IOException {
+        for (int k = from; k < to; k++) {
+          plan.write(features.get((int) (keys[k] & Integer.MAX_VALUE)),
+              cellGeometryWriter, valueEncoder, out);
+        }
+      }
+    }
+  }
+
+  /** @return the Morton code of a cell, the bits of x and y interleaved */
+  static long morton(int x, int y) {
+    return spreadBits(x) | spreadBits(y) << 1;
+  }
+
+  private static long spreadBits(int value) {
+    long v = value & 0xffffL;
+    v = (v | v << 8) & 0x00ff00ffL;
+    v = (v | v << 4) & 0x0f0f0f0fL;
+    v = (v | v << 2) & 0x33333333L;
+    v = (v | v << 1) & 0x55555555L;
+    return v;
+  }
+
+  /** @return the even bits of a Morton code, the inverse of spreadBits */
+  private static int compactBits(long code) {
+    long v = code & 0x55555555L;
+    v = (v | v >>> 1) & 0x33333333L;
+    v = (v | v >>> 2) & 0x0f0f0f0fL;
+    v = (v | v >>> 4) & 0x00ff00ffL;
+    v = (v | v >>> 8) & 0x0000ffffL;
+    return (int) v;
+  }
+
+  private ExecutorService newPool() {
+    AtomicInteger threadCount = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "kml-cluster-writer-"
+          + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private static <T> T get(Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+}
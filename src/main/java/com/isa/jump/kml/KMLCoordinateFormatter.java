@@ -0,0 +1,357 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigInteger;
+
+/**
+ * Formats coordinate values directly into a <code>char[]</code> without
+ * allocating.
+ * <p>
+ * By default a value is written with the fewest significant digits that
+ * still parse back to the very same double (the Schubfach algorithm of
+ * R. Giulietti). Alternatively a fixed number of decimals can be requested,
+ * e.g. 7 decimals keep WGS84 degrees to about one centimeter. Trailing zeros
+ * are never written, so integral values have no fraction at all.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class KMLCoordinateFormatter {
+
+  /** Decimals value selecting the shortest round-trip representation. */
+  public static final int SHORTEST = -1;
+
+  /** Largest number of decimals supported by the fixed mode. */
+  public static final int MAX_DECIMALS = 15;
+
+  /** Upper bound of the number of chars written for one value. */
+  public static final int MAX_LENGTH = 32;
+
+  private static final int P = 53;
+  private static final int Q_MIN = -1074;
+  private static final int K_MIN = -324;
+  private static final int K_MAX = 292;
+  private static final long C_MIN = 1L << (P - 1);
+  private static final long T_MASK = C_MIN - 1;
+  private static final int BQ_MASK = 0x7ff;
+  private static final long C_TINY = 3;
+  private static final long MASK_63 = Long.MAX_VALUE;
+
+  // floor(10^-k 2^-r) + 1, with 2^125 <= g < 2^126, split in two 63 bits
+  // halves, for every k in [K_MIN, K_MAX]
+  private static final long[] G = new long[(K_MAX - K_MIN + 1) << 1];
+
+  private static final double[] POW10 = new double[MAX_DECIMALS + 1];
+
+  static {
+    BigInteger mask = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+    for (int k = K_MIN; k <= K_MAX; k++) {
+      int r = flog2pow10(-k) - 125;
+      BigInteger g;
+      if (k <= 0) {
+        g = BigInteger.TEN.pow(-k);
+        g = r >= 0 ? g.shiftRight(r) : g.shiftLeft(-r);
+      } else {
+        g = BigInteger.ONE.shiftLeft(-r).divide(BigInteger.TEN.pow(k));
+      }
+      g = g.add(BigInteger.ONE);
+      G[(k - K_MIN) << 1] = g.shiftRight(63).longValue();
+      G[((k - K_MIN) << 1) + 1] = g.and(mask).longValue();
+    }
+    double p = 1;
+    for (int i = 0; i < POW10.length; i++) {
+      POW10[i] = p;
+      p *= 10;
+    }
+  }
+
+  private int decimals = SHORTEST;
+
+  private final char[] buffer = new char[MAX_LENGTH];
+
+  public KMLCoordinateFormatter() {
+  }
+
+  public KMLCoordinateFormatter(int decimals) {
+    setDecimals(decimals);
+  }
+
+  /**
+   * @param decimals
+   *          number of decimals to round to, or {@link #SHORTEST} (any
+   *          negative value) for the shortest exact representation
+   */
+  public void setDecimals(int decimals) {
+    if (decimals > MAX_DECIMALS) {
+      throw new IllegalArgumentException("at most " + MAX_DECIMALS
+          + " coordinate decimals are supported: " + decimals);
+    }
+    this.decimals = decimals < 0 ? SHORTEST : decimals;
+  }
+
+  public int getDecimals() {
+    return decimals;
+  }
+
+  /**
+   * Writes the value into <code>dst</code>, which must have room for
+   * {@link #MAX_LENGTH} chars from <code>offset</code>.
+   *
+   * @return the offset following the last char written
+   */
+  public int format(double value, char[] dst, int offset) {
+    if (decimals >= 0) {
+      double scaled = Math.abs(value) * POW10[decimals];
+      // beyond 10^15 the fixed decimals would exceed the double precision
+      if (scaled < 1e15) {
+        long m = Math.round(scaled);
+        if (m != 0 && value < 0) {
+          dst[offset++] = '-';
+        }
+        return toChars(m, -decimals, dst, offset);
+      }
+    }
+    return shortest(value, dst, offset);
+  }
+
+  public String format(double value) {
+    return new String(buffer, 0, format(value, buffer, 0));
+  }
+
+  public void write(double value, Writer out) throws IOException {
+    out.write(buffer, 0, format(value, buffer, 0));
+  }
+
+  private static int shortest(double v, char[] dst, int offset) {
+    long bits = Double.doubleToRawLongBits(v);
+    long t = bits & T_MASK;
+    int bq = (int) (bits >>> (P - 1)) & BQ_MASK;
+    if (bq == BQ_MASK) {
+      return copy(t != 0 ? "NaN" : bits > 0 ? "Infinity" : "-Infinity", dst,
+          offset);
+    }
+    if (bits < 0) {
+      dst[offset++] = '-';
+    }
+    if (bq != 0) {
+      // normal value, v = c 2^-mq
+      int mq = -Q_MIN + 1 - bq;
+      long c = C_MIN | t;
+      if (0 < mq && mq < P) {
+        // fast path for integral values
+        long f = c >> mq;
+        if (f << mq == c) {
+          return toChars(f, 0, dst, offset);
+        }
+      }
+      return toDecimal(-mq, c, 0, dst, offset);
+    }
+    if (t != 0) {
+      // subnormal value
+      return t < C_TINY ? toDecimal(Q_MIN, 10 * t, -1, dst, offset)
+          : toDecimal(Q_MIN, t, 0, dst, offset);
+    }
+    return toChars(0, 0, dst, offset);
+  }
+
+  private static int toDecimal(int q, long c, int dk, char[] dst, int offset) {
+    int out = (int) c & 1;
+    long cb = c << 2;
+    long cbr = cb + 2;
+    long cbl;
+    int k;
+    if (c != C_MIN || q == Q_MIN) {
+      cbl = cb - 2;
+      k = flog10pow2(q);
+    } else {
+      cbl = cb - 1;
+      k = flog10threeQuartersPow2(q);
+    }
+    int h = q + flog2pow10(-k) + 2;
+
+    long g1 = G[(k - K_MIN) << 1];
+    long g0 = G[((k - K_MIN) << 1) + 1];
+
+    long vb = rop(g1, g0, cb << h);
+    long vbl = rop(g1, g0, cbl << h);
+    long vbr = rop(g1, g0, cbr << h);
+
+    long s = vb >> 2;
+    if (s >= 100) {
+      // try the shorter decimal obtained by dropping one more digit
+      long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+      long tp10 = sp10 + 10;
+      boolean upin = vbl + out <= sp10 << 2;
+      boolean wpin = (tp10 << 2) + out <= vbr;
+      if (upin != wpin) {
+        return toChars(upin ? sp10 : tp10, k, dst, offset);
+      }
+    }
+    long t = s + 1;
+    boolean uin = vbl + out <= s << 2;
+    boolean win = (t << 2) + out <= vbr;
+    if (uin != win) {
+      return toChars(uin ? s : t, k + dk, dst, offset);
+    }
+    // both candidates round trip, take the closest one
+    long cmp = vb - ((s + t) << 1);
+    return toChars(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk, dst,
+        offset);
+  }
+
+  /**
+   * Writes f 10^e, in plain notation unless the decimal exponent is below -7
+   * or above 20.
+   */
+  private static int toChars(long f, int e, char[] dst, int offset) {
+    if (f == 0) {
+      dst[offset] = '0';
+      return offset + 1;
+    }
+    while (f % 10 == 0) {
+      f /= 10;
+      e++;
+    }
+    int n = digits(f);
+    int point = n + e;
+    if (point > 21 || point < -6) {
+      // d[.ddd]E[-]x
+      int end = offset + n + (n > 1 ? 1 : 0);
+      writeDigits(f, dst, end);
+      if (n > 1) {
+        dst[offset] = dst[offset + 1];
+        dst[offset + 1] = '.';
+      }
+      offset = end;
+      dst[offset++] = 'E';
+      int x = point - 1;
+      if (x < 0) {
+        dst[offset++] = '-';
+        x = -x;
+      }
+      int xn = digits(x);
+      writeDigits(x, dst, offset + xn);
+      return offset + xn;
+    }
+    if (point <= 0) {
+      // 0.000ddd
+      dst[offset++] = '0';
+      dst[offset++] = '.';
+      for (int i = point; i < 0; i++) {
+        dst[offset++] = '0';
+      }
+      writeDigits(f, dst, offset + n);
+      return offset + n;
+    }
+    if (point >= n) {
+      // ddd000
+      writeDigits(f, dst, offset + n);
+      offset += n;
+      for (int i = n; i < point; i++) {
+        dst[offset++] = '0';
+      }
+      return offset;
+    }
+    // ddd.ddd
+    int end = offset + n + 1;
+    writeDigits(f, dst, end);
+    System.arraycopy(dst, offset + 1, dst, offset, point);
+    dst[offset + point] = '.';
+    return end;
+  }
+
+  /** writes the digits of v so that the last one is at end - 1 */
+  private static void writeDigits(long v, char[] dst, int end) {
+    do {
+      long q = v / 10;
+      dst[--end] = (char) ('0' + (v - q * 10));
+      v = q;
+    } while (v != 0);
+  }
+
+  private static int digits(long v) {
+    int n = 1;
+    while (v >= 10) {
+      v /= 10;
+      n++;
+    }
+    return n;
+  }
+
+  private static int copy(String s, char[] dst, int offset) {
+    s.getChars(0, s.length(), dst, offset);
+    return offset + s.length();
+  }
+
+  /** rounding to odd of g cp 2^-127 */
+  private static long rop(long g1, long g0, long cp) {
+    long x1 = multiplyHigh(g0, cp);
+    long y0 = g1 * cp;
+    long y1 = multiplyHigh(g1, cp);
+    long z = (y0 >>> 1) + x1;
+    long vbp = y1 + (z >>> 63);
+    return vbp | ((z & MASK_63) + MASK_63) >>> 63;
+  }
+
+  /** Math.multiplyHigh is not available in Java 8 */
+  private static long multiplyHigh(long x, long y) {
+    long x1 = x >> 32;
+    long x2 = x & 0xFFFFFFFFL;
+    long y1 = y >> 32;
+    long y2 = y & 0xFFFFFFFFL;
+    long z2 = x2 * y2;
+    long t = x1 * y2 + (z2 >>> 32);
+    long z1 = t & 0xFFFFFFFFL;
+    long z0 = t >> 32;
+    z1 += x2 * y1;
+    return x1 * y1 + z0 + (z1 >> 32);
+  }
+
+  /** floor(log10(2^e)) */
+  private static int flog10pow2(int e) {
+    return (int) (e * 661971961083L >> 41);
+  }
+
+  /** floor(log10(3/4 2^e)) */
+  private static int flog10threeQuartersPow2(int e) {
+    return (int) (e * 661971961083L + -274743187321L >> 41);
+  }
+
+  /** floor(log2(10^e)) */
+  private static int flog2pow10(int e) {
+    return (int) (e * 913124641741L >> 38);
+  }
+}
@@ -0,0 +1,340 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.locationtech.jts.geom.Geometry;
+
+import com.vividsolutions.jump.coordsys.CoordinateSystem;
+import com.vividsolutions.jump.coordsys.Geographic;
+import com.vividsolutions.jump.coordsys.Planar;
+import com.vividsolutions.jump.coordsys.Projection;
+import com.vividsolutions.jump.coordsys.impl.PredefinedCoordinateSystems;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureSchema;
+
+/**
+ * Transforms coordinates of a source coordinate system to the
+ * longitude/latitude written in KML, in bulk on arrays of x,y pairs.
+ * <p>
+ * The transforms of EPSG codes are prepared once, all their constants
+ * computed, and shared by every writer and thread, so they hold no state
+ * once built. They cover geographic coordinates (EPSG 4326 and other
+ * systems of the same datum to the meter, left as they are), Web Mercator
+ * (EPSG 3857) and the UTM zones of WGS 84 (EPSG 326zz and 327zz), ETRS89
+ * (EPSG 25828 to 25838) and NAD83 (EPSG 26901 to 26923), inverted with
+ * the Krüger series, exact to the millimeter inside the zone. Other
+ * coordinate systems fall back on the projection of the OpenJUMP
+ * coordinate system of the layer, one coordinate at a time.
+ */
+public abstract class KMLCoordinateTransform {
+
+  /** Source_CRS value writing the coordinates as they are */
+  public static final String NONE = "none";
+
+  private static final KMLCoordinateTransform IDENTITY = new Identity();
+  // marks the codes without transform in the cache
+  private static final KMLCoordinateTransform UNSUPPORTED = new Identity();
+
+  private static final Map<Integer, KMLCoordinateTransform> transforms = new ConcurrentHashMap<>();
+
+  private static final double WGS84_A = 6378137.0;
+  private static final double WGS84_F = 1 / 298.257223563;
+  private static final double GRS80_F = 1 / 298.257222101;
+
+  /**
+   * Transforms x,y pairs in place to longitude,latitude pairs.
+   * 
+   * @param xy
+   *          x and y of each coordinate, followed by those of the next
+   * @param count
+   *          number of coordinates
+   */
+  public abstract void transform(double[] xy, int count);
+
+  /**
+   * @return true if the transform leaves the coordinates as they are
+   */
+  public boolean isIdentity() {
+    return false;
+  }
+
+  /**
+   * Returns the shared transform of an EPSG code.
+   * 
+   * @return the transform, or null if the code is not supported
+   */
+  public static KMLCoordinateTransform forEPSG(int code) {
+    KMLCoordinateTransform transform = transforms.computeIfAbsent(code,
+        c -> {
+          KMLCoordinateTransform created = create(c);
+          return created == null ? UNSUPPORTED : created;
+        });
+    return transform == UNSUPPORTED ? null : transform;
+  }
+
+  /**
+   * Returns the transform of a layer: the one of the sourceCRS property if
+   * given, else the one of the coordinate system of the layer schema.
+   * 
+   * @param sourceCRS
+   *          "EPSG:code" or code, {@link #NONE} for no transform, or null or
+   *          empty to use the layer coordinate system
+   * @return the transform, or null if there is none to apply
+   * @throws IllegalArgumentException
+   *           if the coordinate system is not supported
+   */
+  public static KMLCoordinateTransform forLayer(FeatureSchema schema,
+      String sourceCRS) {
+    if (sourceCRS != null && sourceCRS.trim().length() > 0) {
+      String crs = sourceCRS.trim();
+      if (crs.equalsIgnoreCase(NONE)) {
+        return null;
+      }
+      int code;
+      try {
+        code = Integer.parseInt(crs.replaceFirst("(?i)^EPSG:", ""));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("invalid Source_CRS '" + crs
+            + "', expected EPSG:code or " + NONE);
+      }
+      return supported(code);
+    }
+    CoordinateSystem coordinateSystem = schema.getCoordinateSystem();
+    // a layer without coordinate system has UNSPECIFIED, which supports
+    // neither getEPSGCode() nor getProjection()
+    if (coordinateSystem == null
+        || coordinateSystem == CoordinateSystem.UNSPECIFIED) {
+      return null;
+    }
+    int code = coordinateSystem.getEPSGCode();
+    if (code > 0) {
+      KMLCoordinateTransform transform = forEPSG(code);
+      if (transform != null) {
+        return transform.isIdentity() ? null : transform;
+      }
+    }
+    Projection projection = coordinateSystem.getProjection();
+    if (projection != null) {
+      return new ProjectionTransform(projection);
+    }
+    if (code > 0) {
+      throw unsupported(code);
+    }
+    return null;
+  }
+
+  /**
+   * @return the transform of an EPSG code, null for the identity
+   * @throws IllegalArgumentException
+   *           if the code is not supported
+   */
+  static KMLCoordinateTransform supported(int code) {
+    KMLCoordinateTransform transform = forEPSG(code);
+    if (transform == null) {
+      throw unsupported(code);
+    }
+    return transform.isIdentity() ? null : transform;
+  }
+
+  /**
+   * Checks the SRIDs of the geometries, so that an unsupported one is
+   * reported before anything is written.
+   * 
+   * @throws IllegalArgumentException
+   *           listing the SRIDs which are not supported
+   */
+  static void checkSRIDs(Iterable<Feature> features) {
+    Set<Integer> checked = new TreeSet<>();
+    Set<Integer> unsupported = new TreeSet<>();
+    for (Feature feature : features) {
+      Geometry geometry = feature.getGeometry();
+      int srid = geometry == null ? 0 : geometry.getSRID();
+      if (srid > 0 && checked.add(srid) && forEPSG(srid) == null) {
+        unsupported.add(srid);
+      }
+    }
+    if (!unsupported.isEmpty()) {
+      throw new IllegalArgumentException("unsupported geometry SRID "
+          + unsupported + ", set Source_CRS to " + NONE
+          + " to write the coordinates as they are");
+    }
+  }
+
+  private static IllegalArgumentException unsupported(int code) {
+    return new IllegalArgumentException("unsupported coordinate system EPSG:"
+        + code + ", set Source_CRS to " + NONE
+        + " to write the coordinates as they are");
+  }
+
+  private static KMLCoordinateTransform create(int code) {
+    switch (code) {
+    case 4326: // WGS 84
+    case 4258: // ETRS89
+    case 4269: // NAD83
+    case 4283: // GDA94
+    case 4617: // NAD83(CSRS)
+    case 4019: // GRS 1980
+      return IDENTITY;
+    case 3857: // WGS 84 / Pseudo-Mercator
+    case 3785:
+    case 900913:
+    case 102100:
+      return new WebMercator();
+    default:
+    }
+    if (code >= 32601 && code <= 32660) {
+      return new TransverseMercator(WGS84_A, WGS84_F, code - 32600, false);
+    }
+    if (code >= 32701 && code <= 32760) {
+      return new TransverseMercator(WGS84_A, WGS84_F, code - 32700, true);
+    }
+    if (code >= 25828 && code <= 25838) {
+      return new TransverseMercator(WGS84_A, GRS80_F, code - 25800, false);
+    }
+    if (code >= 26901 && code <= 26923) {
+      return new TransverseMercator(WGS84_A, GRS80_F, code - 26900, false);
+    }
+    return null;
+  }
+
+  private static final class Identity extends KMLCoordinateTransform {
+    public void transform(double[] xy, int count) {
+    }
+
+    public boolean isIdentity() {
+      return true;
+    }
+  }
+
+  private static final class WebMercator extends KMLCoordinateTransform {
+    public void transform(double[] xy, int count) {
+      for (int i = 0; i < 2 * count; i += 2) {
+        xy[i] = Math.toDegrees(xy[i] / WGS84_A);
+        xy[i + 1] = Math.toDegrees(2 * Math.atan(Math.exp(xy[i + 1]
+            / WGS84_A))
+            - Math.PI / 2);
+      }
+    }
+  }
+
+  /** Inverse UTM projection, by the series of Krüger to the third order */
+  private static final class TransverseMercator extends
+      KMLCoordinateTransform {
+    private static final double K0 = 0.9996;
+    private static final double FALSE_EASTING = 500000.0;
+    private static final double FALSE_NORTHING_SOUTH = 10000000.0;
+
+    private final double scale;
+    private final double falseNorthing;
+    private final double centralMeridian;
+    private final double beta1;
+    private final double beta2;
+    private final double beta3;
+    private final double delta1;
+    private final double delta2;
+    private final double delta3;
+
+    TransverseMercator(double a, double f, int zone, boolean south) {
+      double n = f / (2 - f);
+      double n2 = n * n;
+      double n3 = n2 * n;
+      // rectifying radius
+      double radius = a / (1 + n) * (1 + n2 / 4 + n2 * n2 / 64);
+      scale = K0 * radius;
+      falseNorthing = south ? FALSE_NORTHING_SOUTH : 0;
+      centralMeridian = Math.toRadians(6 * zone - 183);
+      beta1 = n / 2 - 2 * n2 / 3 + 37 * n3 / 96;
+      beta2 = n2 / 48 + n3 / 15;
+      beta3 = 17 * n3 / 480;
+      delta1 = 2 * n - 2 * n2 / 3 - 2 * n3;
+      delta2 = 7 * n2 / 3 - 8 * n3 / 5;
+      delta3 = 56 * n3 / 15;
+    }
+
+    public void transform(double[] xy, int count) {
+      for (int i = 0; i < 2 * count; i += 2) {
+        double xi = (xy[i + 1] - falseNorthing) / scale;
+        double eta = (xy[i] - FALSE_EASTING) / scale;
+        double xi1 = xi - beta1 * Math.sin(2 * xi) * Math.cosh(2 * eta)
+            - beta2 * Math.sin(4 * xi) * Math.cosh(4 * eta) - beta3
+            * Math.sin(6 * xi) * Math.cosh(6 * eta);
+        double eta1 = eta - beta1 * Math.cos(2 * xi) * Math.sinh(2 * eta)
+            - beta2 * Math.cos(4 * xi) * Math.sinh(4 * eta) - beta3
+            * Math.cos(6 * xi) * Math.sinh(6 * eta);
+        // conformal latitude
+        double chi = Math.asin(Math.sin(xi1) / Math.cosh(eta1));
+        double latitude = chi + delta1 * Math.sin(2 * chi) + delta2
+            * Math.sin(4 * chi) + delta3 * Math.sin(6 * chi);
+        double longitude = centralMeridian
+            + Math.atan2(Math.sinh(eta1), Math.cos(xi1));
+        xy[i] = Math.toDegrees(longitude);
+        xy[i + 1] = Math.toDegrees(latitude);
+      }
+    }
+  }
+
+  /**
+   * Transform through an OpenJUMP projection, whose objects are not
+   * thread safe.
+   */
+  private static final class ProjectionTransform extends
+      KMLCoordinateTransform {
+    private final Projection projection;
+    private final Projection geographic = PredefinedCoordinateSystems.GEOGRAPHICS_WGS_84
+        .getProjection();
+
+    ProjectionTransform(Projection projection) {
+      this.projection = projection;
+    }
+
+    public void transform(double[] xy, int count) {
+      Planar planar = new Planar();
+      Geographic q = new Geographic();
+      synchronized (projection) {
+        for (int i = 0; i < 2 * count; i += 2) {
+          planar.x = xy[i];
+          planar.y = xy[i + 1];
+          geographic.asPlanar(projection.asGeographic(planar, q), planar);
+          xy[i] = planar.x;
+          xy[i + 1] = planar.y;
+        }
+      }
+    }
+  }
+}
@@ -64,11 +64,24 @@ public class KMLDataSourceQueryChooserInstallerPlugIn extends AbstractPlugIn {
       KMLDriverConfiguration.I18N.get("choose-map-projection");
   private static final String FIRST_CHOICE =
       KMLDriverConfiguration.I18N.get("lat-lon");
+  private static final String LAYER_CRS =
+      KMLDriverConfiguration.I18N.get("layer-crs");
+  private static final String COORDINATE_DECIMALS =
+      KMLDriverConfiguration.I18N.get("coordinate-decimals");
+  private static final String FULL_PRECISION =
+      KMLDriverConfiguration.I18N.get("full-precision");
+  private static final String OUTPUT_PROFILE =
+      KMLDriverConfiguration.I18N.get("output-profile");
+  private static final String PRETTY_OUTPUT =
+      KMLDriverConfiguration.I18N.get("pretty-output");
+  private static final String COMPACT_OUTPUT =
+      KMLDriverConfiguration.I18N.get("compact-output");
   private static final String MISSING_RESOURCE =
       KMLDriverConfiguration.I18N.get("missing-projection-file", PROJECTION_FILE_NAME);
 
   public static String KMLDESCRIPTION_WGS84 = "KML 2.0";
   public static String KMLDESCRIPTION_UTM = "KML 2.0 (project to UTM)";
+  public static String KMZDESCRIPTION = "KMZ (KML 2.0)";
   public static String COMPRESSED = "Compressed ";
 
   private PlugInContext context;
@@ -99,6 +112,22 @@ public class KMLDataSourceQueryChooserInstallerPlugIn extends AbstractPlugIn {
               }
             });
 
+    DataSourceQueryChooserManager.get(
+        context.getWorkbenchContext().getBlackboard())
+        .addSaveDataSourceQueryChooser(
+            new SaveFileDataSourceQueryChooser(KMLWriter.KMZ.class, KMZDESCRIPTION,
+                InstallStandardDataSourceQueryChoosersPlugIn
+                    .extensions(KMLWriter.KMZ.class), context
+                    .getWorkbenchContext()) {
+              protected Map<String,Object> toProperties(File file) {
+                HashMap<String,Object> properties = new HashMap<>(super.toProperties(file));
+                if (getUTM)
+                  return setUTMParameters(properties);
+                else
+                  return properties;
+              }
+            });
+
     DataSourceQueryChooserManager.get(
         context.getWorkbenchContext().getBlackboard())
         .addLoadDataSourceQueryChooser(
@@ -112,6 +141,7 @@ public class KMLDataSourceQueryChooserInstallerPlugIn extends AbstractPlugIn {
                 chooser.addChoosableFileFilter(GUIUtil.createFileFilter(
                     COMPRESSED + KMLDESCRIPTION_WGS84, new String[] { "kmz",
                         "gz" }));
+                KMLPreviewPanel.install(chooser);
               }
             });
 
@@ -128,6 +158,7 @@ public class KMLDataSourceQueryChooserInstallerPlugIn extends AbstractPlugIn {
                 chooser.addChoosableFileFilter(GUIUtil.createFileFilter(
                     COMPRESSED + KMLDESCRIPTION_UTM,
                     new String[] { "kmz", "gz" }));
+                KMLPreviewPanel.install(chooser);
               }
             });
 
@@ -141,12 +172,9 @@ public class KMLDataSourceQueryChooserInstallerPlugIn extends AbstractPlugIn {
     // 8/16/05
     // we are going to look for a projection file
     // if we find one and it is a UTM projection then we set the properties
-    // if we find one and it is not a UTM projection then return properties with
-    // null UTM parameters
-    // this will signal KML writer that it cannot write the KML
     // if we find no projection files then we ask user for UTM projection data
-    // null UTM parameters mean 'do not write KML'
-    // empty UTM parameters mean 'write KML with no projection transformation'
+    // Write_Cancelled=true means 'do not write KML'
+    // empty (or missing) UTM parameters mean 'write KML with no UTM projection'
     // presumably, source already in lat/long
 
     /*
@@ -197,6 +225,7 @@ public class KMLDataSourceQueryChooserInstallerPlugIn extends AbstractPlugIn {
     MultiInputDialog projectionDialog = new MultiInputDialog(
         context.getWorkbenchFrame(), MAP_PROJECTION, true);
     Collection<String> methodNames = new ArrayList<>();
+    methodNames.add(LAYER_CRS);
     methodNames.add(FIRST_CHOICE);
     if (projectionFile != null) {
       for (int i = 1; i <= 60; i++) {
@@ -206,26 +235,51 @@ public class KMLDataSourceQueryChooserInstallerPlugIn extends AbstractPlugIn {
     } else {
       context.getWorkbenchFrame().warnUser(MISSING_RESOURCE);
     }
-    projectionDialog.addComboBox(CHOOSE_MAP_PROJECTION, FIRST_CHOICE,
+    projectionDialog.addComboBox(CHOOSE_MAP_PROJECTION, LAYER_CRS,
         methodNames, null);
+    Collection<String> decimalChoices = new ArrayList<>();
+    decimalChoices.add(FULL_PRECISION);
+    for (int i = 0; i <= 10; i++) {
+      decimalChoices.add(String.valueOf(i));
+    }
+    projectionDialog.addComboBox(COORDINATE_DECIMALS, FULL_PRECISION,
+        decimalChoices, null);
+    Collection<String> profileChoices = new ArrayList<>();
+    profileChoices.add(PRETTY_OUTPUT);
+    profileChoices.add(COMPACT_OUTPUT);
+    projectionDialog.addComboBox(OUTPUT_PROFILE, PRETTY_OUTPUT,
+        profileChoices, null);
     GUIUtil.centreOnWindow(projectionDialog);
     projectionDialog.setVisible(true);
 
     if (projectionDialog.wasOKPressed()) {
+      properties.remove("Write_Cancelled");
       String UTMZone = getDialogValues(projectionDialog);
-      if (UTMZone.equals(FIRST_CHOICE)) {
+      if (UTMZone.equals(LAYER_CRS)) {
+        // transformed from the coordinate system of the layer, if known
+        properties.put("UTM_Zone", "");
+        properties.put("Central_Meridian", "");
+        properties.put("Source_CRS", "");
+      } else if (UTMZone.equals(FIRST_CHOICE)) {
         properties.put("UTM_Zone", "");
         properties.put("Central_Meridian", "");
+        properties.put("Source_CRS", KMLCoordinateTransform.NONE);
       } else {
         properties.put("UTM_Zone", UTMZone);
         String centralMeridian = new UTM_Projection_List(projectionFile)
             .getCentralMeridian(UTMZone);
         properties.put("Central_Meridian", centralMeridian);
       }
+      String decimals = projectionDialog.getText(COORDINATE_DECIMALS);
+      properties.put("Coordinate_Decimals",
+          decimals.equals(FULL_PRECISION) ? "" : decimals);
+      properties.put("Output_Profile",
+          projectionDialog.getText(OUTPUT_PROFILE).equals(COMPACT_OUTPUT)
+              ? "compact" : "pretty");
+    } else {
+      // means cancel write
+      properties.put("Write_Cancelled", "true");
     }
-    // else
-    // properties will have null UTM parameters
-    // means cancel write
     projectionDialog.dispose();
     return properties;
   }
@@ -0,0 +1,431 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.StringTokenizer;
+import java.util.function.Function;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateFilter;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+
+import com.vividsolutions.jump.coordsys.CoordinateSystem;
+import com.vividsolutions.jump.coordsys.Reprojector;
+import com.vividsolutions.jump.feature.Feature;
+
+/**
+ * Builds the geometry of a Placemark from the geometry elements reported by
+ * {@link KMLReader}: parses the coordinates, creates the JTS geometries and
+ * reprojects them to UTM if asked to.
+ * <p>
+ * The reader either drives a builder directly, or, when reading on several
+ * threads, stores the calls in a {@link Record} which a worker thread
+ * replays into its own builder later. The reader keeps track of the parsing
+ * state in both cases, so a builder only sees the geometry elements.
+ */
+public class KMLGeometryBuilder implements KMLGeometryEvents {
+
+  // actions when a geometry element starts
+  static final int RESET_COORDINATE = 1;
+  static final int CLEAR_POINTS = 2;
+  static final int CLEAR_HOLES = 4;
+
+  // geometry elements whose end is handled
+  static final int X = 0;
+  static final int Y = 1;
+  static final int Z = 2;
+  static final int COORD = 3;
+  static final int COORDINATES = 4;
+  static final int LINEAR_RING = 5;
+  static final int OUTER_BOUNDARY = 6;
+  static final int INNER_BOUNDARY = 7;
+  static final int POLYGON = 8;
+  static final int LINE_STRING = 9;
+  static final int POINT = 10;
+
+  private static final String[] END_ELEMENTS = { "X", "Y", "Z", "COORD",
+      "COORDINATES", "linearring", "outerBoundaryIs", "innerBoundaryIs",
+      "polygon", "linestring", "point" };
+
+  private final GeometryFactory geometryFactory = new GeometryFactory();
+  private final CoordinateSystem source;
+  // gives the UTM zone to project to from the first coordinate, null if
+  // the geometries are not reprojected
+  private final Function<Coordinate, CoordinateSystem> destinations;
+  private CoordinateSystem destination = null;
+
+  private Feature feature;
+  private boolean geometryEnded;
+  private ArrayList<Geometry> geometry;
+  // list of geometrycollections - list of list of geometry
+  private ArrayList<ArrayList<Geometry>> recursivegeometry;
+  private final ArrayList<Coordinate> pointList = new ArrayList<>();
+  private final ArrayList<LinearRing> innerBoundaries = new ArrayList<>();
+  private final Coordinate singleCoordinate = new Coordinate();
+  private LinearRing linearRing;
+  private LinearRing outerBoundary;
+
+  /**
+   * @param source coordinate system of the kml coordinates
+   * @param destinations returns the coordinate system to project to, given
+   *          the first coordinate; null to keep geographic coordinates
+   */
+  KMLGeometryBuilder(CoordinateSystem source,
+      Function<Coordinate, CoordinateSystem> destinations) {
+    this.source = source;
+    this.destinations = destinations;
+  }
+
+  /**
+   * @return the actions taken when the given geometry element starts, 0 if
+   *         none
+   */
+  static int startActions(String qName) {
+    int actions = 0;
+    if ((qName.compareToIgnoreCase("coord") == 0)
+        || (qName.compareToIgnoreCase("gml:coord") == 0)) {
+      actions |= RESET_COORDINATE;
+    }
+    if (!((qName.compareToIgnoreCase("X") == 0)
+        || (qName.compareToIgnoreCase("y") == 0)
+        || (qName.compareToIgnoreCase("z") == 0)
+        || (qName.compareToIgnoreCase("coord") == 0))) {
+      actions |= CLEAR_POINTS; // clear out any accumulated points
+    }
+    if (qName.compareToIgnoreCase("polygon") == 0) {
+      actions |= CLEAR_HOLES; // polygon just started - clear out the last one
+    }
+    return actions;
+  }
+
+  /** @return the code of a geometry element whose end is handled, or -1 */
+  static int endElement(String qName) {
+    for (int i = 0; i < END_ELEMENTS.length; i++) {
+      if (qName.compareToIgnoreCase(END_ELEMENTS[i]) == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return true if the text of the element is needed by {@link #end} */
+  static boolean hasBody(int element) {
+    return element <= Z || element == COORDINATES;
+  }
+
+  /** starts the geometry of a Placemark */
+  void begin(Feature feature) {
+    this.feature = feature;
+    geometryEnded = false;
+    recursivegeometry = new ArrayList<>();
+    geometry = new ArrayList<>();
+    recursivegeometry.add(geometry);
+  }
+
+  public void start(int actions) {
+    if ((actions & RESET_COORDINATE) != 0) {
+      singleCoordinate.x = Double.NaN;
+      singleCoordinate.y = Double.NaN;
+      singleCoordinate.z = Double.NaN;
+    }
+    if ((actions & CLEAR_POINTS) != 0) {
+      pointList.clear();
+    }
+    if ((actions & CLEAR_HOLES) != 0) {
+      innerBoundaries.clear();
+    }
+  }
+
+  public void startNested() {
+    geometry = new ArrayList<>();
+    recursivegeometry.add(geometry);
+  }
+
+  public void endNested() {
+    // build the geometry that was in that collection
+    Geometry g = geometryFactory.buildGeometry(geometry);
+    recursivegeometry.remove(recursivegeometry.size() - 1);
+    geometry = recursivegeometry.get(recursivegeometry.size() - 1);
+    geometry.add(g);
+  }
+
+  public void end(int element, String body) {
+    switch (element) {
+    // these correspond to <coord><X>0.0</X><Y>0.0</Y></coord>
+    case X:
+      singleCoordinate.x = Double.parseDouble(body);
+      break;
+    case Y:
+      singleCoordinate.y = Double.parseDouble(body);
+      break;
+    case Z:
+      singleCoordinate.z = Double.parseDouble(body);
+      break;
+    case COORD:
+      pointList.add(new Coordinate(singleCoordinate)); // remember it
+      break;
+    // this corresponds to
+    // <gml:coordinates>1195156.78946687,382069.533723461</gml:coordinates>
+    case COORDINATES:
+      // body has a wack-load of points in it - we need
+      // to parse them into the pointList list.
+      // assume that the x,y,z coordinate are "," separated, and the points
+      // are " " separated
+      parsePoints(body);
+      break;
+    case LINEAR_RING:
+      linearRing = geometryFactory.createLinearRing(pointList
+          .toArray(new Coordinate[0]));
+      break;
+    case OUTER_BOUNDARY:
+      outerBoundary = linearRing;
+      break;
+    case INNER_BOUNDARY:
+      innerBoundaries.add(linearRing);
+      break;
+    case POLYGON:
+      geometry.add(geometryFactory.createPolygon(outerBoundary,
+          innerBoundaries.toArray(new LinearRing[0])));
+      break;
+    case LINE_STRING:
+      geometry.add(geometryFactory.createLineString(pointList
+          .toArray(new Coordinate[0])));
+      break;
+    case POINT:
+      geometry.add(geometryFactory.createPoint(pointList.get(0)));
+      break;
+    default:
+      break;
+    }
+  }
+
+  public void endGeometry() {
+    Geometry finalGeometry = geometryFactory.buildGeometry(geometry);
+    if (destinations != null) {
+      reproject(finalGeometry);
+    }
+    feature.setGeometry(finalGeometry);
+    geometryEnded = true;
+  }
+
+  public boolean hasGeometry() {
+    return geometryEnded;
+  }
+
+  /**
+   * Parse a bunch of points - stick them in pointList. Handles 2d and 3d.
+   *
+   * @param ptString
+   *          string containing a bunch of coordinates
+   */
+  private void parsePoints(String ptString) {
+    String aPoint;
+    StringTokenizer stokenizerPoint;
+    Coordinate coord = new Coordinate();
+    int dim;
+    String numb;
+    StringBuilder sb;
+    int t;
+    char ch;
+
+    // remove \n and \r and replace with spaces
+    sb = new StringBuilder(ptString);
+
+    for (t = 0; t < sb.length(); t++) {
+      ch = sb.charAt(t);
+
+      if ((ch == '\n') || (ch == '\r')) {
+        sb.setCharAt(t, ' ');
+      }
+    }
+
+    StringTokenizer stokenizer = new StringTokenizer(new String(sb), " ", false);
+
+    while (stokenizer.hasMoreElements()) {
+      // have a point in memory - handle the single point
+      aPoint = stokenizer.nextToken();
+      stokenizerPoint = new StringTokenizer(aPoint, ",", false);
+      coord.x = coord.y = coord.z = Double.NaN;
+      dim = 0;
+
+      while (stokenizerPoint.hasMoreElements()) {
+        numb = stokenizerPoint.nextToken();
+
+        if (dim == 0) {
+          coord.x = Double.parseDouble(numb);
+        } else if (dim == 1) {
+          coord.y = Double.parseDouble(numb);
+        } else if (dim == 2) {
+          coord.z = Double.parseDouble(numb);
+        }
+
+        dim++;
+      }
+      if ((coord.x != coord.x) || (coord.y != coord.y)) // one (x,y) is NaN
+      {
+        throw new IllegalArgumentException(
+            "GML error - coordinate list isnt valid GML. Watch your spaces and commas!");
+      }
+      pointList.add(coord); // remember it
+      coord = new Coordinate();
+      stokenizerPoint = null;
+    }
+  }
+
+  // Reproject geometry from source to destination
+  private void reproject(Geometry geometry) {
+    geometry.apply(new CoordinateFilter() {
+      public void filter(Coordinate coord) {
+        if (destination == null) {
+          destination = destinations.apply(coord);
+        }
+        Reprojector.instance().reproject(coord, source, destination);
+      }
+    });
+    geometry.geometryChanged();
+  }
+
+  /**
+   * The geometry elements of one Placemark, stored by the parsing thread to
+   * be built later by {@link #replay(KMLGeometryBuilder)}.
+   */
+  static final class Record implements KMLGeometryEvents {
+    private static final byte START = 0; // + actions
+    private static final byte START_NESTED = 8;
+    private static final byte END_NESTED = 9;
+    private static final byte END_GEOMETRY = 10;
+    private static final byte END = 16; // + element
+
+    final Feature feature;
+    final long ordinal;
+    private byte[] codes = new byte[16];
+    private String[] bodies = new String[16];
+    private String[] tags = new String[16]; // last opened tag, for errors
+    private int size = 0;
+    private boolean geometryEnded = false;
+    private String tag;
+
+    // set by replay() if the geometry could not be built
+    RuntimeException error;
+    String errorTag;
+
+    /**
+     * @param feature feature receiving the geometry
+     * @param ordinal ordinal of the Placemark in the file
+     */
+    Record(Feature feature, long ordinal) {
+      this.feature = feature;
+      this.ordinal = ordinal;
+    }
+
+    /** sets the last opened tag, reported if the next events fail */
+    void setTag(String tag) {
+      this.tag = tag;
+    }
+
+    private void add(int code, String body) {
+      if (size == codes.length) {
+        codes = Arrays.copyOf(codes, size * 2);
+        bodies = Arrays.copyOf(bodies, size * 2);
+        tags = Arrays.copyOf(tags, size * 2);
+      }
+      codes[size] = (byte) code;
+      bodies[size] = body;
+      tags[size++] = tag;
+    }
+
+    public void start(int actions) {
+      add(START + actions, null);
+    }
+
+    public void startNested() {
+      add(START_NESTED, null);
+    }
+
+    public void endNested() {
+      add(END_NESTED, null);
+    }
+
+    public void end(int element, String body) {
+      add(END + element, body);
+    }
+
+    public void endGeometry() {
+      add(END_GEOMETRY, null);
+      geometryEnded = true;
+    }
+
+    public boolean hasGeometry() {
+      return geometryEnded;
+    }
+
+    /**
+     * Builds the geometry of the feature. On failure the exception is kept
+     * in {@link #error}.
+     *
+     * @return false if the geometry could not be built
+     */
+    boolean replay(KMLGeometryBuilder builder) {
+      builder.begin(feature);
+      for (int i = 0; i < size; i++) {
+        try {
+          int code = codes[i];
+          if (code < START_NESTED) {
+            builder.start(code - START);
+          } else if (code == START_NESTED) {
+            builder.startNested();
+          } else if (code == END_NESTED) {
+            builder.endNested();
+          } else if (code == END_GEOMETRY) {
+            builder.endGeometry();
+          } else {
+            builder.end(code - END, bodies[i]);
+          }
+        } catch (RuntimeException e) {
+          error = e;
+          errorTag = tags[i];
+          return false;
+        }
+      }
+      // the strings are not needed any more
+      bodies = null;
+      tags = null;
+      return true;
+    }
+  }
+}
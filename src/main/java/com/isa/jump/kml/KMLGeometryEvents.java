@@ -0,0 +1,68 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+/**
+ * Receives the geometry elements of a Placemark from {@link KMLReader}, see
+ * {@link KMLGeometryBuilder}.
+ */
+public interface KMLGeometryEvents {
+
+  /**
+   * A geometry element started.
+   *
+   * @param actions see {@link KMLGeometryBuilder#startActions(String)}
+   */
+  void start(int actions);
+
+  /** a multi geometry nested in another one started */
+  void startNested();
+
+  /** a multi geometry nested in another one ended */
+  void endNested();
+
+  /**
+   * A geometry element ended.
+   *
+   * @param element see {@link KMLGeometryBuilder#endElement(String)}
+   * @param body text of the element for X, Y, Z and coordinates, else null
+   */
+  void end(int element, String body);
+
+  /** the geometry of the Placemark ended */
+  void endGeometry();
+
+  /** @return true once {@link #endGeometry()} was called */
+  boolean hasGeometry();
+}
@@ -33,8 +33,9 @@
 
 package com.isa.jump.kml;
 
-import com.vividsolutions.jump.coordsys.Reprojector;
-import com.vividsolutions.jump.coordsys.CoordinateSystem;
+import com.vividsolutions.jump.coordsys.Geographic;
+import com.vividsolutions.jump.coordsys.Planar;
+import com.vividsolutions.jump.coordsys.Projection;
 import com.vividsolutions.jump.coordsys.impl.PredefinedCoordinateSystems;
 import com.vividsolutions.jump.coordsys.Radius;
 import com.vividsolutions.jump.coordsys.Spheroid;
@@ -48,6 +49,12 @@ import java.io.*;
  * JTS Geometry. Supports a user-defined line prefix and a user-defined maximum
  * number of coordinates per line. Indents components of Geometries to provide a
  * nicely-formatted representation.
+ * <p>
+ * The KML is streamed to a <code>Writer</code> as it is generated, so writing
+ * a large geometry never builds its whole text in memory.
+ * <p>
+ * In compact mode the geometry is written without indentation or line
+ * breaks, and coordinates are written as small as they can be.
  */
 public class KMLGeometryWriter {
 
@@ -56,6 +63,20 @@ public class KMLGeometryWriter {
   boolean zoneSouth = false;
   double centralMeridian = 0.0;
 
+  // UTM to WGS 84 projections, built by setParameters
+  private Projection sourceProjection = null;
+  private Projection destinationProjection = null;
+  private final Planar planar = new Planar();
+  private final Geographic geographic = new Geographic();
+  // projected x,y pairs of the coordinates being written
+  private double[] projected = new double[0];
+  // shared transform of the coordinates without SRID, when not UTM
+  private KMLCoordinateTransform sourceTransform = null;
+  // true if the SRID of a geometry selects its transform
+  private boolean useSRID = false;
+  // transform of the geometry being written
+  private KMLCoordinateTransform transform = null;
+
   /**
    * Returns a <code>String</code> of repeated characters.
    *
@@ -75,17 +96,49 @@ public class KMLGeometryWriter {
 
   private final int INDENT_SIZE = 2;
   // these could be made setable
-  private static final String coordinateSeparator = ",";
-  private static final String tupleSeparator = " ";
+  private static final char coordinateSeparator = ',';
+  private static final char tupleSeparator = ' ';
 
   private String linePrefix = null;
   private int maxCoordinatesPerLine = 10;
+  private boolean compact = false;
   private String srsName = null;
   private String gid = null;
 
+  // line prefix + indentation of each level, built on demand
+  private String[] indents = new String[0];
+
+  private final KMLCoordinateFormatter formatter = new KMLCoordinateFormatter();
+  // one "x,y,z " tuple
+  private final char[] tuple = new char[3 * KMLCoordinateFormatter.MAX_LENGTH + 3];
+
   public KMLGeometryWriter() {
   }
 
+  /**
+   * Creates a writer with the same settings as another one, for use by
+   * another thread.
+   * 
+   * @param other the writer whose settings are copied
+   */
+  public KMLGeometryWriter(KMLGeometryWriter other) {
+    zoneStr = other.zoneStr;
+    zoneInt = other.zoneInt;
+    zoneSouth = other.zoneSouth;
+    centralMeridian = other.centralMeridian;
+    if (zoneInt > 0) {
+      createProjection();
+    }
+    sourceTransform = other.sourceTransform;
+    useSRID = other.useSRID;
+    linePrefix = other.linePrefix;
+    maxCoordinatesPerLine = other.maxCoordinatesPerLine;
+    compact = other.compact;
+    srsName = other.srsName;
+    gid = other.gid;
+    formatter.setDecimals(other.formatter.getDecimals());
+  }
+
   public void setParameters(String zoneStr, double centralMeridian) {
     if (zoneStr.length() > 0) {
       this.zoneStr = zoneStr;
@@ -93,11 +146,118 @@ public class KMLGeometryWriter {
       this.zoneInt = Integer
           .parseInt(zoneStr.substring(0, zoneStr.length() - 1));
       this.centralMeridian = centralMeridian;
+      createProjection();
+    }
+  }
+
+  /**
+   * Removes the UTM parameters, so that the coordinates are transformed by
+   * the source transform again.
+   */
+  public void clearParameters() {
+    zoneStr = "";
+    zoneInt = 0;
+    zoneSouth = false;
+    centralMeridian = 0.0;
+    sourceProjection = null;
+    destinationProjection = null;
+  }
+
+  private void createProjection() {
+    UniversalTransverseMercator utm = new UniversalTransverseMercator();
+    utm.setSpheroid(new Spheroid(new Radius(Radius.GRS80)));
+    utm.setParameters(zoneInt, zoneSouth, centralMeridian);
+    sourceProjection = utm;
+    destinationProjection = PredefinedCoordinateSystems.GEOGRAPHICS_WGS_84
+        .getProjection();
+  }
+
+  /**
+   * Sets the transform of the coordinates to longitude/latitude, used
+   * unless UTM parameters are set.
+   * 
+   * @param sourceTransform
+   *          transform of the coordinates, null to write them as they are
+   * @param useSRID
+   *          true if the transform of a geometry with an SRID is the one of
+   *          its SRID
+   */
+  public void setSourceTransform(KMLCoordinateTransform sourceTransform,
+      boolean useSRID) {
+    this.sourceTransform = sourceTransform;
+    this.useSRID = useSRID;
+  }
+
+  /** @return true if UTM parameters are set, the source transform is unused */
+  boolean hasUTMParameters() {
+    return sourceProjection != null;
+  }
+
+  /**
+   * Returns the longitude/latitude envelope of an envelope of the written
+   * coordinates, projecting its corners and edge midpoints.
+   */
+  Envelope toGeographic(Envelope envelope) {
+    if ((sourceProjection == null && sourceTransform == null)
+        || envelope.isNull()) {
+      return new Envelope(envelope);
+    }
+    Envelope result = new Envelope();
+    if (sourceProjection == null) {
+      double[] xy = new double[18];
+      for (int i = 0; i < 9; i++) {
+        xy[2 * i] = envelope.getMinX() + (i / 3) * envelope.getWidth() / 2;
+        xy[2 * i + 1] = envelope.getMinY() + (i % 3) * envelope.getHeight()
+            / 2;
+      }
+      sourceTransform.transform(xy, 9);
+      for (int i = 0; i < 9; i++) {
+        result.expandToInclude(xy[2 * i], xy[2 * i + 1]);
+      }
+      return result;
+    }
+    for (int i = 0; i <= 2; i++) {
+      for (int j = 0; j <= 2; j++) {
+        planar.x = envelope.getMinX() + i * envelope.getWidth() / 2;
+        planar.y = envelope.getMinY() + j * envelope.getHeight() / 2;
+        destinationProjection.asPlanar(
+            sourceProjection.asGeographic(planar, geographic), planar);
+        result.expandToInclude(planar.x, planar.y);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Projects the x,y of the coordinates into the projected buffer, the same
+   * way Reprojector does, or in bulk with the transform of the geometry.
+   */
+  private void project(Coordinate[] coords) {
+    if (projected.length < 2 * coords.length) {
+      projected = new double[Math.max(2 * coords.length, 2 * projected.length)];
+    }
+    double[] xy = projected;
+    if (sourceProjection == null) {
+      for (int i = 0; i < coords.length; i++) {
+        xy[2 * i] = coords[i].x;
+        xy[2 * i + 1] = coords[i].y;
+      }
+      transform.transform(xy, coords.length);
+      return;
+    }
+    for (int i = 0; i < coords.length; i++) {
+      planar.x = coords[i].x;
+      planar.y = coords[i].y;
+      destinationProjection.asPlanar(
+          sourceProjection.asGeographic(planar, geographic), planar);
+      xy[2 * i] = planar.x;
+      xy[2 * i + 1] = planar.y;
     }
   }
 
   public void setLinePrefix(String linePrefix) {
     this.linePrefix = linePrefix;
+    this.indents = new String[0];
   }
 
   /**
@@ -120,6 +280,29 @@ public class KMLGeometryWriter {
     this.gid = gid;
   }
 
+  /**
+   * Sets the number of decimals written for each ordinate, or
+   * {@link KMLCoordinateFormatter#SHORTEST} (the default) to write the
+   * shortest text that reads back as the exact same value.
+   * 
+   * @param decimals number of decimals, or a negative value
+   */
+  public void setCoordinateDecimals(int decimals) {
+    formatter.setDecimals(decimals);
+  }
+
+  /**
+   * Sets the compact mode: no indentation or line breaks, all the
+   * coordinates of a geometry on one line, no altitude when every altitude
+   * is NaN or zero, and no consecutive duplicate coordinates unless removing
+   * them would leave too few for the geometry.
+   * 
+   * @param compact true to write compact KML
+   */
+  public void setCompact(boolean compact) {
+    this.compact = compact;
+  }
+
   public void setMaximumCoordinatesPerLine(int maxCoordinatesPerLine) {
     if (maxCoordinatesPerLine <= 0) {
       maxCoordinatesPerLine = 1;
@@ -133,8 +316,30 @@ public class KMLGeometryWriter {
     return buf.toString();
   }
 
+  /**
+   * Streams the KML representation of a JTS Geometry to a Writer.
+   * 
+   * @param geometry
+   *          Geometry to output
+   * @param writer
+   *          destination of the KML text
+   */
   public void write(Geometry geometry, Writer writer) throws IOException {
-    writer.write(write(geometry));
+    transform = sourceProjection != null ? null : transformOf(geometry);
+    writeGeometry(geometry, attributeString(), 0, writer);
+  }
+
+  private KMLCoordinateTransform transformOf(Geometry geometry) {
+    if (useSRID && geometry.getSRID() > 0) {
+      // the SRIDs are checked before writing, an unsupported one falls back
+      // to the layer transform
+      KMLCoordinateTransform sridTransform = KMLCoordinateTransform
+          .forEPSG(geometry.getSRID());
+      if (sridTransform != null) {
+        return sridTransform.isIdentity() ? null : sridTransform;
+      }
+    }
+    return sourceTransform;
   }
 
   /**
@@ -144,7 +349,12 @@ public class KMLGeometryWriter {
    *          Geometry to output
    */
   public void write(Geometry g, StringBuffer buf) {
-    writeGeometry(g, attributeString(), 0, buf);
+    try {
+      write(g, new StringBufferWriter(buf));
+    } catch (IOException e) {
+      // a StringBuffer does not throw IOExceptions
+      throw new IllegalStateException(e);
+    }
   }
 
   /**
@@ -154,48 +364,73 @@ public class KMLGeometryWriter {
    *          Geometry to output
    */
   private void writeGeometry(Geometry g, String attributes, int level,
-      StringBuffer buf) {
+      Writer out) throws IOException {
     /*
      * order is important in this if-else list. E.g. homogeneous collections
      * need to come before GeometryCollection
      */
     if (g instanceof Point) {
-      writePoint((Point) g, attributes, level, buf);
+      writePoint((Point) g, attributes, level, out);
     } else if (g instanceof LinearRing) {
-      writeLinearRing((LinearRing) g, attributes, level, buf);
+      writeLinearRing((LinearRing) g, attributes, level, out);
     } else if (g instanceof LineString) {
-      writeLineString((LineString) g, attributes, level, buf);
+      writeLineString((LineString) g, attributes, level, out);
     } else if (g instanceof Polygon) {
-      writePolygon((Polygon) g, attributes, level, buf);
+      writePolygon((Polygon) g, attributes, level, out);
     } else if (g instanceof MultiPoint) {
-      writeMultiPoint((MultiPoint) g, attributes, level, buf);
+      writeMultiPoint((MultiPoint) g, attributes, level, out);
     } else if (g instanceof MultiLineString) {
-      writeMultiLineString((MultiLineString) g, attributes, level, buf);
+      writeMultiLineString((MultiLineString) g, attributes, level, out);
     } else if (g instanceof MultiPolygon) {
-      writeMultiPolygon((MultiPolygon) g, attributes, level, buf);
+      writeMultiPolygon((MultiPolygon) g, attributes, level, out);
     } else if (g instanceof GeometryCollection) {
-      writeGeometryCollection((GeometryCollection) g, attributes, level, buf);
+      writeGeometryCollection((GeometryCollection) g, attributes, level, out);
     }
     // throw an error for an unknown type?
   }
 
-  private void startLine(StringBuffer buf, int level, String text) {
-    if (linePrefix != null)
-      buf.append(linePrefix);
-    buf.append(stringOfChar(' ', INDENT_SIZE * level));
-    buf.append(text);
+  /**
+   * @return the line prefix followed by the indentation of the given level
+   */
+  private String indent(int level) {
+    if (compact) {
+      return "";
+    }
+    if (level >= indents.length) {
+      String[] grown = new String[level + 8];
+      String prefix = linePrefix == null ? "" : linePrefix;
+      for (int i = 0; i < grown.length; i++) {
+        grown[i] = prefix + stringOfChar(' ', INDENT_SIZE * i);
+      }
+      indents = grown;
+    }
+    return indents[level];
+  }
+
+  private void startLine(Writer out, int level, String text) throws IOException {
+    out.write(indent(level));
+    out.write(text);
   }
 
-  private String geometryTag(String geometryName, String attributes) {
-    StringBuilder buf = new StringBuilder();
-    buf.append("<");
-    buf.append(geometryName);
+  /** Writes a line holding a single tag. */
+  private void line(Writer out, int level, String tag) throws IOException {
+    out.write(indent(level));
+    out.write(tag);
+    if (!compact) {
+      out.write('\n');
+    }
+  }
+
+  private void startTag(Writer out, int level, String geometryName,
+      String attributes) throws IOException {
+    out.write(indent(level));
+    out.write('<');
+    out.write(geometryName);
     if (attributes != null && attributes.length() > 0) {
-      buf.append(" ");
-      buf.append(attributes);
+      out.write(' ');
+      out.write(attributes);
     }
-    buf.append(">");
-    return buf.toString();
+    out.write(compact ? ">" : ">\n");
   }
 
   private String attributeString() {
@@ -215,90 +450,90 @@ public class KMLGeometryWriter {
 
   // <Point><coordinates>1195156.78946687,382069.533723461</coordinates></Point>
   private void writePoint(Point p, String attributes, int level,
-      StringBuffer buf) {
-    startLine(buf, level, geometryTag("Point", attributes) + "\n");
-    write(new Coordinate[] { p.getCoordinate() }, level + 1, buf);
-    startLine(buf, level, "</Point>\n");
+      Writer out) throws IOException {
+    startTag(out, level, "Point", attributes);
+    write(new Coordinate[] { p.getCoordinate() }, 1, level + 1, out);
+    line(out, level, "</Point>");
   }
 
   // <LineString><coordinates>1195123.37289257,381985.763974674
   // 1195120.22369473,381964.660533343
   // 1195118.14929823,381942.597718511</coordinates></LineString>
   private void writeLineString(LineString ls, String attributes, int level,
-      StringBuffer buf) {
-    startLine(buf, level, geometryTag("LineString", attributes) + "\n");
-    write(ls.getCoordinates(), level + 1, buf);
-    startLine(buf, level, "</LineString>\n");
+      Writer out) throws IOException {
+    startTag(out, level, "LineString", attributes);
+    write(ls.getCoordinates(), 2, level + 1, out);
+    line(out, level, "</LineString>");
   }
 
   // <LinearRing><coordinates>1226890.26761027,1466433.47430292
   // 1226880.59239079,1466427.03208053...></coordinates></LinearRing>
-  private void writeLinearRing(LinearRing lr, String attributes, int level,
-      StringBuffer buf) {
-    startLine(buf, level, geometryTag("LinearRing", attributes) + "\n");
-    write(lr.getCoordinates(), level + 1, buf);
-    startLine(buf, level, "</LinearRing>\n");
+  private void writeLinearRing(LineString lr, String attributes, int level,
+      Writer out) throws IOException {
+    startTag(out, level, "LinearRing", attributes);
+    write(lr.getCoordinates(), 4, level + 1, out);
+    line(out, level, "</LinearRing>");
   }
 
   private void writePolygon(Polygon p, String attributes, int level,
-      StringBuffer buf) {
-    startLine(buf, level, geometryTag("Polygon", attributes) + "\n");
+      Writer out) throws IOException {
+    startTag(out, level, "Polygon", attributes);
 
-    startLine(buf, level, "  <outerBoundaryIs>\n");
-    writeLinearRing(p.getExteriorRing(), null, level + 1, buf);
-    startLine(buf, level, "  </outerBoundaryIs>\n");
+    line(out, level + 1, "<outerBoundaryIs>");
+    writeLinearRing(p.getExteriorRing(), null, level + 1, out);
+    line(out, level + 1, "</outerBoundaryIs>");
 
     for (int t = 0; t < p.getNumInteriorRing(); t++) {
-      startLine(buf, level, "  <innerBoundaryIs>\n");
-      writeLinearRing(p.getInteriorRingN(t), null, level + 1, buf);
-      startLine(buf, level, "  </innerBoundaryIs>\n");
+      line(out, level + 1, "<innerBoundaryIs>");
+      writeLinearRing(p.getInteriorRingN(t), null, level + 1, out);
+      line(out, level + 1, "</innerBoundaryIs>");
     }
 
-    startLine(buf, level, "</Polygon>\n");
+    line(out, level, "</Polygon>");
   }
 
   private void writeMultiPoint(MultiPoint mp, String attributes, int level,
-      StringBuffer buf) {
-    startLine(buf, level, geometryTag("MultiPoint", attributes) + "\n");
+      Writer out) throws IOException {
+    startTag(out, level, "MultiPoint", attributes);
     for (int t = 0; t < mp.getNumGeometries(); t++) {
-      startLine(buf, level, "  <pointMember>\n");
-      writePoint((Point) mp.getGeometryN(t), null, level + 1, buf);
-      startLine(buf, level, "  </pointMember>\n");
+      line(out, level + 1, "<pointMember>");
+      writePoint((Point) mp.getGeometryN(t), null, level + 1, out);
+      line(out, level + 1, "</pointMember>");
     }
-    startLine(buf, level, "</MultiPoint>\n");
+    line(out, level, "</MultiPoint>");
   }
 
   private void writeMultiLineString(MultiLineString mls, String attributes,
-      int level, StringBuffer buf) {
-    startLine(buf, level, geometryTag("MultiLineString", attributes) + "\n");
+      int level, Writer out) throws IOException {
+    startTag(out, level, "MultiLineString", attributes);
     for (int t = 0; t < mls.getNumGeometries(); t++) {
-      startLine(buf, level, "  <lineStringMember>\n");
-      writeLineString((LineString) mls.getGeometryN(t), null, level + 1, buf);
-      startLine(buf, level, "  </lineStringMember>\n");
+      line(out, level + 1, "<lineStringMember>");
+      writeLineString((LineString) mls.getGeometryN(t), null, level + 1, out);
+      line(out, level + 1, "</lineStringMember>");
     }
-    startLine(buf, level, "</MultiLineString>\n");
+    line(out, level, "</MultiLineString>");
   }
 
   private void writeMultiPolygon(MultiPolygon mp, String attributes, int level,
-      StringBuffer buf) {
-    startLine(buf, level, geometryTag("MultiPolygon", attributes) + "\n");
+      Writer out) throws IOException {
+    startTag(out, level, "MultiPolygon", attributes);
     for (int t = 0; t < mp.getNumGeometries(); t++) {
-      startLine(buf, level, "  <polygonMember>\n");
-      writePolygon((Polygon) mp.getGeometryN(t), null, level + 1, buf);
-      startLine(buf, level, "  </polygonMember>\n");
+      line(out, level + 1, "<polygonMember>");
+      writePolygon((Polygon) mp.getGeometryN(t), null, level + 1, out);
+      line(out, level + 1, "</polygonMember>");
     }
-    startLine(buf, level, "</MultiPolygon>\n");
+    line(out, level, "</MultiPolygon>");
   }
 
   private void writeGeometryCollection(GeometryCollection gc,
-      String attributes, int level, StringBuffer buf) {
-    startLine(buf, level, geometryTag("MultiGeometry", attributes) + "\n");
+      String attributes, int level, Writer out) throws IOException {
+    startTag(out, level, "MultiGeometry", attributes);
     for (int t = 0; t < gc.getNumGeometries(); t++) {
-      startLine(buf, level, "  <geometryMember>\n");
-      writeGeometry(gc.getGeometryN(t), null, level + 1, buf);
-      startLine(buf, level, "  </geometryMember>\n");
+      line(out, level + 1, "<geometryMember>");
+      writeGeometry(gc.getGeometryN(t), null, level + 1, out);
+      line(out, level + 1, "</geometryMember>");
     }
-    startLine(buf, level, "</MultiGeometry>\n");
+    line(out, level, "</MultiGeometry>");
   }
 
   /**
@@ -307,54 +542,135 @@ public class KMLGeometryWriter {
    *
    * @param coords
    *          array of coordinates
+   * @param minSize
+   *          number of coordinates the geometry needs to stay valid
    */
-  private void write(Coordinate[] coords, int level, StringBuffer buf) {
-    CoordinateSystem destination = null;
-    CoordinateSystem source = null;
-
-    if (zoneInt > 0) {
-      destination = PredefinedCoordinateSystems.GEOGRAPHICS_WGS_84;
-      source = new CoordinateSystem("UTM " + zoneStr + " / WGS 84",
-          32600 + zoneInt, new UniversalTransverseMercator() {
-            {
-              setSpheroid(new Spheroid(new Radius(Radius.GRS80)));
-              setParameters(zoneInt, zoneSouth, centralMeridian);
-            }
-          });
+  private void write(Coordinate[] coords, int minSize, int level, Writer out)
+      throws IOException {
+    boolean reproject = sourceProjection != null || transform != null;
+    if (reproject) {
+      project(coords);
+    }
+    if (compact) {
+      writeCompact(coords, minSize, reproject, out);
+      return;
     }
 
-    startLine(buf, level, "<coordinates>");
+    startLine(out, level, "<coordinates>");
 
     boolean isNewLine = false;
     for (int i = 0; i < coords.length; i++) {
       if (isNewLine) {
-        startLine(buf, level, "  ");
+        startLine(out, level, "  ");
         isNewLine = false;
       }
 
-      Coordinate coord = new Coordinate(coords[i]);
-      if (source != null)
-        Reprojector.instance().reproject(coord, source, destination);
-      buf.append(coord.x);
-      buf.append(coordinateSeparator);
-      buf.append(coord.y);
-      buf.append(coordinateSeparator);
-
+      Coordinate coord = coords[i];
+      char[] tuple = this.tuple;
+      int n = formatter.format(reproject ? projected[2 * i] : coord.x, tuple,
+          0);
+      tuple[n++] = coordinateSeparator;
+      n = formatter.format(reproject ? projected[2 * i + 1] : coord.y, tuple,
+          n);
+      tuple[n++] = coordinateSeparator;
       if (Double.isNaN(coords[0].z))
-        buf.append(0.0);
+        tuple[n++] = '0';
       else
-        buf.append(coord.z);
-
-      buf.append(tupleSeparator);
+        n = formatter.format(coord.z, tuple, n);
+      tuple[n++] = tupleSeparator;
+      out.write(tuple, 0, n);
 
       // break output lines to prevent them from getting too long
       if ((i + 1) % maxCoordinatesPerLine == 0 && i < coords.length - 1) {
-        buf.append("\n");
+        out.write('\n');
         isNewLine = true;
       }
     }
 
-    buf.append("</coordinates>\n");
+    out.write("</coordinates>\n");
+  }
+
+  private void writeCompact(Coordinate[] coords, int minSize,
+      boolean reproject, Writer out) throws IOException {
+    boolean hasZ = false;
+    int distinct = coords.length > 0 ? 1 : 0;
+    for (int i = 0; i < coords.length; i++) {
+      double z = coords[i].z;
+      if (z != 0 && !Double.isNaN(z)) {
+        hasZ = true;
+      }
+      if (i > 0 && !sameAsPrevious(coords, i)) {
+        distinct++;
+      }
+    }
+    boolean skipDuplicates = distinct < coords.length && distinct >= minSize;
+
+    out.write("<coordinates>");
+    for (int i = 0; i < coords.length; i++) {
+      if (i > 0 && skipDuplicates && sameAsPrevious(coords, i)) {
+        continue;
+      }
+      char[] tuple = this.tuple;
+      int n = 0;
+      if (i > 0) {
+        tuple[n++] = tupleSeparator;
+      }
+      Coordinate coord = coords[i];
+      n = formatter.format(reproject ? projected[2 * i] : coord.x, tuple, n);
+      tuple[n++] = coordinateSeparator;
+      n = formatter.format(reproject ? projected[2 * i + 1] : coord.y, tuple,
+          n);
+      if (hasZ) {
+        tuple[n++] = coordinateSeparator;
+        if (Double.isNaN(coord.z))
+          tuple[n++] = '0';
+        else
+          n = formatter.format(coord.z, tuple, n);
+      }
+      out.write(tuple, 0, n);
+    }
+    out.write("</coordinates>");
+  }
+
+  private static boolean sameAsPrevious(Coordinate[] coords, int i) {
+    Coordinate c = coords[i];
+    Coordinate previous = coords[i - 1];
+    return c.x == previous.x && c.y == previous.y
+        && (c.z == previous.z || Double.isNaN(c.z) && Double.isNaN(previous.z));
+  }
+
+  /**
+   * Minimal unsynchronized Writer appending to a StringBuffer, used by the
+   * String based write methods.
+   */
+  private static final class StringBufferWriter extends Writer {
+    private final StringBuffer buf;
+
+    StringBufferWriter(StringBuffer buf) {
+      this.buf = buf;
+    }
+
+    public void write(int c) {
+      buf.append((char) c);
+    }
+
+    public void write(char[] cbuf, int off, int len) {
+      buf.append(cbuf, off, len);
+    }
+
+    public void write(String str) {
+      buf.append(str);
+    }
+
+    public void write(String str, int off, int len) {
+      buf.append(str, off, off + len);
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
   }
 
   // public class UniversalTransverseMercator extends Projection {
@@ -0,0 +1,248 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+package com.isa.jump.kml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * A Reader decoding a UTF-8 file which is memory-mapped window by window.
+ * <p>
+ * Handing this reader to the SAX parser lets the bytes go straight from the
+ * page cache into the parser's character buffer: there is no read() copy into
+ * a stream buffer and no charset decoder layer in between. Plain ASCII, which
+ * is the bulk of any KML file (tags and coordinates), is decoded by a tight
+ * loop; multi-byte sequences are decoded inline.
+ * <p>
+ * Only use it for files which are UTF-8 (or ASCII) encoded, see
+ * {@link #isUTF8(File)}.
+ */
+public class KMLMappedReader extends Reader {
+
+  /** size of the mapped window */
+  static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long size;
+
+  private MappedByteBuffer window;
+  private long windowStart = 0;
+  private int windowPos = 0;
+  private int windowLimit = 0;
+
+  // low surrogate which did not fit in the caller's buffer
+  private char pendingLow = 0;
+
+  public KMLMappedReader(File file) throws IOException {
+    this.file = new RandomAccessFile(file, "r");
+    this.channel = this.file.getChannel();
+    this.size = channel.size();
+    map(0);
+    // skip the byte order mark
+    if (windowLimit >= 3 && (window.get(0) & 0xFF) == 0xEF
+        && (window.get(1) & 0xFF) == 0xBB && (window.get(2) & 0xFF) == 0xBF) {
+      windowPos = 3;
+    }
+  }
+
+  private void map(long position) throws IOException {
+    windowStart = position;
+    windowPos = 0;
+    windowLimit = (int) Math.min(WINDOW_SIZE, size - position);
+    window = windowLimit > 0
+        ? channel.map(FileChannel.MapMode.READ_ONLY, position, windowLimit)
+        : null;
+  }
+
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int n = 0;
+    if (pendingLow != 0) {
+      cbuf[off + n++] = pendingLow;
+      pendingLow = 0;
+    }
+    final int end = off + len;
+    int dst = off + n;
+    while (dst < end) {
+      if (windowPos >= windowLimit) {
+        if (windowStart + windowLimit >= size) {
+          break;
+        }
+        map(windowStart + windowLimit);
+      }
+      final MappedByteBuffer w = window;
+      int pos = windowPos;
+      // ASCII fast path
+      int max = Math.min(windowLimit, pos + (end - dst));
+      while (pos < max) {
+        byte b = w.get(pos);
+        if (b < 0) {
+          break;
+        }
+        cbuf[dst++] = (char) b;
+        pos++;
+      }
+      windowPos = pos;
+      if (dst == end || pos == windowLimit) {
+        continue;
+      }
+      dst = decodeMultiByte(cbuf, dst, end);
+    }
+    int count = dst - off;
+    return count == 0 ? -1 : count;
+  }
+
+  /**
+   * Decodes the multi-byte sequence at the current position into cbuf.
+   *
+   * @return the new destination index
+   */
+  private int decodeMultiByte(char[] cbuf, int dst, int end) throws IOException {
+    int b0 = window.get(windowPos) & 0xFF;
+    int length;
+    int cp;
+    if ((b0 & 0xE0) == 0xC0) {
+      length = 2;
+      cp = b0 & 0x1F;
+    } else if ((b0 & 0xF0) == 0xE0) {
+      length = 3;
+      cp = b0 & 0x0F;
+    } else if ((b0 & 0xF8) == 0xF0) {
+      length = 4;
+      cp = b0 & 0x07;
+    } else {
+      throw new MalformedInputException(1);
+    }
+    if (windowPos + length > windowLimit) {
+      if (windowStart + windowPos + length > size) {
+        throw new MalformedInputException(length);
+      }
+      // the sequence straddles the window end: remap from its first byte
+      map(windowStart + windowPos);
+    }
+    for (int i = 1; i < length; i++) {
+      int b = window.get(windowPos + i) & 0xFF;
+      if ((b & 0xC0) != 0x80) {
+        throw new MalformedInputException(i);
+      }
+      cp = (cp << 6) | (b & 0x3F);
+    }
+    if ((length == 2 && cp < 0x80) || (length == 3 && cp < 0x800)
+        || (length == 4 && (cp < 0x10000 || cp > Character.MAX_CODE_POINT))
+        || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE)) {
+      throw new MalformedInputException(length);
+    }
+    windowPos += length;
+    if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+      cbuf[dst++] = (char) cp;
+    } else {
+      cbuf[dst++] = Character.highSurrogate(cp);
+      if (dst < end) {
+        cbuf[dst++] = Character.lowSurrogate(cp);
+      } else {
+        pendingLow = Character.lowSurrogate(cp);
+      }
+    }
+    return dst;
+  }
+
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+    file.close();
+  }
+
+  /**
+   * Checks the byte order mark and the XML declaration of a file.
+   *
+   * @return true if the file is declared UTF-8 or US-ASCII, or declares no
+   *         encoding at all and has no UTF-16/32 byte order mark
+   */
+  public static boolean isUTF8(File file) throws IOException {
+    byte[] head = new byte[256];
+    int n = 0;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      int r;
+      while (n < head.length && (r = raf.read(head, n, head.length - n)) > 0) {
+        n += r;
+      }
+    }
+    int start = 0;
+    if (n >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB
+        && (head[2] & 0xFF) == 0xBF) {
+      start = 3;
+    } else if (n >= 2 && ((head[0] & 0xFF) == 0xFE || (head[0] & 0xFF) == 0xFF
+        || head[0] == 0 || head[1] == 0)) {
+      // UTF-16 or UTF-32
+      return false;
+    }
+    String decl = new String(head, start, n - start, StandardCharsets.ISO_8859_1);
+    if (!decl.startsWith("<?xml")) {
+      return true;
+    }
+    int declEnd = decl.indexOf("?>");
+    if (declEnd < 0) {
+      return false;
+    }
+    decl = decl.substring(0, declEnd);
+    int index = decl.indexOf("encoding");
+    if (index < 0) {
+      return true;
+    }
+    int quote = index + 8;
+    while (quote < decl.length() && decl.charAt(quote) != '"'
+        && decl.charAt(quote) != '\'') {
+      quote++;
+    }
+    if (quote >= decl.length()) {
+      return false;
+    }
+    int close = decl.indexOf(decl.charAt(quote), quote + 1);
+    if (close < 0) {
+      return false;
+    }
+    String encoding = decl.substring(quote + 1, close).trim().toUpperCase(Locale.ROOT);
+    return encoding.equals("UTF-8") || encoding.equals("UTF8")
+        || encoding.equals("US-ASCII") || encoding.equals("ASCII");
+  }
+}
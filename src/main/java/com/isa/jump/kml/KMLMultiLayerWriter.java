@@ -0,0 +1,328 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import com.vividsolutions.jump.io.IllegalParametersException;
+
+/**
+ * Writes several layers into a single kml or kmz document, each layer in
+ * its own Folder, with its own Schema in the document header. The document
+ * is KML 2.2, the Placemarks of a layer holding their attributes as
+ * SchemaData of the Schema of the layer.
+ * <p>
+ * The layers are cut into batches of features which are serialized
+ * concurrently, whatever the layer they belong to, and written in layer
+ * order. The first and last batches of a layer open and close its Folder.
+ * At most twice as many batches as threads are held in memory.
+ */
+public class KMLMultiLayerWriter {
+
+  private final KMLGeometryWriter geometryWriter;
+  private final Function<AttributeType, KMLOutputPlan.Encoder> encoders;
+  private final List<String> names = new ArrayList<>();
+  private final List<FeatureCollection> layers = new ArrayList<>();
+  private boolean compact = false;
+  private boolean hilbertOrder = false;
+  private int threads = 1;
+  private int batchSize = KMLWriter.DEFAULT_BATCH_SIZE;
+  private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+  private int compressionThreads = 1;
+  private String sourceCRS = null;
+  // transform of each layer
+  private final List<KMLCoordinateTransform> transforms = new ArrayList<>();
+
+  /**
+   * @param geometryWriter
+   *          writer whose settings (projection, decimals, ...) are used
+   * @param encoders
+   *          provides the encoder of each attribute type
+   */
+  public KMLMultiLayerWriter(KMLGeometryWriter geometryWriter,
+      Function<AttributeType, KMLOutputPlan.Encoder> encoders) {
+    this.geometryWriter = geometryWriter;
+    this.encoders = encoders;
+  }
+
+  /**
+   * Adds a layer, written after the layers already added.
+   * 
+   * @param name
+   *          name of the layer, used for its Folder and Schema
+   * @param featureCollection
+   *          features of the layer
+   */
+  public void addLayer(String name, FeatureCollection featureCollection) {
+    names.add(name);
+    layers.add(featureCollection);
+  }
+
+  /**
+   * @param compact true to write the compact profile, see
+   *          {@link KMLWriter#setCompact(boolean)}
+   */
+  public void setCompact(boolean compact) {
+    this.compact = compact;
+  }
+
+  /**
+   * @param hilbertOrder true to write the features of each layer in Hilbert
+   *          order, see {@link KMLHilbertOrder}
+   */
+  public void setHilbertOrder(boolean hilbertOrder) {
+    this.hilbertOrder = hilbertOrder;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  /**
+   * @param sourceCRS coordinate system of every layer, see
+   *          {@link KMLCoordinateTransform#forLayer(FeatureSchema, String)},
+   *          null to use the coordinate system of each layer
+   */
+  public void setSourceCRS(String sourceCRS) {
+    this.sourceCRS = sourceCRS;
+  }
+
+  /**
+   * @param compressionThreads number of threads deflating a kmz file
+   */
+  public void setCompressionThreads(int compressionThreads) {
+    this.compressionThreads = Math.max(1, compressionThreads);
+  }
+
+  /** A batch of features of a layer. */
+  private static final class Batch {
+    final int layer;
+    final List<Feature> features;
+    final boolean first;
+    final boolean last;
+
+    Batch(int layer, List<Feature> features, boolean first, boolean last) {
+      this.layer = layer;
+      this.features = features;
+      this.first = first;
+      this.last = last;
+    }
+  }
+
+  /**
+   * Writes the layers.
+   * 
+   * @param fileName
+   *          kml or kmz file
+   */
+  public void write(String fileName) throws Exception {
+    KMLValueEncoder valueEncoder = new KMLValueEncoder();
+    List<KMLOutputPlan> plans = new ArrayList<>();
+    transforms.clear();
+    for (int i = 0; i < layers.size(); i++) {
+      FeatureSchema schema = layers.get(i).getFeatureSchema();
+      plans.add(KMLOutputPlan.compile(KMLWriter.makeExtendedDataTemplate(
+          schema, compact, null, schemaId(i)), schema, encoders));
+      try {
+        transforms.add(KMLCoordinateTransform.forLayer(schema, sourceCRS));
+        if (sourceCRS == null || sourceCRS.trim().length() == 0) {
+          KMLCoordinateTransform.checkSRIDs(layers.get(i).getFeatures());
+        }
+      } catch (IllegalArgumentException e) {
+        throw new IllegalParametersException("layer " + names.get(i) + ": "
+            + e.getMessage());
+      }
+    }
+    List<Batch> batches = new ArrayList<>();
+    for (int i = 0; i < layers.size(); i++) {
+      List<Feature> features = layers.get(i).getFeatures();
+      if (hilbertOrder) {
+        features = KMLHilbertOrder.sort(features);
+      }
+      int start = 0;
+      do {
+        int end = Math.min(features.size(), start + batchSize);
+        batches.add(new Batch(i, features.subList(start, end), start == 0,
+            end == features.size()));
+        start = end;
+      } while (start < features.size());
+    }
+
+    try (Writer out = KMLWriter.openWriter(fileName, compressionLevel,
+        compressionThreads, false)) {
+      writeHeader(new File(fileName).getName(), valueEncoder, out);
+      writeBatches(batches, plans, out);
+      out.write(compact ? "</Document></kml>\n" : "</Document>\n</kml>\n");
+    }
+  }
+
+  private void writeHeader(String name, KMLValueEncoder valueEncoder,
+      Writer out) throws IOException {
+    // SchemaData needs KML 2.2
+    out.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+    if (compact) {
+      out.write("<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>"
+          + "<name>");
+    } else {
+      out.write("<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n"
+          + "<Document>\n  <name>");
+    }
+    valueEncoder.writeEscaped(name, out);
+    out.write(compact ? "</name>" : "</name>\n");
+    for (int i = 0; i < layers.size(); i++) {
+      KMLOutputBuffer escaped = new KMLOutputBuffer();
+      valueEncoder.writeEscaped(names.get(i), escaped);
+      out.write(KMLWriter.getSchemaHeader(layers.get(i).getFeatureSchema(),
+          compact, escaped.toString(), schemaId(i)));
+    }
+  }
+
+  /**
+   * @return id of the Schema of a layer, which its Placemarks refer to, as
+   *         layer names need not be valid ids
+   */
+  private static String schemaId(int layer) {
+    return "layer" + (layer + 1);
+  }
+
+  private void writeBatches(List<Batch> batches, List<KMLOutputPlan> plans,
+      Writer out) throws Exception {
+    // geometry writer and value encoder of each thread
+    ThreadLocal<KMLGeometryWriter> geometryWriters = ThreadLocal
+        .withInitial(() -> new KMLGeometryWriter(geometryWriter));
+    ThreadLocal<KMLValueEncoder> valueEncoders = ThreadLocal
+        .withInitial(KMLValueEncoder::new);
+    ArrayDeque<KMLOutputBuffer> freeBuffers = new ArrayDeque<>();
+
+    if (threads == 1) {
+      KMLOutputBuffer buffer = new KMLOutputBuffer();
+      for (Batch batch : batches) {
+        serialize(batch, plans.get(batch.layer), geometryWriters.get(),
+            valueEncoders.get(), buffer);
+        buffer.writeTo(out);
+        buffer.reset();
+      }
+      return;
+    }
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(threads,
+        runnable -> {
+          Thread thread = new Thread(runnable, "kml-layer-writer-"
+              + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    ArrayDeque<Future<KMLOutputBuffer>> pending = new ArrayDeque<>();
+    try {
+      for (Batch batch : batches) {
+        if (pending.size() >= 2 * threads) {
+          freeBuffers.add(writeBatch(pending.poll(), out));
+        }
+        KMLOutputBuffer buffer = freeBuffers.isEmpty() ? new KMLOutputBuffer()
+            : freeBuffers.poll();
+        Callable<KMLOutputBuffer> task = () -> {
+          serialize(batch, plans.get(batch.layer), geometryWriters.get(),
+              valueEncoders.get(), buffer);
+          return buffer;
+        };
+        pending.add(pool.submit(task));
+      }
+      while (!pending.isEmpty()) {
+        writeBatch(pending.poll(), out);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static KMLOutputBuffer writeBatch(Future<KMLOutputBuffer> batch,
+      Writer out) throws Exception {
+    KMLOutputBuffer buffer;
+    try {
+      buffer = batch.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+    buffer.writeTo(out);
+    buffer.reset();
+    return buffer;
+  }
+
+  private void serialize(Batch batch, KMLOutputPlan plan,
+      KMLGeometryWriter batchGeometryWriter, KMLValueEncoder valueEncoder,
+      Writer out) throws IOException {
+    if (batch.first) {
+      out.write(compact ? "<Folder><name>" : "    <Folder>\n      <name>");
+      valueEncoder.writeEscaped(names.get(batch.layer), out);
+      out.write("</name>\n");
+    }
+    batchGeometryWriter.setSourceTransform(transforms.get(batch.layer),
+        sourceCRS == null || sourceCRS.trim().length() == 0);
+    for (Feature f : batch.features) {
+      plan.write(f, batchGeometryWriter, valueEncoder, out);
+    }
+    if (batch.last) {
+      out.write(compact ? "</Folder>\n" : "    </Folder>\n");
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Unsynchronized, growable in-memory Writer, reused to serialize a batch of
+ * features before it is copied to the real output.
+ */
+public class KMLOutputBuffer extends Writer {
+
+  private char[] buf;
+  private int count;
+  // buffer positions recorded by mark()
+  private int[] marks = new int[16];
+  private int markCount;
+
+  public KMLOutputBuffer() {
+    this(8192);
+  }
+
+  public KMLOutputBuffer(int capacity) {
+    buf = new char[capacity];
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+    }
+  }
+
+  public void write(int c) {
+    ensureCapacity(count + 1);
+    buf[count++] = (char) c;
+  }
+
+  public void write(char[] cbuf, int off, int len) {
+    ensureCapacity(count + len);
+    System.arraycopy(cbuf, off, buf, count, len);
+    count += len;
+  }
+
+  public void write(String str, int off, int len) {
+    ensureCapacity(count + len);
+    str.getChars(off, off + len, buf, count);
+    count += len;
+  }
+
+  /** Copies the buffered chars to another Writer. */
+  public void writeTo(Writer out) throws IOException {
+    out.write(buf, 0, count);
+  }
+
+  /** Copies a range of the buffered chars to another Writer. */
+  public void writeTo(Writer out, int start, int end) throws IOException {
+    out.write(buf, start, end - start);
+  }
+
+  /**
+   * @return the number of bytes of a range of the buffered chars encoded in
+   *         UTF-8
+   */
+  public long utf8Length(int start, int end) {
+    long length = 0;
+    for (int i = start; i < end; i++) {
+      char c = buf[i];
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isSurrogate(c)) {
+        // 4 bytes per surrogate pair
+        length += 2;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /** Records the current position, e.g. the end of a feature. */
+  public void mark() {
+    if (markCount == marks.length) {
+      marks = Arrays.copyOf(marks, markCount << 1);
+    }
+    marks[markCount++] = count;
+  }
+
+  public int getMarkCount() {
+    return markCount;
+  }
+
+  public int getMark(int i) {
+    return marks[i];
+  }
+
+  public int size() {
+    return count;
+  }
+
+  /** Empties the buffer and its marks, keeping its capacity. */
+  public void reset() {
+    count = 0;
+    markCount = 0;
+  }
+
+  public String toString() {
+    return new String(buf, 0, count);
+  }
+
+  public void flush() {
+  }
+
+  public void close() {
+  }
+}
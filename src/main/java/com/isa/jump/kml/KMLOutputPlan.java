@@ -0,0 +1,215 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.Function;
+
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import com.vividsolutions.jump.io.ParseException;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.util.Assert;
+
+/**
+ * A {@link KMLOutputTemplate} compiled against a FeatureSchema.
+ * <p>
+ * The template tokens are parsed and their columns resolved to attribute
+ * indexes once, so writing a feature only copies the literal segments and
+ * the encoded values, without any string parsing or name lookup.
+ */
+public class KMLOutputPlan {
+
+  /** Encodes an attribute value of one AttributeType into the output. */
+  public interface Encoder {
+    void write(Object value, KMLValueEncoder encoder, Writer out)
+        throws IOException;
+  }
+
+  private static final int FID = 0;
+  private static final int ATTRIBUTE = 1;
+  private static final int GEOMETRY = 2;
+  private static final int GEOMETRY_TYPE = 3;
+  private static final int STYLE = 4;
+
+  private final char[] header;
+  private final char[] footer;
+  // literal text written before each step
+  private final char[][] literals;
+  private final int[] kinds;
+  private final int[] attributeIndexes;
+  private final Encoder[] encoders;
+  // literal text closing each feature
+  private final char[] featureFooter;
+  private KMLStyleTable styles;
+
+  private KMLOutputPlan(KMLOutputTemplate template, int size) {
+    header = template.headerText.toCharArray();
+    footer = template.footerText.toCharArray();
+    featureFooter = (template.featureTextfooter + "\n").toCharArray();
+    literals = new char[size][];
+    kinds = new int[size];
+    attributeIndexes = new int[size];
+    encoders = new Encoder[size];
+  }
+
+  /**
+   * Compiles a template for features of the given schema.
+   * 
+   * @param template
+   *          the output template
+   * @param schema
+   *          schema of the features to write
+   * @param encoders
+   *          provides the encoder of each attribute type
+   */
+  public static KMLOutputPlan compile(KMLOutputTemplate template,
+      FeatureSchema schema, Function<AttributeType, Encoder> encoders)
+      throws ParseException {
+    return compile(template, schema, encoders, null);
+  }
+
+  /**
+   * Compiles a template for features of the given schema, its =STYLE tokens
+   * writing the styleUrl of the features from a style table.
+   * 
+   * @param styles
+   *          the style table, or null if the template has no =STYLE token
+   */
+  public static KMLOutputPlan compile(KMLOutputTemplate template,
+      FeatureSchema schema, Function<AttributeType, Encoder> encoders,
+      KMLStyleTable styles) throws ParseException {
+    int size = template.featureText.size();
+    KMLOutputPlan plan = new KMLOutputPlan(template, size);
+
+    for (int i = 0; i < size; i++) {
+      plan.literals[i] = template.featureText.get(i).toCharArray();
+      String token = template.codingText.get(i).trim();
+
+      if (!(token.startsWith("=")) || (token.length() < 6)) {
+        throw new ParseException("couldn't understand token '" + token
+            + "' in the output template");
+      }
+
+      token = token.substring(1).trim();
+      int index = token.indexOf(" ");
+      String cmd = index == -1 ? token : token.substring(0, index);
+
+      if (cmd.equalsIgnoreCase("column")) {
+        String column = token.substring(6).trim();
+        if (column.equalsIgnoreCase("FID")) {
+          plan.kinds[i] = FID;
+        } else {
+          int attribute = schema.getAttributeIndex(column);
+          AttributeType type = schema.getAttributeType(attribute);
+          Assert.isTrue(type != AttributeType.GEOMETRY);
+          plan.kinds[i] = ATTRIBUTE;
+          plan.attributeIndexes[i] = attribute;
+          plan.encoders[i] = encoders.apply(type);
+        }
+      } else if (cmd.equalsIgnoreCase("geometry")) {
+        plan.kinds[i] = GEOMETRY;
+      } else if (cmd.equalsIgnoreCase("geometrytype")) {
+        plan.kinds[i] = GEOMETRY_TYPE;
+      } else if (cmd.equalsIgnoreCase("style")) {
+        if (styles == null) {
+          throw new ParseException("=STYLE token without a style table");
+        }
+        if (!schema.hasAttribute(styles.getColumn())) {
+          throw new ParseException("unknown style column '"
+              + styles.getColumn() + "'");
+        }
+        plan.kinds[i] = STYLE;
+        plan.attributeIndexes[i] = schema.getAttributeIndex(styles
+            .getColumn());
+        plan.styles = styles;
+      } else {
+        throw new ParseException("couldn't understand token '" + token
+            + "' in the output template");
+      }
+    }
+    return plan;
+  }
+
+  public void writeHeader(Writer out) throws IOException {
+    out.write(header);
+  }
+
+  public void writeFooter(Writer out) throws IOException {
+    out.write(footer);
+  }
+
+  /**
+   * Writes one feature, its geometry and attribute values being written by
+   * the given geometry writer and value encoder.
+   */
+  public void write(Feature f, KMLGeometryWriter geometryWriter,
+      KMLValueEncoder valueEncoder, Writer out) throws IOException {
+    write(f, f.getGeometry(), geometryWriter, valueEncoder, out);
+  }
+
+  /**
+   * Writes one feature with another geometry, e.g. a simplified one.
+   */
+  public void write(Feature f, Geometry geometry,
+      KMLGeometryWriter geometryWriter, KMLValueEncoder valueEncoder,
+      Writer out) throws IOException {
+    for (int i = 0; i < kinds.length; i++) {
+      out.write(literals[i]);
+      switch (kinds[i]) {
+      case FID:
+        valueEncoder.writeLong(f.getID(), out);
+        break;
+      case ATTRIBUTE:
+        Object value = f.getAttribute(attributeIndexes[i]);
+        if (value != null) {
+          encoders[i].write(value, valueEncoder, out);
+        }
+        break;
+      case GEOMETRY:
+        geometryWriter.write(geometry, out);
+        break;
+      case GEOMETRY_TYPE:
+        out.write(geometry.getGeometryType());
+        break;
+      case STYLE:
+        out.write(styles.getStyleUrl(f.getAttribute(attributeIndexes[i])));
+        break;
+      }
+    }
+    out.write(featureFooter);
+  }
+}
@@ -36,8 +36,15 @@
 package com.isa.jump.kml;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import com.vividsolutions.jump.io.*;
 
 public class KMLOutputTemplate {
@@ -50,10 +57,60 @@ public class KMLOutputTemplate {
     int lineNumber = 0;
     String streamName;
 
+    // templates loaded from files, by absolute path
+    private static final Map<String, CachedTemplate> cache = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_TEMPLATES = 64;
+
+    private static final class CachedTemplate {
+        final long lastModified;
+        final long length;
+        final KMLOutputTemplate template;
+
+        CachedTemplate(long lastModified, long length, KMLOutputTemplate template) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.template = template;
+        }
+    }
+
     /** constructor**/
     public KMLOutputTemplate() {
     }
 
+    /**
+     * Loads a template file. The template is parsed once and shared as long
+     * as the file keeps its modification time and length, so it must not be
+     * modified.
+     *@param file template file
+     */
+    public static KMLOutputTemplate load(File file) throws Exception {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path,
+            BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String key = path.toString();
+        CachedTemplate cached = cache.get(key);
+
+        if ((cached != null) && (cached.lastModified == lastModified)
+            && (cached.length == attributes.size())) {
+            return cached.template;
+        }
+
+        KMLOutputTemplate template = new KMLOutputTemplate();
+
+        try (InputStream in = Files.newInputStream(path)) {
+            template.load(in, file.getPath());
+        }
+
+        if (cache.size() >= MAX_CACHED_TEMPLATES) {
+            cache.clear();
+        }
+
+        cache.put(key, new CachedTemplate(lastModified, attributes.size(),
+                template));
+        return template;
+    }
+
     /** sets the HeaderText for the Outputtemplate */
     public void setHeaderText(String text) {
         headerText = text;
@@ -99,6 +156,8 @@ public class KMLOutputTemplate {
 
     /**
      *Main function - parse a GMLOuputTemplate.
+     *The text is accumulated in builders, so parsing is linear in the size
+     *of the template, and a line may hold several tags.
      *@param inputStream actual reader to read from
      *@param readerName name of the stream (for error reporting)
      */
@@ -107,115 +166,110 @@ public class KMLOutputTemplate {
         int index;
         int index2;
         String line;
-        boolean keepgoing;
         String token;
-        String textAccum;
-        boolean justFoundTag = false;
         InputStreamReader isr = new InputStreamReader(inputStream);
         BufferedReader buffRead = new BufferedReader(isr);
 
         streamName = readerName;
 
         // find the header 
-        headerText = "";
-        keepgoing = true;
-        line = "";
-        index = 0;
-
-        while (keepgoing && ((line = getLine(buffRead)) != null)) {
-            if ((index = line.indexOf("<%")) != -1) {
-                //found a "<%" tag, look for the "%>" tag
-                index2 = line.indexOf("%>", index);
-
-                if (index2 == -1) {
-                    throw new ParseException("While trying to find the GML output header, found a <%, but no %>",
-                        streamName, lineNumber, index);
-                }
-
-                token = line.substring(index + 2, index2);
-                token = token.trim();
+        StringBuilder header = new StringBuilder();
 
-                if (!(token.equalsIgnoreCase("FEATURE"))) {
-                    throw new ParseException("While trying to find the GML output header, found a <%..%> that isnt a <%FEATURE%>",
-                        streamName, lineNumber, index);
-                }
+        while (true) {
+            line = getLine(buffRead);
 
-                keepgoing = false;
-                headerText = headerText + line.substring(0, index);
-                line = line.substring(index2 + 2);
-            } else {
-                headerText = headerText + line + "\n";
+            if (line == null) {
+                throw new ParseException("Unexpected EOF while looking for header",
+                    streamName, lineNumber, 0);
             }
-        }
 
-        if (line == null) {
-            throw new ParseException("Unexpected EOF while looking for header",
-                streamName, lineNumber, index);
-        }
+            if ((index = line.indexOf("<%")) == -1) {
+                header.append(line).append('\n');
+                continue;
+            }
 
-        //find the feature text
-        AllFeatureText = "";
-        keepgoing = true;
-        textAccum = "";
+            //found a "<%" tag, look for the "%>" tag
+            index2 = line.indexOf("%>", index);
 
-        while (keepgoing) {
-            if ((index = line.indexOf("<%")) != -1) {
-                //found a "<%" tag, look for the "%>" tag
-                index2 = line.indexOf("%>", index);
+            if (index2 == -1) {
+                throw new ParseException("While trying to find the GML output header, found a <%, but no %>",
+                    streamName, lineNumber, index);
+            }
 
-                if (index2 == -1) {
-                    throw new ParseException("While looking at the GML feature text, found a <%, but no %>",
-                        streamName, lineNumber, index);
-                }
+            token = line.substring(index + 2, index2).trim();
 
-                token = line.substring(index + 2, index2).trim();
-
-                if (token.equalsIgnoreCase("ENDFEATURE")) {
-                    keepgoing = false;
-                    AllFeatureText = AllFeatureText + line.substring(0, index);
-                    featureTextfooter = textAccum + line.substring(0, index);
-                    line = line.substring(index2 + 2);
-                } else {
-                    //handle a part of the feature spec\
-                    if (!(validop(token))) {
-                        throw new ParseException("invalid token in <%..%> :" +
-                            token, streamName, lineNumber, index);
-                    }
-
-                    justFoundTag = true;
-
-                    String pre = textAccum + line.substring(0, index);
-                    textAccum = line.substring(index2 + 2);
-                    featureText.add(pre);
-                    codingText.add(token);
-                }
+            if (!(token.equalsIgnoreCase("FEATURE"))) {
+                throw new ParseException("While trying to find the GML output header, found a <%..%> that isnt a <%FEATURE%>",
+                    streamName, lineNumber, index);
             }
 
-            if (keepgoing) {
-                AllFeatureText = AllFeatureText + line + "\n";
+            header.append(line, 0, index);
+            line = line.substring(index2 + 2);
+            break;
+        }
 
-                if (!(justFoundTag)) {
-                    textAccum = textAccum + line + "\n";
-                } else {
-                    justFoundTag = false; //textAccum already has a portion of line in it.
-                    textAccum = textAccum + "\n";
-                }
+        headerText = header.toString();
+
+        //find the feature text, each tag ending the text before it
+        StringBuilder allFeature = new StringBuilder();
+        StringBuilder textAccum = new StringBuilder();
+        int from = 0;
 
+        while (true) {
+            if ((index = line.indexOf("<%", from)) == -1) {
+                textAccum.append(line, from, line.length()).append('\n');
+                allFeature.append(line).append('\n');
                 line = getLine(buffRead);
+                from = 0;
 
                 if (line == null) {
                     throw new ParseException("Unexpected EOF while looking for feature",
-                        streamName, lineNumber, index);
+                        streamName, lineNumber, 0);
                 }
+
+                continue;
             }
+
+            //found a "<%" tag, look for the "%>" tag
+            index2 = line.indexOf("%>", index);
+
+            if (index2 == -1) {
+                throw new ParseException("While looking at the GML feature text, found a <%, but no %>",
+                    streamName, lineNumber, index);
+            }
+
+            token = line.substring(index + 2, index2).trim();
+            textAccum.append(line, from, index);
+
+            if (token.equalsIgnoreCase("ENDFEATURE")) {
+                allFeature.append(line, 0, index);
+                featureTextfooter = textAccum.toString();
+                line = line.substring(index2 + 2);
+                break;
+            }
+
+            //handle a part of the feature spec
+            if (!(validop(token))) {
+                throw new ParseException("invalid token in <%..%> :" +
+                    token, streamName, lineNumber, index);
+            }
+
+            featureText.add(textAccum.toString());
+            codingText.add(token);
+            textAccum.setLength(0);
+            from = index2 + 2;
         }
 
+        AllFeatureText = allFeature.toString();
+
         // grab the footer
-        footerText = line;
+        StringBuilder footer = new StringBuilder(line);
 
         while ((line = getLine(buffRead)) != null) {
-            footerText = footerText + line + "\n";
+            footer.append(line).append('\n');
         }
+
+        footerText = footer.toString();
     }
 
     /**
@@ -278,6 +332,7 @@ public class KMLOutputTemplate {
         op2 = op2.substring(1);
         op2 = op2.trim();
 
-        return (op2.startsWith("column") || op2.startsWith("geometry"));
+        return (op2.startsWith("column") || op2.startsWith("geometry")
+            || op2.startsWith("style"));
     }
 }
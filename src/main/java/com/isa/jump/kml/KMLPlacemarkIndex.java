@@ -0,0 +1,467 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vividsolutions.jump.feature.FeatureCollection;
+
+/**
+ * Byte offsets of the Placemarks of a kml file, so that a few Placemarks can
+ * be read by ordinal or by <code>id</code> attribute without parsing the
+ * whole file.
+ * <p>
+ * The index is built by a {@link KMLScanner} pass and kept in a sidecar file
+ * next to the kml file (<code>file.kml.idx</code>). The sidecar records the
+ * length and modification time of the kml file and is rebuilt by
+ * {@link #forFile(String)} once it is out of date.
+ * <p>
+ * To read Placemarks, the bytes in front of the first Placemark (xml
+ * declaration, Schema, styles, ...) are followed by the requested Placemarks
+ * and by the end tags of the elements enclosing the first Placemark. That
+ * document is then parsed by {@link KMLReader}.
+ * <p>
+ * Offsets only make sense in an uncompressed file, kmz and gz files cannot
+ * be indexed.
+ */
+public class KMLPlacemarkIndex {
+
+  /** extension appended to the kml file name to name the index file */
+  public static final String EXTENSION = ".idx";
+
+  private static final int MAGIC = 0x4B4D4C49; // "KMLI"
+  private static final int VERSION = 1;
+
+  private final File file;
+  private long fileLength;
+  private long lastModified;
+  private long headerLength; // offset of the first Placemark
+  private String trailer; // end tags closing the header
+  private int count;
+  private long[] offsets;
+  private int[] lengths;
+  private String[] ids; // null if no Placemark has an id
+  private Map<String, Integer> idMap;
+
+  private KMLPlacemarkIndex(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Returns the index of a kml file, loaded from its index file if that is
+   * up to date, otherwise built and saved. If the index file cannot be
+   * written the index is still returned.
+   *
+   * @param fileName name of the kml file
+   */
+  public static KMLPlacemarkIndex forFile(String fileName) throws IOException {
+    File file = new File(fileName);
+    File indexFile = new File(fileName + EXTENSION);
+    if (indexFile.isFile()) {
+      try {
+        KMLPlacemarkIndex index = load(file, indexFile);
+        if (index.isCurrent()) {
+          return index;
+        }
+      } catch (IOException e) {
+        // unreadable or older format, rebuild it
+      }
+    }
+    KMLPlacemarkIndex index = build(fileName);
+    try {
+      index.save(indexFile);
+    } catch (IOException e) {
+      // read-only directory, the index only lives in memory
+    }
+    return index;
+  }
+
+  /**
+   * Builds the index of a kml file with a quick scan.
+   *
+   * @param fileName name of the kml file
+   */
+  public static KMLPlacemarkIndex build(String fileName) throws IOException {
+    if (fileName.matches("(?i).*\\.(kmz|gz)")) {
+      throw new IllegalArgumentException(
+          "compressed files cannot be indexed: " + fileName);
+    }
+    KMLPlacemarkIndex index = new KMLPlacemarkIndex(new File(fileName));
+    index.fileLength = index.file.length();
+    index.lastModified = index.file.lastModified();
+    IndexHandler handler = index.new IndexHandler();
+    try (InputStream is = new BufferedInputStream(new FileInputStream(
+        index.file))) {
+      new KMLScanner(handler).scan(is);
+    }
+    handler.finish();
+    return index;
+  }
+
+  /**
+   * Loads the index of a kml file from its index file, without checking that
+   * it is up to date.
+   *
+   * @param fileName name of the kml file
+   */
+  public static KMLPlacemarkIndex load(String fileName) throws IOException {
+    return load(new File(fileName), new File(fileName + EXTENSION));
+  }
+
+  private static KMLPlacemarkIndex load(File file, File indexFile)
+      throws IOException {
+    KMLPlacemarkIndex index = new KMLPlacemarkIndex(file);
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(indexFile)))) {
+      if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+        throw new IOException("not a Placemark index: " + indexFile);
+      }
+      index.fileLength = in.readLong();
+      index.lastModified = in.readLong();
+      index.headerLength = in.readLong();
+      index.trailer = in.readUTF();
+      int n = in.readInt();
+      index.count = n;
+      index.offsets = new long[n];
+      index.lengths = new int[n];
+      long offset = index.headerLength;
+      for (int i = 0; i < n; i++) {
+        offset += readVarLong(in);
+        index.offsets[i] = offset;
+        index.lengths[i] = (int) readVarLong(in);
+        offset += index.lengths[i];
+      }
+      if (in.readBoolean()) {
+        index.ids = new String[n];
+        for (int i = 0; i < n; i++) {
+          String id = in.readUTF();
+          index.ids[i] = id.isEmpty() ? null : id;
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Writes the index file. Offsets are stored as the gap to the end of the
+   * previous Placemark, which mostly fits in one or two bytes.
+   *
+   * @param indexFile file to write
+   */
+  public void save(File indexFile) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(indexFile)))) {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeLong(fileLength);
+      out.writeLong(lastModified);
+      out.writeLong(headerLength);
+      out.writeUTF(trailer);
+      out.writeInt(count);
+      long end = headerLength;
+      for (int i = 0; i < count; i++) {
+        writeVarLong(out, offsets[i] - end);
+        writeVarLong(out, lengths[i]);
+        end = offsets[i] + lengths[i];
+      }
+      out.writeBoolean(ids != null);
+      if (ids != null) {
+        for (String id : ids) {
+          out.writeUTF(id == null ? "" : id);
+        }
+      }
+    }
+  }
+
+  /** @return true if the kml file did not change since it was indexed */
+  public boolean isCurrent() {
+    return file.length() == fileLength && file.lastModified() == lastModified;
+  }
+
+  /** @return number of Placemarks */
+  public int size() {
+    return count;
+  }
+
+  /** @return byte offset of the Placemark with the given ordinal */
+  public long getOffset(int ordinal) {
+    return offsets[ordinal];
+  }
+
+  /** @return length in bytes of the Placemark with the given ordinal */
+  public int getLength(int ordinal) {
+    return lengths[ordinal];
+  }
+
+  /** @return the raw id attribute of a Placemark, or null */
+  public String getId(int ordinal) {
+    return ids == null ? null : ids[ordinal];
+  }
+
+  /**
+   * @param id raw value of the id attribute
+   * @return ordinal of the first Placemark with this id, or -1
+   */
+  public synchronized int indexOf(String id) {
+    if (ids == null) {
+      return -1;
+    }
+    if (idMap == null) {
+      idMap = new HashMap<>(count * 4 / 3 + 1);
+      for (int i = count - 1; i >= 0; i--) {
+        if (ids[i] != null) {
+          idMap.put(ids[i], i);
+        }
+      }
+    }
+    Integer ordinal = idMap.get(id);
+    return ordinal == null ? -1 : ordinal;
+  }
+
+  /**
+   * Reads the Placemarks with the given ordinals, in the given order.
+   *
+   * @param reader reader with its options set
+   * @param ordinals ordinals of the Placemarks
+   * @return the features read
+   */
+  public FeatureCollection read(KMLReader reader, int[] ordinals)
+      throws Exception {
+    for (int ordinal : ordinals) {
+      if (ordinal < 0 || ordinal >= count) {
+        throw new IndexOutOfBoundsException("Placemark " + ordinal + " of "
+            + count);
+      }
+    }
+    try (InputStream is = open(ordinals)) {
+      return reader.read(is, file.getPath());
+    }
+  }
+
+  /**
+   * Reads the Placemarks with the given ids, in the given order. Unknown ids
+   * are ignored.
+   *
+   * @param reader reader with its options set
+   * @param ids raw values of the id attributes
+   * @return the features read
+   */
+  public FeatureCollection read(KMLReader reader, String... ids)
+      throws Exception {
+    int[] ordinals = new int[ids.length];
+    int n = 0;
+    for (String id : ids) {
+      int ordinal = indexOf(id);
+      if (ordinal >= 0) {
+        ordinals[n++] = ordinal;
+      }
+    }
+    return read(reader, Arrays.copyOf(ordinals, n));
+  }
+
+  /**
+   * Opens a stream over a document made of the header, the given Placemarks
+   * and the trailer.
+   */
+  InputStream open(int[] ordinals) throws IOException {
+    return new RangeInputStream(ordinals);
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value)
+      throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("malformed Placemark index");
+  }
+
+  /** reads the header, the Placemark ranges and the trailer in turn */
+  private class RangeInputStream extends InputStream {
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int[] ordinals;
+    private final byte[] trailerBytes;
+    private int range = -1; // -1 header, then ordinals, then trailer
+    private long position = 0;
+    private long end;
+
+    RangeInputStream(int[] ordinals) throws IOException {
+      this.raf = new RandomAccessFile(file, "r");
+      this.channel = raf.getChannel();
+      this.ordinals = ordinals;
+      this.trailerBytes = trailer.getBytes(StandardCharsets.UTF_8);
+      this.end = headerLength;
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (position >= end) {
+        if (!nextRange()) {
+          return -1;
+        }
+      }
+      if (range > ordinals.length) {
+        int n = (int) Math.min(len, end - position);
+        System.arraycopy(trailerBytes, (int) position, b, off, n);
+        position += n;
+        return n;
+      }
+      int n = channel.read(ByteBuffer.wrap(b, off,
+          (int) Math.min(len, end - position)), position);
+      if (n < 0) {
+        throw new IOException(file + " is shorter than its Placemark index");
+      }
+      position += n;
+      return n;
+    }
+
+    private boolean nextRange() {
+      range++;
+      if (range < ordinals.length) {
+        position = offsets[ordinals[range]];
+        end = position + lengths[ordinals[range]];
+      } else if (range == ordinals.length) {
+        range++;
+        position = 0;
+        end = trailerBytes.length;
+      } else {
+        return false;
+      }
+      return true;
+    }
+
+    public void close() throws IOException {
+      raf.close();
+    }
+  }
+
+  private class IndexHandler implements KMLScanner.Handler {
+    private final List<String> open = new ArrayList<>();
+    private long[] starts = new long[1024];
+    private int[] sizes = new int[1024];
+    private String[] names = new String[1024];
+    private boolean anyId = false;
+    private int placemarkDepth = -1;
+
+    public boolean startElement(KMLScanner.Tag tag) {
+      if (placemarkDepth < 0 && tag.getLocalName().equals("Placemark")) {
+        if (count == 0) {
+          headerLength = tag.getOffset();
+          StringBuilder end = new StringBuilder();
+          for (int i = open.size() - 1; i >= 0; i--) {
+            end.append("</").append(open.get(i)).append('>');
+          }
+          trailer = end.append('\n').toString();
+        }
+        if (count == starts.length) {
+          starts = Arrays.copyOf(starts, count * 2);
+          sizes = Arrays.copyOf(sizes, count * 2);
+          names = Arrays.copyOf(names, count * 2);
+        }
+        starts[count] = tag.getOffset();
+        names[count] = tag.getAttribute("id");
+        anyId |= names[count] != null;
+        placemarkDepth = open.size();
+      }
+      open.add(tag.getName());
+      return false;
+    }
+
+    public void endElement(String name, long endOffset) throws IOException {
+      open.remove(open.size() - 1);
+      if (open.size() == placemarkDepth) {
+        long length = endOffset - starts[count];
+        if (length > Integer.MAX_VALUE) {
+          throw new IOException("Placemark " + count + " is too large");
+        }
+        sizes[count++] = (int) length;
+        placemarkDepth = -1;
+      }
+    }
+
+    public void text(byte[] buf, int start, int end) {
+    }
+
+    void finish() {
+      if (placemarkDepth >= 0) {
+        // truncated file, the last Placemark has no end
+        placemarkDepth = -1;
+      }
+      if (count == 0) {
+        headerLength = fileLength;
+        trailer = "";
+      }
+      offsets = Arrays.copyOf(starts, count);
+      lengths = Arrays.copyOf(sizes, count);
+      ids = anyId ? Arrays.copyOf(names, count) : null;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+package com.isa.jump.kml;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.swing.BorderFactory;
+import javax.swing.JFileChooser;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.SwingWorker;
+
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * File chooser accessory showing a {@link KMLSummary} of the selected kml or
+ * kmz file. The scan runs in the background and is cancelled as soon as
+ * another file is selected or the chooser is closed.
+ */
+public class KMLPreviewPanel extends JPanel implements PropertyChangeListener {
+
+  private static final String PREVIEW = KMLDriverConfiguration.I18N.get("preview");
+  private static final String SCANNING = KMLDriverConfiguration.I18N.get("preview-scanning");
+  private static final String FEATURES = KMLDriverConfiguration.I18N.get("preview-features");
+  private static final String VERTICES = KMLDriverConfiguration.I18N.get("preview-vertices");
+  private static final String ENVELOPE = KMLDriverConfiguration.I18N.get("preview-envelope");
+  private static final String ATTRIBUTES = KMLDriverConfiguration.I18N.get("preview-attributes");
+
+  private final JTextArea text = new JTextArea();
+  private SummaryWorker worker = null;
+
+  public KMLPreviewPanel() {
+    super(new BorderLayout());
+    setBorder(BorderFactory.createTitledBorder(PREVIEW));
+    text.setEditable(false);
+    text.setLineWrap(true);
+    text.setWrapStyleWord(true);
+    text.setOpaque(false);
+    JScrollPane scrollPane = new JScrollPane(text);
+    scrollPane.setBorder(null);
+    add(scrollPane, BorderLayout.CENTER);
+    setPreferredSize(new Dimension(220, 200));
+  }
+
+  /**
+   * Installs a preview panel as accessory of the chooser, unless it already
+   * has one. The chooser may be shared with other formats; files which are
+   * not kml or kmz are simply not previewed.
+   */
+  public static void install(JFileChooser chooser) {
+    if (chooser.getAccessory() instanceof KMLPreviewPanel) {
+      return;
+    }
+    KMLPreviewPanel panel = new KMLPreviewPanel();
+    chooser.setAccessory(panel);
+    chooser.addPropertyChangeListener(JFileChooser.SELECTED_FILE_CHANGED_PROPERTY, panel);
+  }
+
+  public void propertyChange(PropertyChangeEvent evt) {
+    preview((File) evt.getNewValue());
+  }
+
+  private void preview(File file) {
+    cancel();
+    text.setText("");
+    if (file == null || !file.isFile()
+        || !file.getName().matches("(?i).*\\.(kml|kmz)")) {
+      return;
+    }
+    text.setText(SCANNING);
+    worker = new SummaryWorker(file);
+    worker.execute();
+  }
+
+  private void cancel() {
+    if (worker != null) {
+      worker.cancelScan();
+      worker = null;
+    }
+  }
+
+  public void removeNotify() {
+    cancel();
+    super.removeNotify();
+  }
+
+  private static String format(KMLSummary summary) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(FEATURES).append(": ").append(summary.getFeatureCount()).append('\n');
+    for (Map.Entry<String, Long> entry : summary.getGeometryCounts().entrySet()) {
+      sb.append("  ").append(entry.getKey()).append(": ")
+          .append(entry.getValue()).append('\n');
+    }
+    sb.append(VERTICES).append(": ").append(summary.getVertexCount()).append('\n');
+    Envelope env = summary.getEnvelope();
+    if (env != null) {
+      sb.append(ENVELOPE).append(":\n  ")
+          .append(env.getMinX()).append(", ").append(env.getMinY()).append("\n  ")
+          .append(env.getMaxX()).append(", ").append(env.getMaxY()).append('\n');
+    }
+    sb.append(ATTRIBUTES).append(":\n");
+    for (String name : summary.getAttributeNames()) {
+      sb.append("  ").append(name).append('\n');
+    }
+    return sb.toString();
+  }
+
+  private class SummaryWorker extends SwingWorker<KMLSummary, Void> {
+    private final File file;
+    private final AtomicReference<KMLScanner> scanner = new AtomicReference<>();
+    private volatile boolean cancelled = false;
+
+    SummaryWorker(File file) {
+      this.file = file;
+    }
+
+    void cancelScan() {
+      cancelled = true;
+      KMLScanner s = scanner.get();
+      if (s != null) {
+        s.cancel();
+      }
+    }
+
+    protected KMLSummary doInBackground() throws Exception {
+      return KMLSummary.scan(file.getPath(), s -> {
+        scanner.set(s);
+        if (cancelled) {
+          s.cancel();
+        }
+      });
+    }
+
+    protected void done() {
+      if (cancelled || worker != this) {
+        return;
+      }
+      try {
+        text.setText(format(get()));
+      } catch (Exception e) {
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        text.setText(cause.toString());
+      }
+      text.setCaretPosition(0);
+    }
+  }
+}
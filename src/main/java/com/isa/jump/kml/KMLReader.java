@@ -35,10 +35,17 @@ package com.isa.jump.kml;
 import java.io.*;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.locationtech.jts.geom.*;
 import org.openjump.util.UriUtil;
@@ -51,7 +58,6 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import com.vividsolutions.jump.coordsys.CoordinateSystem;
 import com.vividsolutions.jump.coordsys.Radius;
-import com.vividsolutions.jump.coordsys.Reprojector;
 import com.vividsolutions.jump.coordsys.Spheroid;
 import com.vividsolutions.jump.coordsys.impl.PredefinedCoordinateSystems;
 import com.vividsolutions.jump.feature.BasicFeature;
@@ -75,6 +81,12 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
   private static final String featureElement = "Placemark";
   private static final String simplefield = "SimpleField";
 
+  // plain kml files from this size on are memory-mapped
+  static final long MAPPED_INPUT_THRESHOLD = 16 * 1024 * 1024;
+
+  // number of Placemarks whose geometries are built by one task
+  static final int READ_BATCH_SIZE = 128;
+
   private CoordinateSystem destination = null;
   private CoordinateSystem source = null;
   private double centralMeridian = 0;
@@ -86,6 +98,21 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
 
   List<Exception> exceptions = new ArrayList<>();
 
+  // shares repeated attribute values, null if disabled
+  private KMLValueDictionary valueDictionary = null;
+  private int valueDictionaryCapacity = KMLValueDictionary.DEFAULT_CAPACITY;
+
+  // preview options: first N features, or a uniform sample
+  private int maxFeatures = -1;
+  private int sampleSize = -1;
+  private double sampleFraction = -1;
+  private long sampleSeed = System.nanoTime();
+
+  // threads building the geometries, 1 to build them while parsing
+  private int readThreads = 1;
+  // threads inflating the members of a gzip file
+  private int inflateThreads = Runtime.getRuntime().availableProcessors();
+
   public KMLReader(boolean projectToUTM) {
     super();
     xr = new org.apache.xerces.parsers.SAXParser();
@@ -178,9 +205,181 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
           "call to GMLReader.read() has DataProperties w/o a InputFile specified");
     }
 
+    String dictionarySize = dp.getProperty("Value_Dictionary_Size");
+    if (dictionarySize != null && dictionarySize.length() > 0) {
+      setValueDictionaryCapacity(Integer.parseInt(dictionarySize.trim()));
+    }
+
+    setReadThreads(intProperty(dp, "Read_Threads", 1));
+    setInflateThreads(intProperty(dp, "Inflate_Threads",
+        Runtime.getRuntime().availableProcessors()));
+    setMaxFeatures(intProperty(dp, "Max_Features", -1));
+    setSampleSize(intProperty(dp, "Sample_Size", -1));
+    String fraction = dp.getProperty("Sample_Fraction");
+    setSampleFraction(fraction == null || fraction.trim().isEmpty() ? -1
+        : Double.parseDouble(fraction.trim()));
+    String seed = dp.getProperty("Sample_Seed");
+    setSampleSeed(seed == null || seed.trim().isEmpty() ? System.nanoTime()
+        : Long.parseLong(seed.trim()));
+    if (sampleSize >= 0 && sampleFraction >= 0) {
+      throw new IllegalParametersException(
+          "Sample_Size and Sample_Fraction cannot be used together");
+    }
+
     GMLInputTemplate template = makeTemplate();
     setInputTemplate(template);
 
+    String ordinals = dp.getProperty("Placemark_Ordinals");
+    String ids = dp.getProperty("Placemark_Ids");
+    if ((ordinals != null && !ordinals.trim().isEmpty())
+        || (ids != null && !ids.trim().isEmpty())) {
+      try {
+        KMLPlacemarkIndex index = KMLPlacemarkIndex.forFile(inputFname);
+        if (ordinals != null && !ordinals.trim().isEmpty()) {
+          return index.read(this, parseOrdinals(ordinals));
+        }
+        return index.read(this, ids.trim().split("\\s*,\\s*"));
+      } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+        throw new IllegalParametersException(e.getMessage());
+      }
+    }
+
+    if (sampleSize >= 0 || sampleFraction >= 0) {
+      FeatureCollection sample = readIndexedSample(inputFname);
+      if (sample != null) {
+        return sample;
+      }
+    }
+
+    File file = new File(inputFname);
+    if (!inputFname.matches("(?i).*\\.(kmz|gz)")
+        && file.length() >= MAPPED_INPUT_THRESHOLD
+        && !"false".equalsIgnoreCase(dp.getProperty("Memory_Mapped"))
+        && KMLMappedReader.isUTF8(file)) {
+      try (Reader reader = new KMLMappedReader(file)) {
+        return read(reader, inputFname);
+      }
+    }
+
+    InputStream is = openInput(inputFname, inflateThreads);
+    fc = read(is, inputFname);
+    if (is != null) {
+      is.close();
+    }
+    //Envelope env = fc.getEnvelope();
+    return fc;
+  }
+
+  private static int intProperty(DriverProperties dp, String key, int defaultValue) {
+    String value = dp.getProperty(key);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return Integer.parseInt(value.trim());
+  }
+
+  /**
+   * Parses a list of Placemark ordinals like "3, 10-12".
+   */
+  private static int[] parseOrdinals(String list)
+      throws IllegalParametersException {
+    int[] ordinals = new int[16];
+    int n = 0;
+    try {
+      for (String item : list.trim().split("\\s*,\\s*")) {
+        int dash = item.indexOf('-', 1);
+        int first = Integer.parseInt((dash < 0 ? item : item.substring(0, dash))
+            .trim());
+        int last = dash < 0 ? first : Integer.parseInt(item.substring(dash + 1)
+            .trim());
+        for (int i = first; i <= last; i++) {
+          if (n == ordinals.length) {
+            ordinals = java.util.Arrays.copyOf(ordinals, n * 2);
+          }
+          ordinals[n++] = i;
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalParametersException("invalid Placemark_Ordinals: "
+          + list);
+    }
+    return java.util.Arrays.copyOf(ordinals, n);
+  }
+
+  /**
+   * Draws the sample from an up to date Placemark index of the file, so
+   * only the sampled Placemarks are parsed. The index is not built here:
+   * without a current index the sample is taken while reading the whole
+   * file.
+   *
+   * @return the sampled features, or null if the file has no current index
+   */
+  private FeatureCollection readIndexedSample(String fileName) throws Exception {
+    if (fileName.matches("(?i).*\\.(kmz|gz)")
+        || !new File(fileName + KMLPlacemarkIndex.EXTENSION).isFile()) {
+      return null;
+    }
+    KMLPlacemarkIndex index;
+    try {
+      index = KMLPlacemarkIndex.load(fileName);
+    } catch (IOException e) {
+      return null;
+    }
+    if (!index.isCurrent()) {
+      return null;
+    }
+    int[] ordinals = sampleOrdinals(index.size());
+    int size = sampleSize;
+    double fraction = sampleFraction;
+    sampleSize = -1;
+    sampleFraction = -1;
+    try {
+      return index.read(this, ordinals);
+    } finally {
+      sampleSize = size;
+      sampleFraction = fraction;
+    }
+  }
+
+  /**
+   * Picks the ordinals of the sample among <code>count</code> Placemarks,
+   * in file order.
+   */
+  private int[] sampleOrdinals(int count) {
+    SplittableRandom sampler = new SplittableRandom(sampleSeed);
+    java.util.BitSet chosen = new java.util.BitSet(count);
+    if (sampleSize >= 0) {
+      // Floyd's algorithm, k distinct ordinals in k draws
+      for (int j = count - Math.min(sampleSize, count); j < count; j++) {
+        int t = sampler.nextInt(j + 1);
+        chosen.set(chosen.get(t) ? j : t);
+      }
+    } else {
+      for (int i = 0; i < count; i++) {
+        if (sampler.nextDouble() < sampleFraction) {
+          chosen.set(i);
+        }
+      }
+    }
+    return chosen.stream().toArray();
+  }
+
+  /**
+   * Opens a kml file, the first kml entry of a kmz file, or a gzip
+   * compressed kml file which is inflated by several threads.
+   *
+   * @param inputFname name of the kml, kmz or gz file
+   * @return a buffered stream, or null if a kmz file contains no kml entry
+   */
+  static InputStream openInput(String inputFname) throws Exception {
+    return openInput(inputFname, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param inflateThreads number of threads inflating a gzip file
+   */
+  static InputStream openInput(String inputFname, int inflateThreads)
+      throws Exception {
     InputStream is = null;
     if (inputFname.matches("(?i).*\\.(kmz)")) {
       List<URI> entries = CompressedFile.listEntries(new File(inputFname));
@@ -196,16 +395,12 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
           break;
         }
       }
+    } else if (inputFname.matches("(?i).*\\.(gz)")) {
+      is = new ParallelGZIPInputStream(new File(inputFname), inflateThreads);
     } else {
       is = new BufferedInputStream(new FileInputStream(inputFname));
     }
-
-    fc = read(is, inputFname);
-    if (is != null) {
-      is.close();
-    }
-    //Envelope env = fc.getEnvelope();
-    return fc;
+    return is;
   }
 
   /**
@@ -226,39 +421,36 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
   static int STATE_WAIT_FEATURE_TAG = 2;
   GMLInputTemplate GMLinput = null;
   int STATE = STATE_INIT; // list of points
-  Point apoint;
   Feature currentFeature;
   int currentGeometryNumb = 1;
   FeatureCollection fc;
   FeatureSchema fcmd; // list of geometries
-  Geometry finalGeometry; // list of geometrycollections - list of list of
-                          // geometry
-  ArrayList<Geometry> geometry;
-  GeometryFactory geometryFactory = new GeometryFactory(); // this might get
-                                                           // replaced if
-                                                           // there's an SRID
-                                                           // change
-  ArrayList<LinearRing> innerBoundaries = new ArrayList<>();
+  // receives the geometry elements of the current Placemark
+  KMLGeometryEvents geometryEvents;
+  KMLGeometryBuilder geometryBuilder;
   Attributes lastStartTag_atts;
   String lastStartTag_name;
   String lastStartTag_qName; // accumulate values inside a tag
 
   // info about the last start tag encountered
   String lastStartTag_uri;
-  LineString lineString;
-  LinearRing linearRing; // a LR
-  LinearRing outerBoundary; // list of LinearRing
-  ArrayList<Coordinate> pointList = new ArrayList<>(); // list of accumulated points
-                                         // (Coordinate)
-  Polygon polygon; // polygon
-
-  // higherlevel geomery object
-  ArrayList recursivegeometry = new ArrayList();
-
-  // low-level geometry objects
-  Coordinate singleCoordinate = new Coordinate();
   String streamName; // result geometry -
   StringBuffer tagBody;
+
+  // sampling state
+  SplittableRandom random;
+  long placemarkOrdinal; // number of Placemarks seen so far
+  boolean skippingFeature = false; // inside a Placemark which is not sampled
+  int reservoirSlot;
+  Feature[] reservoir;
+  long[] reservoirOrdinals;
+  long featureCount; // number of Placemarks read so far
+
+  // pipelined read: geometries are built by worker threads
+  private ExecutorService pool;
+  private ThreadLocal<KMLGeometryBuilder> builders;
+  private ArrayDeque<Future<List<KMLGeometryBuilder.Record>>> pending;
+  private List<KMLGeometryBuilder.Record> batch;
   XMLReader xr; // see above
 
   int SRID = 0; // srid to give the created geometries
@@ -306,6 +498,9 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
    *              Description of the Exception
    */
   public void characters(char[] ch, int start, int length) throws SAXException {
+    if (skippingFeature) {
+      return;
+    }
     try {
       tagBody.append(ch, start, length);
     } catch (Exception e) {
@@ -334,6 +529,14 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
     try {
       int index;
 
+      if (skippingFeature) {
+        if (qName.compareToIgnoreCase(featureElement) == 0) {
+          skippingFeature = false;
+          tagBody = new StringBuffer();
+        }
+        return;
+      }
+
       if (STATE == STATE_INIT) {
         tagBody = new StringBuffer();
         return; // something wrong
@@ -346,62 +549,15 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
                                              // is correct
           } else {
             // build the geometry that was in that collection
-            Geometry g = geometryFactory.buildGeometry(geometry);
-            geometry = (ArrayList) recursivegeometry.get(STATE
-                - STATE_PARSE_GEOM_NESTED - 1);
-            geometry.add(g);
-            recursivegeometry.remove(STATE - STATE_PARSE_GEOM_NESTED);
-            g = null;
+            geometryEvents.endNested();
             STATE--;
           }
         }
 
-        // these correspond to <coord><X>0.0</X><Y>0.0</Y></coord>
-        if (qName.compareToIgnoreCase("X") == 0) {
-          singleCoordinate.x = Double.parseDouble(tagBody.toString());
-        } else if (qName.compareToIgnoreCase("Y") == 0) {
-          singleCoordinate.y = Double.parseDouble(tagBody.toString());
-        } else if (qName.compareToIgnoreCase("Z") == 0) {
-          singleCoordinate.z = Double.parseDouble(tagBody.toString());
-        } else if (qName.compareToIgnoreCase("COORD") == 0) {
-          pointList.add(new Coordinate(singleCoordinate)); // remember it
-        }
-        // this corresponds to
-        // <gml:coordinates>1195156.78946687,382069.533723461</gml:coordinates>
-        else if (qName.compareToIgnoreCase("COORDINATES") == 0) {
-          // tagBody has a wack-load of points in it - we need
-          // to parse them into the pointList list.
-          // assume that the x,y,z coordinate are "," separated, and the points
-          // are " " separated
-          parsePoints(tagBody.toString(), geometryFactory);
-        } else if (qName.compareToIgnoreCase("linearring") == 0) {
-          Coordinate[] c = new Coordinate[0];
-
-          c = (Coordinate[]) pointList.toArray(c);
-
-          // c= (Coordinate[])l;
-          linearRing = geometryFactory.createLinearRing(c);
-        } else if (qName.compareToIgnoreCase("outerBoundaryIs") == 0) {
-          outerBoundary = linearRing;
-        } else if (qName.compareToIgnoreCase("innerBoundaryIs") == 0) {
-          innerBoundaries.add(linearRing);
-        } else if (qName.compareToIgnoreCase("polygon") == 0) {
-          // LinearRing[] lrs = new LinearRing[1];
-          LinearRing[] lrs = new LinearRing[0];
-
-          lrs = innerBoundaries.toArray(lrs);
-          polygon = geometryFactory.createPolygon(outerBoundary, lrs);
-          geometry.add(polygon);
-        } else if (qName.compareToIgnoreCase("linestring") == 0) {
-          Coordinate[] c = new Coordinate[0];
-
-          c = (Coordinate[]) pointList.toArray(c);
-
-          lineString = geometryFactory.createLineString(c);
-          geometry.add(lineString);
-        } else if (qName.compareToIgnoreCase("point") == 0) {
-          apoint = geometryFactory.createPoint(pointList.get(0));
-          geometry.add(apoint);
+        int element = KMLGeometryBuilder.endElement(qName);
+        if (element >= 0) {
+          geometryEvents.end(element, KMLGeometryBuilder.hasBody(element)
+              ? tagBody.toString() : null);
         }
       } else if (STATE == STATE_FOUND_FEATURE_TAG) {
         if (qName.compareToIgnoreCase(featureElement) == 0) {
@@ -409,13 +565,26 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
           STATE = STATE_WAIT_FEATURE_TAG;
 
           // create a feature and put it inside the featurecollection
-          if (currentFeature.getGeometry() == null) {
-            Geometry g = null;
+          if (!geometryEvents.hasGeometry()) {
             throw new ParseException("no geometry specified in feature");
           }
 
-          fc.add(currentFeature);
+          if (reservoir != null) {
+            reservoir[reservoirSlot] = currentFeature;
+            reservoirOrdinals[reservoirSlot] = placemarkOrdinal - 1;
+          } else if (pool == null) {
+            fc.add(currentFeature);
+          }
+          if (pool != null) {
+            addRecord((KMLGeometryBuilder.Record) geometryEvents);
+          }
           currentFeature = null;
+          geometryEvents = null;
+          featureCount++;
+
+          if (maxFeatures >= 0 && reservoir == null && featureCount >= maxFeatures) {
+            throw new StopParsingException();
+          }
 
           return;
         } else {
@@ -426,11 +595,15 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
           // process it once.
           try {
             if (((index = GMLinput.match(lastStartTag_qName, lastStartTag_atts)) > -1)
-                && (lastStartTag_qName.equalsIgnoreCase(qName)))
-              currentFeature
-                  .setAttribute(GMLinput.columnName(index), GMLinput
-                      .getColumnValue(index, tagBody.toString(),
-                          lastStartTag_atts));
+                && (lastStartTag_qName.equalsIgnoreCase(qName))) {
+              String column = GMLinput.columnName(index);
+              Object value = GMLinput.getColumnValue(index, tagBody.toString(),
+                  lastStartTag_atts);
+              if (valueDictionary != null && value instanceof String) {
+                value = valueDictionary.get(column, (String) value);
+              }
+              currentFeature.setAttribute(column, value);
+            }
           } catch (Exception e) {
             // dont actually do anything with the parse problem - just ignore
             // it,
@@ -459,19 +632,14 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
         tagBody = new StringBuffer();
         STATE = STATE_FOUND_FEATURE_TAG;
 
-        finalGeometry = geometryFactory.buildGeometry(geometry);
-
-        if (projectToUTM) {
-          reprojectGeometry(finalGeometry);
-        }
-
-        // System.out.println("end geom: "+finalGeometry.toString() );
-        currentFeature.setGeometry(finalGeometry);
+        geometryEvents.endGeometry();
         currentGeometryNumb++;
 
         return;
       }
 
+    } catch (StopParsingException | GeometryException e) {
+      throw e;
     } catch (Exception e) {
       throw new SAXException(e.getMessage());
     }
@@ -499,6 +667,28 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
    */
   public FeatureCollection read(InputStream is, String readerName)
       throws Exception {
+    return read(new InputSource(is), readerName);
+  }
+
+  /**
+   * Same as {@link #read(InputStream, String)} for an already decoded
+   * character stream. The encoding declared in the document is ignored.
+   *
+   * @param reader
+   *          reader to read the KML File from
+   * @param readerName
+   *          what to call the reader for error reporting
+   * @return the features read
+   * @exception Exception
+   *              Description of the Exception
+   */
+  public FeatureCollection read(Reader reader, String readerName)
+      throws Exception {
+    return read(new InputSource(reader), readerName);
+  }
+
+  private FeatureCollection read(InputSource source, String readerName)
+      throws Exception {
 
     // LineNumberReader myReader = new LineNumberReader(r);
     exceptions.clear();
@@ -509,23 +699,252 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
 
     streamName = readerName;
 
+    valueDictionary = valueDictionaryCapacity > 0
+        ? new KMLValueDictionary(valueDictionaryCapacity) : null;
+
     fcmd = GMLinput.toFeatureSchema();
     fc = new FeatureDataset(fcmd);
 
+    random = new SplittableRandom(sampleSeed);
+    placemarkOrdinal = 0;
+    featureCount = 0;
+    skippingFeature = false;
+    if (sampleSize >= 0) {
+      reservoir = new Feature[sampleSize];
+      reservoirOrdinals = new long[sampleSize];
+    } else {
+      reservoir = null;
+      reservoirOrdinals = null;
+    }
+
+    geometryBuilder = new KMLGeometryBuilder(this.source,
+        projectToUTM ? this::destination : null);
+    geometryEvents = null;
+    if (readThreads > 1) {
+      startPipeline();
+    }
+
+    ParseException failure = null;
     try {
-      xr.parse(new InputSource(is));
-    } catch (SAXParseException e) {
-      exceptions.add(new ParseException(e.getMessage() + "  Last Opened Tag: "
-          + lastStartTag_qName, streamName + " - " + e.getPublicId() + " ("
-          + e.getSystemId() + ") ", e.getLineNumber(), e.getColumnNumber()));
-    } catch (SAXException e) {
-      exceptions.add(new ParseException(e.getMessage() + "  Last Opened Tag: "
-          + lastStartTag_qName, streamName, -1, 0));
+      try {
+        if (maxFeatures != 0) {
+          xr.parse(source);
+        }
+      } catch (StopParsingException e) {
+        // limit reached, nothing more to read
+      } catch (GeometryException e) {
+        failure = e.failure;
+      } catch (SAXParseException e) {
+        failure = new ParseException(e.getMessage() + "  Last Opened Tag: "
+            + lastStartTag_qName, streamName + " - " + e.getPublicId() + " ("
+            + e.getSystemId() + ") ", e.getLineNumber(), e.getColumnNumber());
+      } catch (SAXException e) {
+        failure = new ParseException(e.getMessage() + "  Last Opened Tag: "
+            + lastStartTag_qName, streamName, -1, 0);
+      }
+      if (pool != null) {
+        try {
+          finishPipeline();
+        } catch (GeometryException e) {
+          // comes before the place where parsing stopped
+          failure = e.failure;
+        }
+      }
+    } finally {
+      stopPipeline();
+    }
+    if (failure != null) {
+      exceptions.add(failure);
+    }
+
+    if (reservoir != null) {
+      addReservoir();
     }
 
     return fc;
   }
 
+  /**
+   * Adds the sampled features to the collection, in file order.
+   */
+  private void addReservoir() {
+    int n = (int) Math.min(placemarkOrdinal, reservoir.length);
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    java.util.Arrays.sort(order, (a, b) -> Long.compare(reservoirOrdinals[a],
+        reservoirOrdinals[b]));
+    for (Integer i : order) {
+      if (reservoir[i] != null) {
+        fc.add(reservoir[i]);
+      }
+    }
+    reservoir = null;
+    reservoirOrdinals = null;
+  }
+
+  /**
+   * Decides whether the Placemark which just started is part of the result.
+   * Reservoir sampling (algorithm R) keeps a uniform sample of sampleSize
+   * features in one pass; a fraction keeps every Placemark with that
+   * probability.
+   */
+  private boolean samplePlacemark() {
+    long ordinal = placemarkOrdinal++;
+    if (reservoir != null) {
+      if (ordinal < reservoir.length) {
+        reservoirSlot = (int) ordinal;
+        return true;
+      }
+      long j = random.nextLong(ordinal + 1);
+      if (j < reservoir.length) {
+        reservoirSlot = (int) j;
+        return true;
+      }
+      return false;
+    }
+    if (sampleFraction >= 0) {
+      return random.nextDouble() < sampleFraction;
+    }
+    return true;
+  }
+
+  /**
+   * Starts the worker threads. The parsing thread then only stores the
+   * geometry elements of each Placemark in a record, and the records are
+   * handed to the workers in batches which build (and reproject) the
+   * geometries. At most two batches per thread are in flight, the parsing
+   * thread waits for the oldest one beyond that.
+   */
+  private void startPipeline() {
+    AtomicInteger threadCount = new AtomicInteger();
+    pool = Executors.newFixedThreadPool(readThreads, runnable -> {
+      Thread thread = new Thread(runnable, "kml-reader-"
+          + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    builders = ThreadLocal.withInitial(() -> new KMLGeometryBuilder(source,
+        projectToUTM ? coord -> workerDestination() : null));
+    pending = new ArrayDeque<>();
+    batch = new ArrayList<>(READ_BATCH_SIZE);
+  }
+
+  private void addRecord(KMLGeometryBuilder.Record record) throws SAXException {
+    batch.add(record);
+    if (batch.size() >= READ_BATCH_SIZE) {
+      submitBatch();
+    }
+  }
+
+  private void submitBatch() throws SAXException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    if (pending.size() >= 2 * readThreads) {
+      finishBatch(pending.poll());
+    }
+    List<KMLGeometryBuilder.Record> records = batch;
+    batch = new ArrayList<>(READ_BATCH_SIZE);
+    if (projectToUTM && destination == null) {
+      // the UTM zone is taken from the first coordinate, so the geometries
+      // are built here until it is known
+      pending.add(CompletableFuture.completedFuture(buildBatch(records,
+          geometryBuilder)));
+    } else {
+      pending.add(pool.submit(() -> buildBatch(records, builders.get())));
+    }
+  }
+
+  private static List<KMLGeometryBuilder.Record> buildBatch(
+      List<KMLGeometryBuilder.Record> records, KMLGeometryBuilder builder) {
+    for (KMLGeometryBuilder.Record record : records) {
+      if (!record.replay(builder)) {
+        break;
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Adds the features of the oldest batch to the collection. If a geometry
+   * could not be built, the read ends there as it would have when building
+   * the geometries while parsing.
+   */
+  private void finishBatch(Future<List<KMLGeometryBuilder.Record>> future)
+      throws SAXException {
+    List<KMLGeometryBuilder.Record> records;
+    try {
+      records = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SAXException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new SAXException(String.valueOf(cause));
+    }
+    for (KMLGeometryBuilder.Record record : records) {
+      if (record.error != null) {
+        for (Future<?> f : pending) {
+          f.cancel(true);
+        }
+        pending.clear();
+        batch.clear();
+        if (reservoir != null) {
+          for (int i = 0; i < reservoir.length; i++) {
+            if (reservoirOrdinals[i] >= record.ordinal) {
+              reservoir[i] = null;
+            }
+          }
+        }
+        throw new GeometryException(new ParseException(record.error
+            .getMessage() + "  Last Opened Tag: " + record.errorTag,
+            streamName, -1, 0));
+      }
+      if (reservoir == null) {
+        fc.add(record.feature);
+      }
+    }
+  }
+
+  private void finishPipeline() throws SAXException {
+    submitBatch();
+    while (!pending.isEmpty()) {
+      finishBatch(pending.poll());
+    }
+  }
+
+  private void stopPipeline() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+    pool = null;
+    builders = null;
+    pending = null;
+    batch = null;
+  }
+
+  /** a geometry built by a worker thread could not be built */
+  private static class GeometryException extends SAXException {
+    final ParseException failure;
+
+    GeometryException(ParseException failure) {
+      super(failure.getMessage());
+      this.failure = failure;
+    }
+  }
+
+  /** thrown from the handler to end the parse once enough features are read */
+  private static class StopParsingException extends SAXException {
+    StopParsingException() {
+      super("feature limit reached");
+    }
+  }
+
   // //////////////////////////////////////////////////////////////////
   // Event handlers.
   // //////////////////////////////////////////////////////////////////
@@ -556,7 +975,7 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
       lastStartTag_qName = qName;
       lastStartTag_atts = atts;
 
-      if (STATE == STATE_INIT) {
+      if (STATE == STATE_INIT || skippingFeature) {
         return; // something wrong
       }
 
@@ -573,17 +992,21 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
           && (qName.compareToIgnoreCase(featureElement) == 0)) {
         // found the feature tag
         //System.out.println("found feature");
+        if (!samplePlacemark()) {
+          skippingFeature = true;
+          return;
+        }
         currentFeature = new BasicFeature(fcmd);
         STATE = STATE_PARSE_GEOM_SIMPLE; // STATE_FOUND_FEATURE_TAG;
-        recursivegeometry = new ArrayList();
-        geometry = new ArrayList<>();
-        recursivegeometry.add(geometry);
-        finalGeometry = null;
-
-        SRID = 0;// default SRID (reset for each feature, but should be constant
-                 // for a featurecollection)
-        if (geometryFactory.getSRID() != SRID)
-          geometryFactory = new GeometryFactory(new PrecisionModel(), SRID);
+        if (pool != null) {
+          KMLGeometryBuilder.Record record = new KMLGeometryBuilder.Record(
+              currentFeature, placemarkOrdinal - 1);
+          record.setTag(qName);
+          geometryEvents = record;
+        } else {
+          geometryBuilder.begin(currentFeature);
+          geometryEvents = geometryBuilder;
+        }
 
         return;
       }
@@ -603,26 +1026,14 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
        * GeometryFactory(new PrecisionModel(), SRID); } }
        */
 
-      if ((STATE >= STATE_PARSE_GEOM_SIMPLE)
-          && ((qName.compareToIgnoreCase("coord") == 0) || (qName
-              .compareToIgnoreCase("gml:coord") == 0))) {
-        singleCoordinate.x = Double.NaN;
-        singleCoordinate.y = Double.NaN;
-        singleCoordinate.z = Double.NaN;
-      }
-
-      if ((STATE >= STATE_PARSE_GEOM_SIMPLE)
-          && (!((qName.compareToIgnoreCase("X") == 0)
-              || (qName.compareToIgnoreCase("y") == 0)
-              || (qName.compareToIgnoreCase("z") == 0) || (qName
-              .compareToIgnoreCase("coord") == 0)))) {
-        pointList.clear(); // clear out any accumulated points
-      }
-
-      if ((STATE >= STATE_PARSE_GEOM_SIMPLE)
-          && ((qName.compareToIgnoreCase("polygon") == 0))) {
-        innerBoundaries.clear(); // polygon just started - clear out the last
-                                 // one
+      if (STATE >= STATE_PARSE_GEOM_SIMPLE) {
+        if (pool != null) {
+          ((KMLGeometryBuilder.Record) geometryEvents).setTag(qName);
+        }
+        int actions = KMLGeometryBuilder.startActions(qName);
+        if (actions != 0) {
+          geometryEvents.start(actions);
+        }
       }
 
       if ((STATE > STATE_FOUND_FEATURE_TAG) && (isMultiGeometryTag(qName))) {
@@ -632,8 +1043,7 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
           STATE = STATE_PARSE_GEOM_NESTED;
         } else {
           STATE++;
-          geometry = new ArrayList<>();
-          recursivegeometry.add(geometry);
+          geometryEvents.startNested();
         }
       }
     } catch (Exception e) {
@@ -641,6 +1051,78 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
     }
   }
 
+  /**
+   * Sets the maximum number of distinct attribute values shared between
+   * features during a read. 0 disables the value dictionary.
+   *
+   * @param capacity maximum number of values in the dictionary
+   */
+  public void setValueDictionaryCapacity(int capacity) {
+    this.valueDictionaryCapacity = Math.max(0, capacity);
+  }
+
+  /**
+   * @return the value dictionary of the last read, giving access to the
+   *         per-column cardinality statistics, or null if it was disabled
+   */
+  public KMLValueDictionary getValueDictionary() {
+    return valueDictionary;
+  }
+
+  /**
+   * Reads only the first <code>maxFeatures</code> Placemarks and stops
+   * parsing there. Negative means no limit. Also applies together with
+   * {@link #setSampleFraction(double)}.
+   */
+  public void setMaxFeatures(int maxFeatures) {
+    this.maxFeatures = maxFeatures;
+  }
+
+  /**
+   * Reads a uniform random sample of <code>sampleSize</code> Placemarks,
+   * taken in one pass with reservoir sampling, or picked from the Placemark
+   * index when the file has an up to date one. Negative disables sampling.
+   * Takes precedence over {@link #setSampleFraction(double)}; the driver
+   * properties Sample_Size and Sample_Fraction cannot be given together.
+   */
+  public void setSampleSize(int sampleSize) {
+    this.sampleSize = sampleSize;
+  }
+
+  /**
+   * Reads each Placemark with the probability <code>fraction</code>.
+   * Negative disables sampling. Ignored when a sample size is set.
+   */
+  public void setSampleFraction(double fraction) {
+    this.sampleFraction = fraction;
+  }
+
+  /**
+   * Sets the number of threads building the geometries. With more than one
+   * thread, the parsing thread only collects the coordinates and attributes
+   * of each Placemark, and the geometries are built and reprojected by
+   * worker threads. The features keep their order in the file.
+   *
+   * @param readThreads number of worker threads, 1 to build the geometries
+   *          while parsing
+   */
+  public void setReadThreads(int readThreads) {
+    this.readThreads = Math.max(1, readThreads);
+  }
+
+  /**
+   * Sets the number of threads inflating the members of a gzip file, see
+   * {@link ParallelGZIPInputStream}. Defaults to the number of processors.
+   */
+  public void setInflateThreads(int inflateThreads) {
+    this.inflateThreads = Math.max(1, inflateThreads);
+  }
+
+  /** seed of the random generator used for sampling */
+  public void setSampleSeed(long seed) {
+    this.sampleSeed = seed;
+  }
+
   private void setProjectToUTM(boolean toUTM) {
     this.projectToUTM = toUTM;
   }
@@ -705,72 +1187,14 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
     return false;
   }
 
-  /**
-   * Parse a bunch of points - stick them in pointList. Handles 2d and 3d.
-   *
-   * @param ptString
-   *          string containing a bunch of coordinates
-   * @param geometryFactory
-   *          JTS point/coordinate factory
-   */
-  private void parsePoints(String ptString, GeometryFactory geometryFactory) {
-    String aPoint;
-    StringTokenizer stokenizerPoint;
-    Coordinate coord = new Coordinate();
-    int dim;
-    String numb;
-    StringBuilder sb;
-    int t;
-    char ch;
-
-    // remove \n and \r and replace with spaces
-    sb = new StringBuilder(ptString);
-
-    for (t = 0; t < sb.length(); t++) {
-      ch = sb.charAt(t);
-
-      if ((ch == '\n') || (ch == '\r')) {
-        sb.setCharAt(t, ' ');
-      }
-    }
-
-    StringTokenizer stokenizer = new StringTokenizer(new String(sb), " ", false);
-
-    while (stokenizer.hasMoreElements()) {
-      // have a point in memory - handle the single point
-      aPoint = stokenizer.nextToken();
-      stokenizerPoint = new StringTokenizer(aPoint, ",", false);
-      coord.x = coord.y = coord.z = Double.NaN;
-      dim = 0;
-
-      while (stokenizerPoint.hasMoreElements()) {
-        numb = stokenizerPoint.nextToken();
-
-        if (dim == 0) {
-          coord.x = Double.parseDouble(numb);
-        } else if (dim == 1) {
-          coord.y = Double.parseDouble(numb);
-        } else if (dim == 2) {
-          coord.z = Double.parseDouble(numb);
-        }
-
-        dim++;
-      }
-      if ((coord.x != coord.x) || (coord.y != coord.y)) // one (x,y) is NaN
-      {
-        throw new IllegalArgumentException(
-            "GML error - coordinate list isnt valid GML. Watch your spaces and commas!");
-      }
-      pointList.add(coord); // remember it
-      coord = new Coordinate();
-      stokenizerPoint = null;
-    }
-  }
-
   private void setDestinationProjection(final int zoneInt,
       final boolean zoneSouth, final double centralMeridian) {
+    destination = createDestination(zoneInt, zoneSouth, centralMeridian);
+  }
 
-    destination = new CoordinateSystem("UTM " + zoneStr + " / WGS 84",
+  private CoordinateSystem createDestination(final int zoneInt,
+      final boolean zoneSouth, final double centralMeridian) {
+    return new CoordinateSystem("UTM " + zoneStr + " / WGS 84",
         32600 + zoneInt, new UniversalTransverseMercator() {
           {
             setSpheroid(new Spheroid(new Radius(Radius.GRS80)));
@@ -784,6 +1208,25 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
     setDestinationProjection(zoneInt, zoneSouth, centralMeridian);
   }
 
+  /**
+   * @return the coordinate system to project to, chosen from the given
+   *         coordinate if not known yet
+   */
+  private CoordinateSystem destination(Coordinate coord) {
+    if (destination == null) {
+      setDestinationProjection(coord);
+    }
+    return destination;
+  }
+
+  /**
+   * @return a copy of the coordinate system to project to for a worker
+   *         thread, as the projections are not thread safe
+   */
+  private synchronized CoordinateSystem workerDestination() {
+    return createDestination(zoneInt, zoneSouth, centralMeridian);
+  }
+
   public String getZone(double latitude, double longitude) {
     // there are two exceptions to the equations below: Norway and Svalbard
     // per LDB/RFL (8/10/05) we will ignore them as we do not expect to have
@@ -811,19 +1254,6 @@ public class KMLReader extends DefaultHandler implements JUMPReader {
     return zoneStr;
   }
 
-  // Reproject geometry from source to destination
-  private void reprojectGeometry(Geometry geometry) {
-    geometry.apply(new CoordinateFilter() {
-      public void filter(Coordinate coord) {
-        if (destination == null) {
-          setDestinationProjection(coord);
-        }
-        Reprojector.instance().reproject(coord, source, destination);
-      }
-    });
-    geometry.geometryChanged();
-  }
-
   public Collection<Exception> getExceptions() {
     return exceptions;
   }
@@ -0,0 +1,394 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+package com.isa.jump.kml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal XML tokenizer working on the raw bytes of a KML file.
+ * <p>
+ * It does not decode characters, resolve entities or validate anything; it
+ * only reports start and end tags with their byte offsets and, on request,
+ * the raw text of an element. Markup is ASCII in every encoding a KML file
+ * may reasonably use (UTF-8, ISO-8859-x), which makes this safe for what it
+ * is used for: counting and locating elements at close to disk speed, without
+ * creating a SAX event, a String or a Feature per element. Comments, CDATA
+ * sections, processing instructions and DOCTYPE declarations are skipped.
+ */
+public class KMLScanner {
+
+  /** receives the tags found by the scanner */
+  public interface Handler {
+
+    /**
+     * A start tag (or an empty element tag) was found.
+     *
+     * @return true if the text content of this element should be reported
+     *         through {@link #text}
+     */
+    boolean startElement(Tag tag) throws IOException;
+
+    /**
+     * An end tag was found, or an empty element tag ended.
+     *
+     * @param name the qualified name of the element
+     * @param endOffset offset of the first byte after the tag
+     */
+    void endElement(String name, long endOffset) throws IOException;
+
+    /**
+     * A piece of the text content of an element for which
+     * {@link #startElement} returned true. Text may be reported in several
+     * pieces.
+     */
+    void text(byte[] buf, int start, int end) throws IOException;
+  }
+
+  /** the start tag being reported, only valid during the call */
+  public static final class Tag {
+    private byte[] bytes = new byte[256];
+    private int length;
+    private int nameEnd;
+    private String name;
+    private long offset;
+    private boolean empty;
+
+    /** @return the qualified name of the element, e.g. "Placemark" */
+    public String getName() {
+      return name;
+    }
+
+    /** @return the local part of the name, e.g. "Track" for "gx:Track" */
+    public String getLocalName() {
+      int colon = name.indexOf(':');
+      return colon < 0 ? name : name.substring(colon + 1);
+    }
+
+    /** @return offset of the '&lt;' opening this tag */
+    public long getOffset() {
+      return offset;
+    }
+
+    /** @return true for an empty element tag like &lt;a/&gt; */
+    public boolean isEmpty() {
+      return empty;
+    }
+
+    /**
+     * Returns the raw value of an attribute, without entity decoding.
+     *
+     * @param attribute qualified attribute name
+     * @return the value or null if the tag has no such attribute
+     */
+    public String getAttribute(String attribute) {
+      int n = attribute.length();
+      int i = nameEnd;
+      while (i < length) {
+        while (i < length && isSpace(bytes[i])) {
+          i++;
+        }
+        int start = i;
+        while (i < length && bytes[i] != '=' && !isSpace(bytes[i])) {
+          i++;
+        }
+        int end = i;
+        while (i < length && bytes[i] != '"' && bytes[i] != '\'') {
+          i++;
+        }
+        if (i >= length) {
+          return null;
+        }
+        byte quote = bytes[i++];
+        int valueStart = i;
+        while (i < length && bytes[i] != quote) {
+          i++;
+        }
+        if (end - start == n && matches(start, attribute)) {
+          return new String(bytes, valueStart, i - valueStart,
+              StandardCharsets.UTF_8);
+        }
+        i++;
+      }
+      return null;
+    }
+
+    private boolean matches(int start, String s) {
+      for (int k = 0; k < s.length(); k++) {
+        if (bytes[start + k] != s.charAt(k)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void append(byte b) {
+      if (length == bytes.length) {
+        byte[] grown = new byte[bytes.length * 2];
+        System.arraycopy(bytes, 0, grown, 0, length);
+        bytes = grown;
+      }
+      bytes[length++] = b;
+    }
+  }
+
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  // states of the tokenizer
+  private static final int TEXT = 0;
+  private static final int TAG_OPEN = 1; // after '<'
+  private static final int START_TAG = 2;
+  private static final int END_TAG = 3;
+  private static final int MARKUP = 4; // after "<!" or "<?"
+  private static final int COMMENT = 5;
+  private static final int CDATA = 6;
+  private static final int PI = 7;
+  private static final int DECLARATION = 8;
+
+  private final Handler handler;
+  private final Tag tag = new Tag();
+  private final String[] names = new String[1024];
+  private volatile boolean cancelled = false;
+  private long position = 0;
+
+  public KMLScanner(Handler handler) {
+    this.handler = handler;
+  }
+
+  /** stop scanning as soon as possible, scan() then returns */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /** @return number of bytes scanned so far */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+   * Scans the stream up to its end. The stream is not closed.
+   */
+  public void scan(InputStream is) throws IOException {
+    byte[] buf = new byte[BUFFER_SIZE];
+    int state = TEXT;
+    boolean reportText = false;
+    boolean quoted = false;
+    byte quote = 0;
+    int match = 0; // progress in matching a terminator like "-->"
+    int declarationDepth = 0;
+    long tagOffset = 0;
+    String openName = null;
+    int n;
+    while (!cancelled && (n = is.read(buf)) > 0) {
+      int i = 0;
+      while (i < n) {
+        byte b = buf[i];
+        switch (state) {
+        case TEXT: {
+          int j = i;
+          while (j < n && buf[j] != '<') {
+            j++;
+          }
+          if (reportText && j > i) {
+            handler.text(buf, i, j);
+          }
+          if (j < n) {
+            state = TAG_OPEN;
+            tagOffset = position + j;
+          }
+          i = j + 1;
+          continue;
+        }
+        case TAG_OPEN:
+          tag.length = 0;
+          quoted = false;
+          match = 0;
+          if (b == '/') {
+            state = END_TAG;
+          } else if (b == '!') {
+            state = MARKUP;
+          } else if (b == '?') {
+            state = PI;
+          } else {
+            state = START_TAG;
+            tag.append(b);
+          }
+          break;
+        case START_TAG:
+          if (quoted) {
+            if (b == quote) {
+              quoted = false;
+            }
+            tag.append(b);
+          } else if (b == '"' || b == '\'') {
+            quoted = true;
+            quote = b;
+            tag.append(b);
+          } else if (b == '>') {
+            long end = position + i + 1;
+            tag.empty = tag.length > 0 && tag.bytes[tag.length - 1] == '/';
+            if (tag.empty) {
+              tag.length--;
+            }
+            tag.nameEnd = nameEnd(tag.bytes, tag.length);
+            tag.name = name(tag.bytes, 0, tag.nameEnd);
+            tag.offset = tagOffset;
+            reportText = handler.startElement(tag);
+            if (tag.empty) {
+              reportText = false;
+              handler.endElement(tag.name, end);
+            }
+            state = TEXT;
+          } else {
+            tag.append(b);
+          }
+          break;
+        case END_TAG:
+          if (b == '>') {
+            int end = nameEnd(tag.bytes, tag.length);
+            openName = name(tag.bytes, 0, end);
+            reportText = false;
+            handler.endElement(openName, position + i + 1);
+            state = TEXT;
+          } else {
+            tag.append(b);
+          }
+          break;
+        case MARKUP:
+          // "<!--", "<![CDATA[" or "<!DOCTYPE"
+          tag.append(b);
+          if (tag.length == 2 && tag.bytes[0] == '-' && tag.bytes[1] == '-') {
+            state = COMMENT;
+            match = 0;
+          } else if (tag.length == 7 && tag.bytes[0] == '[') {
+            state = CDATA;
+            match = 0;
+          } else if (tag.length == 2 && tag.bytes[0] != '-'
+              && tag.bytes[0] != '[') {
+            state = DECLARATION;
+            declarationDepth = 0;
+            continue; // process b again as part of the declaration
+          }
+          break;
+        case COMMENT:
+          if (b == '-') {
+            match = Math.min(match + 1, 2);
+          } else if (b == '>' && match == 2) {
+            state = TEXT;
+          } else {
+            match = 0;
+          }
+          break;
+        case CDATA:
+          if (b == ']') {
+            match = Math.min(match + 1, 2);
+          } else if (b == '>' && match == 2) {
+            state = TEXT;
+          } else {
+            match = 0;
+          }
+          break;
+        case PI:
+          if (b == '>' && match == 1) {
+            state = TEXT;
+          } else {
+            match = b == '?' ? 1 : 0;
+          }
+          break;
+        case DECLARATION:
+          if (quoted) {
+            if (b == quote) {
+              quoted = false;
+            }
+          } else if (b == '"' || b == '\'') {
+            quoted = true;
+            quote = b;
+          } else if (b == '[') {
+            declarationDepth++;
+          } else if (b == ']') {
+            declarationDepth--;
+          } else if (b == '>' && declarationDepth <= 0) {
+            state = TEXT;
+          }
+          break;
+        default:
+          throw new IllegalStateException("state " + state);
+        }
+        i++;
+      }
+      position += n;
+    }
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
+
+  private static int nameEnd(byte[] bytes, int length) {
+    int i = 0;
+    while (i < length && !isSpace(bytes[i]) && bytes[i] != '/') {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Returns the element name as a String, reusing the instance of earlier
+   * occurrences: a file has only a handful of distinct element names.
+   */
+  private String name(byte[] bytes, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + bytes[i];
+    }
+    int slot = hash & (names.length - 1);
+    String s = names[slot];
+    if (s != null && s.length() == end - start) {
+      boolean same = true;
+      for (int i = start; same && i < end; i++) {
+        same = s.charAt(i - start) == (char) bytes[i];
+      }
+      if (same) {
+        return s;
+      }
+    }
+    s = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    names[slot] = s;
+    return s;
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vividsolutions.jump.io.ParseException;
+
+/**
+ * Maps the values of one column to KML styles. Each distinct style is
+ * written once as a shared &lt;Style id&gt; in the document header, and
+ * each Placemark refers to its style with a &lt;styleUrl&gt;.
+ * <p>
+ * A value is matched first against the exact values, by its text, then
+ * against the ranges in the order they were added, numbers only, and gets
+ * the default style if none matches. The result is cached by value, so
+ * looking up the style of a feature costs a hash lookup.
+ * <p>
+ * Rules can be parsed from text, one rule per line or separated by ';':
+ * 
+ * <pre>
+ * road -&gt; lineColor=ff0000ff lineWidth=2
+ * 0..10 -&gt; polyColor=7f00ff00
+ * 10.. -&gt; polyColor=7f0000ff
+ * * -&gt; iconHref=http://maps.google.com/mapfiles/kml/pal4/icon57.png
+ * </pre>
+ * 
+ * where a range min..max holds min &lt;= value &lt; max, either bound being
+ * optional, * is the default rule, and a value may be double-quoted.
+ * Colors are KML aabbggrr hexadecimal colors.
+ */
+public class KMLStyleTable {
+
+  /** A line, polygon and icon style. Unset properties are not written. */
+  public static class Style {
+    private String lineColor;
+    private double lineWidth = Double.NaN;
+    private String polyColor;
+    private String iconHref;
+    private String iconColor;
+    private double iconScale = Double.NaN;
+
+    public void setLineColor(String lineColor) {
+      this.lineColor = lineColor;
+    }
+
+    public void setLineWidth(double lineWidth) {
+      this.lineWidth = lineWidth;
+    }
+
+    public void setPolyColor(String polyColor) {
+      this.polyColor = polyColor;
+    }
+
+    public void setIconHref(String iconHref) {
+      this.iconHref = iconHref;
+    }
+
+    public void setIconColor(String iconColor) {
+      this.iconColor = iconColor;
+    }
+
+    public void setIconScale(double iconScale) {
+      this.iconScale = iconScale;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Style)) {
+        return false;
+      }
+      Style s = (Style) o;
+      return Objects.equals(lineColor, s.lineColor)
+          && Double.compare(lineWidth, s.lineWidth) == 0
+          && Objects.equals(polyColor, s.polyColor)
+          && Objects.equals(iconHref, s.iconHref)
+          && Objects.equals(iconColor, s.iconColor)
+          && Double.compare(iconScale, s.iconScale) == 0;
+    }
+
+    public int hashCode() {
+      return Objects.hash(lineColor, lineWidth, polyColor, iconHref,
+          iconColor, iconScale);
+    }
+  }
+
+  private static final class Range {
+    final double min;
+    final double max;
+    final char[] styleUrl;
+
+    Range(double min, double max, char[] styleUrl) {
+      this.min = min;
+      this.max = max;
+      this.styleUrl = styleUrl;
+    }
+  }
+
+  // values are not cached any more past this number of distinct values
+  private static final int MAX_CACHE_SIZE = 4096;
+  private static final char[] NO_STYLE = new char[0];
+  private static final Object NULL_VALUE = new Object();
+
+  private final String column;
+  // distinct styles, in the order of their ids
+  private final List<Style> styles = new ArrayList<>();
+  private final Map<Style, char[]> styleUrls = new HashMap<>();
+  private final Map<String, char[]> values = new HashMap<>();
+  private final List<Range> ranges = new ArrayList<>();
+  private char[] defaultStyleUrl = NO_STYLE;
+  private final Map<Object, char[]> cache = new ConcurrentHashMap<>();
+
+  /**
+   * @param column
+   *          name of the column the styles depend on
+   */
+  public KMLStyleTable(String column) {
+    this.column = column;
+  }
+
+  public String getColumn() {
+    return column;
+  }
+
+  /** Styles the features whose value has the given text. */
+  public void addValue(String value, Style style) {
+    values.put(value, styleUrl(style));
+    cache.clear();
+  }
+
+  /** Styles the features whose numeric value is in [min, max). */
+  public void addRange(double min, double max, Style style) {
+    ranges.add(new Range(min, max, styleUrl(style)));
+    cache.clear();
+  }
+
+  /** Styles the features matching no value or range. */
+  public void setDefault(Style style) {
+    defaultStyleUrl = styleUrl(style);
+    cache.clear();
+  }
+
+  private char[] styleUrl(Style style) {
+    char[] styleUrl = styleUrls.get(style);
+    if (styleUrl == null) {
+      styles.add(style);
+      styleUrl = ("<styleUrl>#" + id(styles.size() - 1) + "</styleUrl>")
+          .toCharArray();
+      styleUrls.put(style, styleUrl);
+    }
+    return styleUrl;
+  }
+
+  private static String id(int index) {
+    return "style" + (index + 1);
+  }
+
+  /**
+   * Returns the &lt;styleUrl&gt; element of the style of a value, or an
+   * empty array if the value has no style. Thread-safe once the table is
+   * built.
+   */
+  public char[] getStyleUrl(Object value) {
+    Object key = value == null ? NULL_VALUE : value;
+    char[] styleUrl = cache.get(key);
+    if (styleUrl == null) {
+      styleUrl = match(value);
+      if (cache.size() < MAX_CACHE_SIZE) {
+        cache.put(key, styleUrl);
+      }
+    }
+    return styleUrl;
+  }
+
+  private char[] match(Object value) {
+    if (value == null) {
+      return defaultStyleUrl;
+    }
+    char[] styleUrl = values.get(value.toString());
+    if (styleUrl != null) {
+      return styleUrl;
+    }
+    if (value instanceof Number) {
+      double d = ((Number) value).doubleValue();
+      for (Range range : ranges) {
+        if (d >= range.min && d < range.max) {
+          return range.styleUrl;
+        }
+      }
+    }
+    return defaultStyleUrl;
+  }
+
+  /**
+   * Writes the shared Style elements, indented for the document header or
+   * on one line if compact.
+   */
+  public void writeStyles(boolean compact, KMLValueEncoder valueEncoder,
+      Writer out) throws IOException {
+    String nl = compact ? "" : "\n";
+    for (int i = 0; i < styles.size(); i++) {
+      Style style = styles.get(i);
+      out.write(indent(compact, 1) + "<Style id=\"" + id(i) + "\">" + nl);
+      if (style.iconHref != null || style.iconColor != null
+          || !Double.isNaN(style.iconScale)) {
+        out.write(indent(compact, 2) + "<IconStyle>" + nl);
+        writeElement("color", style.iconColor, compact, valueEncoder, out);
+        writeElement("scale", style.iconScale, compact, valueEncoder, out);
+        if (style.iconHref != null) {
+          out.write(indent(compact, 3) + "<Icon><href>");
+          valueEncoder.writeEscaped(style.iconHref, out);
+          out.write("</href></Icon>" + nl);
+        }
+        out.write(indent(compact, 2) + "</IconStyle>" + nl);
+      }
+      if (style.lineColor != null || !Double.isNaN(style.lineWidth)) {
+        out.write(indent(compact, 2) + "<LineStyle>" + nl);
+        writeElement("color", style.lineColor, compact, valueEncoder, out);
+        writeElement("width", style.lineWidth, compact, valueEncoder, out);
+        out.write(indent(compact, 2) + "</LineStyle>" + nl);
+      }
+      if (style.polyColor != null) {
+        out.write(indent(compact, 2) + "<PolyStyle>" + nl);
+        writeElement("color", style.polyColor, compact, valueEncoder, out);
+        out.write(indent(compact, 2) + "</PolyStyle>" + nl);
+      }
+      out.write(indent(compact, 1) + "</Style>" + nl);
+    }
+  }
+
+  /** @return the shared Style elements, as written by writeStyles */
+  public String getStylesText(boolean compact) {
+    KMLOutputBuffer buffer = new KMLOutputBuffer();
+    try {
+      writeStyles(compact, new KMLValueEncoder(), buffer);
+    } catch (IOException e) {
+      // a KMLOutputBuffer does not throw IOExceptions
+      throw new IllegalStateException(e);
+    }
+    return buffer.toString();
+  }
+
+  private static String indent(boolean compact, int level) {
+    return compact ? "" : "      ".substring(0, 2 * level);
+  }
+
+  private static void writeElement(String element, String value,
+      boolean compact, KMLValueEncoder valueEncoder, Writer out)
+      throws IOException {
+    if (value == null) {
+      return;
+    }
+    out.write(indent(compact, 3) + "<" + element + ">");
+    valueEncoder.writeEscaped(value, out);
+    out.write("</" + element + ">" + (compact ? "" : "\n"));
+  }
+
+  private static void writeElement(String element, double value,
+      boolean compact, KMLValueEncoder valueEncoder, Writer out)
+      throws IOException {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    out.write(indent(compact, 3) + "<" + element + ">");
+    valueEncoder.writeDouble(value, out);
+    out.write("</" + element + ">" + (compact ? "" : "\n"));
+  }
+
+  /**
+   * Parses style rules, as described in the class comment.
+   * 
+   * @param column
+   *          name of the column the styles depend on
+   * @param rules
+   *          the rules
+   */
+  public static KMLStyleTable parse(String column, String rules)
+      throws ParseException {
+    KMLStyleTable table = new KMLStyleTable(column);
+    for (String rule : rules.split("[;\\n]")) {
+      rule = rule.trim();
+      if (rule.isEmpty()) {
+        continue;
+      }
+      int arrow = rule.lastIndexOf("->");
+      if (arrow < 0) {
+        throw new ParseException("missing -> in style rule '" + rule + "'");
+      }
+      String match = rule.substring(0, arrow).trim();
+      Style style = parseStyle(rule.substring(arrow + 2).trim(), rule);
+
+      int dots = match.indexOf("..");
+      if (match.equals("*")) {
+        table.setDefault(style);
+      } else if (match.length() > 1 && match.startsWith("\"")
+          && match.endsWith("\"")) {
+        table.addValue(match.substring(1, match.length() - 1), style);
+      } else if (dots >= 0) {
+        String min = match.substring(0, dots).trim();
+        String max = match.substring(dots + 2).trim();
+        try {
+          table.addRange(min.isEmpty() ? Double.NEGATIVE_INFINITY : Double
+              .parseDouble(min), max.isEmpty() ? Double.POSITIVE_INFINITY
+              : Double.parseDouble(max), style);
+        } catch (NumberFormatException e) {
+          throw new ParseException("bad range in style rule '" + rule + "'");
+        }
+      } else {
+        table.addValue(match, style);
+      }
+    }
+    return table;
+  }
+
+  private static Style parseStyle(String text, String rule)
+      throws ParseException {
+    Style style = new Style();
+    for (String entry : text.split("\\s+")) {
+      if (entry.isEmpty()) {
+        continue;
+      }
+      int equals = entry.indexOf('=');
+      if (equals < 0) {
+        throw new ParseException("missing = in style rule '" + rule + "'");
+      }
+      String key = entry.substring(0, equals);
+      String value = entry.substring(equals + 1);
+      try {
+        if (key.equalsIgnoreCase("lineColor")) {
+          style.setLineColor(color(value, rule));
+        } else if (key.equalsIgnoreCase("lineWidth")) {
+          style.setLineWidth(Double.parseDouble(value));
+        } else if (key.equalsIgnoreCase("polyColor")) {
+          style.setPolyColor(color(value, rule));
+        } else if (key.equalsIgnoreCase("iconHref")) {
+          style.setIconHref(value);
+        } else if (key.equalsIgnoreCase("iconColor")) {
+          style.setIconColor(color(value, rule));
+        } else if (key.equalsIgnoreCase("iconScale")) {
+          style.setIconScale(Double.parseDouble(value));
+        } else {
+          throw new ParseException("unknown style '" + key
+              + "' in style rule '" + rule + "'");
+        }
+      } catch (NumberFormatException e) {
+        throw new ParseException("bad number in style rule '" + rule + "'");
+      }
+    }
+    return style;
+  }
+
+  private static String color(String value, String rule)
+      throws ParseException {
+    if (!value.matches("[0-9a-fA-F]{8}")) {
+      throw new ParseException("bad aabbggrr color '" + value
+          + "' in style rule '" + rule + "'");
+    }
+    return value;
+  }
+}
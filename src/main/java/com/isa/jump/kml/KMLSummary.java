@@ -0,0 +1,355 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+package com.isa.jump.kml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Statistics of a KML/KMZ file gathered by a quick scan: number of
+ * Placemarks, number of features per geometry type, total number of
+ * vertices, envelope and attribute names.
+ * <p>
+ * The scan runs {@link KMLScanner} over the raw bytes and builds no Feature
+ * and no Geometry, so it is a lot faster than a {@link KMLReader#read}. The
+ * envelope is computed with a fast decimal parser and may differ from the
+ * exact coordinates by a few ulps.
+ */
+public class KMLSummary {
+
+  private static final Set<String> GEOMETRY_ELEMENTS = new HashSet<>(
+      Arrays.asList("Point", "LineString", "LinearRing", "Polygon",
+          "MultiGeometry", "MultiPoint", "MultiLineString", "MultiPolygon",
+          "GeometryCollection", "Model", "Track", "MultiTrack"));
+
+  // Placemark children which are not attributes
+  private static final Set<String> NON_ATTRIBUTE_ELEMENTS = new HashSet<>(
+      Arrays.asList("ExtendedData", "Style", "StyleMap", "Region", "LookAt",
+          "Camera", "TimeSpan", "TimeStamp"));
+
+  private long featureCount = 0;
+  private long vertexCount = 0;
+  private long byteCount = 0;
+  private final Map<String, Long> geometryCounts = new LinkedHashMap<>();
+  private final Set<String> attributeNames = new LinkedHashSet<>();
+  private final Envelope envelope = new Envelope();
+
+  private KMLSummary() {
+  }
+
+  /**
+   * Scans a kml or kmz file.
+   *
+   * @param fileName name of the file
+   * @return the statistics of the file
+   */
+  public static KMLSummary scan(String fileName) throws Exception {
+    return scan(fileName, null);
+  }
+
+  /**
+   * Scans a kml or kmz file.
+   *
+   * @param fileName name of the file
+   * @param scannerCallback if not null, receives the scanner before the scan
+   *          starts, so that it can be cancelled from another thread
+   * @return the statistics of the file, partial if the scan was cancelled
+   */
+  public static KMLSummary scan(String fileName,
+      java.util.function.Consumer<KMLScanner> scannerCallback) throws Exception {
+    KMLSummary summary = new KMLSummary();
+    try (InputStream is = KMLReader.openInput(fileName)) {
+      if (is != null) {
+        KMLScanner scanner = new KMLScanner(summary.new SummaryHandler());
+        if (scannerCallback != null) {
+          scannerCallback.accept(scanner);
+        }
+        scanner.scan(is);
+        summary.byteCount = scanner.getPosition();
+      }
+    }
+    return summary;
+  }
+
+  /**
+   * Scans a stream.
+   *
+   * @param is stream containing a KML document, which is not closed
+   * @return the statistics of the stream
+   */
+  public static KMLSummary scan(InputStream is) throws IOException {
+    KMLSummary summary = new KMLSummary();
+    KMLScanner scanner = new KMLScanner(summary.new SummaryHandler());
+    scanner.scan(is);
+    summary.byteCount = scanner.getPosition();
+    return summary;
+  }
+
+  /** @return number of Placemarks */
+  public long getFeatureCount() {
+    return featureCount;
+  }
+
+  /** @return number of Placemarks per geometry element of the Placemark */
+  public Map<String, Long> getGeometryCounts() {
+    return Collections.unmodifiableMap(geometryCounts);
+  }
+
+  /** @return number of coordinate tuples */
+  public long getVertexCount() {
+    return vertexCount;
+  }
+
+  /** @return envelope of all coordinates, null if there are none */
+  public Envelope getEnvelope() {
+    return envelope.isNull() ? null : new Envelope(envelope);
+  }
+
+  /**
+   * @return names of the Placemark child elements, schema fields and
+   *         ExtendedData entries found in the file
+   */
+  public Set<String> getAttributeNames() {
+    return Collections.unmodifiableSet(attributeNames);
+  }
+
+  /** @return number of (uncompressed) bytes scanned */
+  public long getByteCount() {
+    return byteCount;
+  }
+
+  public String toString() {
+    return "features=" + featureCount + ", geometries=" + geometryCounts
+        + ", vertices=" + vertexCount + ", envelope=" + getEnvelope()
+        + ", attributes=" + attributeNames;
+  }
+
+  private class SummaryHandler implements KMLScanner.Handler {
+    private int depth = 0;
+    private int placemarkDepth = -1;
+    private boolean geometryFound = false;
+    private final CoordinateParser coordinates = new CoordinateParser();
+
+    public boolean startElement(KMLScanner.Tag tag) {
+      depth++;
+      String name = tag.getLocalName();
+      if (placemarkDepth < 0) {
+        if (name.equals("Placemark")) {
+          featureCount++;
+          placemarkDepth = depth;
+          geometryFound = false;
+        } else if (name.equals("SimpleField")) {
+          addAttribute(tag.getAttribute("name"));
+        }
+        return false;
+      }
+      boolean geometry = GEOMETRY_ELEMENTS.contains(name);
+      if (geometry && !geometryFound) {
+        geometryFound = true;
+        Long count = geometryCounts.get(name);
+        geometryCounts.put(name, count == null ? 1L : count + 1);
+      }
+      if (depth == placemarkDepth + 1 && !geometry
+          && !NON_ATTRIBUTE_ELEMENTS.contains(name)) {
+        attributeNames.add(name);
+      } else if (name.equals("Data") || name.equals("SimpleData")) {
+        addAttribute(tag.getAttribute("name"));
+      } else if (name.equals("coordinates")) {
+        return !tag.isEmpty();
+      }
+      return false;
+    }
+
+    private void addAttribute(String name) {
+      if (name != null) {
+        attributeNames.add(name);
+      }
+    }
+
+    public void endElement(String name, long endOffset) {
+      if (depth == placemarkDepth) {
+        placemarkDepth = -1;
+      }
+      if (name.endsWith("coordinates")) {
+        coordinates.endTuple();
+      }
+      depth--;
+    }
+
+    public void text(byte[] buf, int start, int end) {
+      coordinates.parse(buf, start, end);
+    }
+  }
+
+  /**
+   * Streaming parser for the "x,y[,z] x,y[,z] ..." text of coordinates
+   * elements, fed in arbitrary pieces. Numbers are accumulated digit by digit
+   * as they come, so no text is copied.
+   */
+  private class CoordinateParser {
+    private final double[] tuple = new double[3];
+    private int dimension = 0;
+
+    // state of the number being parsed
+    private boolean inNumber = false;
+    private boolean valid = true;
+    private boolean negative = false;
+    private boolean anyDigit = false;
+    private boolean fraction = false;
+    private long mantissa = 0;
+    private int digits = 0;
+    private int exponent = 0;
+    // -1: no exponent, 0: after 'e', 1: after exponent sign, 2: in digits
+    private int exponentState = -1;
+    private boolean negativeExponent = false;
+    private int exponentValue = 0;
+
+    void parse(byte[] buf, int start, int end) {
+      for (int i = start; i < end; i++) {
+        int b = buf[i];
+        int digit = b - '0';
+        if (digit >= 0 && digit <= 9) {
+          inNumber = true;
+          if (exponentState >= 0) {
+            exponentValue = Math.min(exponentValue * 10 + digit, 10000);
+            exponentState = 2;
+          } else {
+            anyDigit = true;
+            if (digits < 18) {
+              mantissa = mantissa * 10 + digit;
+              if (mantissa > 0) {
+                digits++;
+              }
+              if (fraction) {
+                exponent--;
+              }
+            } else if (!fraction) {
+              exponent++;
+            }
+          }
+        } else if (b == ',') {
+          endNumber();
+        } else if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+          endTuple();
+        } else {
+          if (b == '.' && !fraction && exponentState < 0) {
+            fraction = true;
+          } else if ((b == '-' || b == '+') && !inNumber) {
+            negative = b == '-';
+          } else if ((b == '-' || b == '+') && exponentState == 0) {
+            negativeExponent = b == '-';
+            exponentState = 1;
+          } else if ((b == 'e' || b == 'E') && anyDigit && exponentState < 0) {
+            exponentState = 0;
+          } else {
+            valid = false;
+          }
+          inNumber = true;
+        }
+      }
+    }
+
+    private void endNumber() {
+      if (inNumber) {
+        if (dimension < 3) {
+          double value = Double.NaN;
+          if (valid && anyDigit && (exponentState < 0 || exponentState == 2)) {
+            value = toDouble(mantissa,
+                exponent + (negativeExponent ? -exponentValue : exponentValue));
+            if (negative) {
+              value = -value;
+            }
+          }
+          tuple[dimension] = value;
+        }
+        dimension++;
+        inNumber = false;
+        valid = true;
+        negative = false;
+        anyDigit = false;
+        fraction = false;
+        mantissa = 0;
+        digits = 0;
+        exponent = 0;
+        exponentState = -1;
+        negativeExponent = false;
+        exponentValue = 0;
+      }
+    }
+
+    void endTuple() {
+      endNumber();
+      if (dimension >= 2) {
+        vertexCount++;
+        if (!Double.isNaN(tuple[0]) && !Double.isNaN(tuple[1])) {
+          envelope.expandToInclude(tuple[0], tuple[1]);
+        }
+      }
+      dimension = 0;
+    }
+  }
+
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1.0;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+    }
+  }
+
+  /**
+   * @return mantissa * 10^exponent; exact for up to 15 significant digits and
+   *         small exponents, which covers coordinates, otherwise within a few
+   *         ulps
+   */
+  static double toDouble(long mantissa, int exponent) {
+    double value = mantissa;
+    if (exponent < 0 && exponent >= -22) {
+      value /= POWERS_OF_TEN[-exponent];
+    } else if (exponent > 0 && exponent <= 22) {
+      value *= POWERS_OF_TEN[exponent];
+    } else if (exponent != 0) {
+      value *= Math.pow(10, exponent);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,632 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * Writes a layer as a super-overlay: a quadtree of KML tiles, each holding
+ * a bounded number of Placemarks, with Regions and NetworkLinks so viewers
+ * like Google Earth only load the tiles in view at a sufficient size.
+ * <p>
+ * The features are dealt out largest first: a tile keeps the largest
+ * features of its area and hands the others to its four children, by the
+ * center of their envelope. Since a tile stays visible when its children
+ * are loaded, every feature is written once.
+ * <p>
+ * Optionally features are simplified for the levels above their own: a
+ * feature which simplifies to fewer vertices at the resolution of a tile is
+ * written simplified, in a Folder shown until the child tile is loaded, and
+ * passed on to that child, down to the tile where it is not simplified any
+ * more.
+ * <p>
+ * The root tile goes to the output file and the other tiles to a
+ * <i>name</i>_files directory next to it, or, for a kmz file, to doc.kml
+ * and a files folder of the archive. Tiles are written in parallel.
+ */
+public class KMLSuperOverlayWriter {
+
+  public static final int DEFAULT_MAX_FEATURES = 1000;
+  public static final int DEFAULT_MIN_LOD_PIXELS = 128;
+  /** Name of the folder of the tiles inside a kmz file */
+  public static final String KMZ_TILE_FOLDER = "files";
+
+  private static final int MAX_LEVEL = 24;
+
+  private final KMLGeometryWriter geometryWriter;
+  private final Function<AttributeType, KMLOutputPlan.Encoder> encoders;
+  private int maxFeatures = DEFAULT_MAX_FEATURES;
+  private int minLodPixels = DEFAULT_MIN_LOD_PIXELS;
+  private boolean simplify = false;
+  private boolean compact = false;
+  private KMLStyleTable styleTable = null;
+  // shared styles written in every tile
+  private String stylesText = "";
+  private int threads = 1;
+  private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+  private static final class Tile {
+    final String key;
+    final int level;
+    final Envelope bounds;
+    List<Feature> features = new ArrayList<>();
+    final List<Simplified> simplified = new ArrayList<>();
+    final Tile[] children = new Tile[4];
+    // bounds and envelopes of all features of the tile and its children
+    final Envelope region = new Envelope();
+    // region as longitude/latitude
+    Envelope box;
+
+    Tile(String key, int level, Envelope bounds) {
+      this.key = key;
+      this.level = level;
+      this.bounds = bounds;
+    }
+
+    boolean hasChildren() {
+      for (Tile child : children) {
+        if (child != null) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final class Simplified {
+    final Feature feature;
+    final Geometry geometry;
+    // child tile where the feature goes on
+    final int child;
+
+    Simplified(Feature feature, Geometry geometry, int child) {
+      this.feature = feature;
+      this.geometry = geometry;
+      this.child = child;
+    }
+  }
+
+  /**
+   * @param geometryWriter
+   *          writer whose settings (projection, decimals, ...) are used
+   * @param encoders
+   *          provides the encoder of each attribute type
+   */
+  public KMLSuperOverlayWriter(KMLGeometryWriter geometryWriter,
+      Function<AttributeType, KMLOutputPlan.Encoder> encoders) {
+    this.geometryWriter = geometryWriter;
+    this.encoders = encoders;
+  }
+
+  /**
+   * @param maxFeatures maximum number of features of a tile, except at the
+   *          deepest level
+   */
+  public void setMaxFeaturesPerTile(int maxFeatures) {
+    this.maxFeatures = Math.max(1, maxFeatures);
+  }
+
+  /**
+   * @param minLodPixels size on screen a tile must reach to be loaded
+   */
+  public void setMinLodPixels(int minLodPixels) {
+    this.minLodPixels = Math.max(1, minLodPixels);
+  }
+
+  public void setSimplify(boolean simplify) {
+    this.simplify = simplify;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * @param compact true to write the Placemarks in the compact profile
+   */
+  public void setCompact(boolean compact) {
+    this.compact = compact;
+  }
+
+  /**
+   * @param styleTable styles of the Placemarks, or null for no style
+   */
+  public void setStyleTable(KMLStyleTable styleTable) {
+    this.styleTable = styleTable;
+  }
+
+  public void setCompressionLevel(int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  /**
+   * Writes the super-overlay.
+   * 
+   * @param featureCollection
+   *          features to write
+   * @param fileName
+   *          root kml or kmz file
+   */
+  public void write(FeatureCollection featureCollection, String fileName)
+      throws Exception {
+    FeatureSchema schema = featureCollection.getFeatureSchema();
+    KMLOutputPlan plan = KMLOutputPlan.compile(
+        KMLWriter.makeOutputTemplate(schema, compact, styleTable), schema,
+        encoders, styleTable);
+    String schemaHeader = KMLWriter.getSchemaHeader(schema, compact);
+    stylesText = styleTable == null ? "" : styleTable.getStylesText(compact);
+
+    Tile root = buildTree(featureCollection.getFeatures());
+    simplify(root);
+    computeRegion(root);
+    List<Tile> tiles = new ArrayList<>();
+    collect(root, tiles);
+
+    File file = new File(fileName).getAbsoluteFile();
+    String name = file.getName().replaceFirst("\\.[^.]*$", "");
+    if (fileName.matches("(?i).*\\.kmz")) {
+      writeKMZ(file, name, tiles, plan, schemaHeader);
+    } else {
+      writeDirectory(file, name, tiles, plan, schemaHeader);
+    }
+  }
+
+  private Tile buildTree(List<Feature> features) {
+    List<Feature> sorted = new ArrayList<>(features);
+    sorted.sort(Comparator.comparingDouble(KMLSuperOverlayWriter::size)
+        .reversed());
+
+    Envelope extent = new Envelope();
+    for (Feature f : sorted) {
+      extent.expandToInclude(f.getGeometry().getEnvelopeInternal());
+    }
+    // square tiles
+    double side = Math.max(extent.getWidth(), extent.getHeight());
+    Envelope bounds = extent.isNull() ? extent : new Envelope(
+        extent.getMinX(), extent.getMinX() + side, extent.getMinY(),
+        extent.getMinY() + side);
+
+    Tile root = new Tile("", 0, bounds);
+    if (side > 0) {
+      build(root, sorted);
+    } else {
+      root.features.addAll(sorted);
+    }
+    return root;
+  }
+
+  private static double size(Feature f) {
+    Envelope e = f.getGeometry().getEnvelopeInternal();
+    return e.isNull() ? 0 : Math.max(e.getWidth(), e.getHeight());
+  }
+
+  private void build(Tile tile, List<Feature> features) {
+    if (features.size() <= maxFeatures || tile.level >= MAX_LEVEL) {
+      tile.features.addAll(features);
+      return;
+    }
+    tile.features.addAll(features.subList(0, maxFeatures));
+    List<List<Feature>> quadrants = new ArrayList<>(4);
+    for (int q = 0; q < 4; q++) {
+      quadrants.add(new ArrayList<>());
+    }
+    for (Feature f : features.subList(maxFeatures, features.size())) {
+      Envelope e = f.getGeometry().getEnvelopeInternal();
+      if (e.isNull()) {
+        tile.features.add(f);
+      } else {
+        quadrants.get(quadrant(tile, e)).add(f);
+      }
+    }
+    for (int q = 0; q < 4; q++) {
+      if (!quadrants.get(q).isEmpty()) {
+        build(child(tile, q), quadrants.get(q));
+      }
+    }
+  }
+
+  private static int quadrant(Tile tile, Envelope e) {
+    Envelope b = tile.bounds;
+    double x = (e.getMinX() + e.getMaxX()) / 2;
+    double y = (e.getMinY() + e.getMaxY()) / 2;
+    return (x < (b.getMinX() + b.getMaxX()) / 2 ? 0 : 1)
+        + (y < (b.getMinY() + b.getMaxY()) / 2 ? 0 : 2);
+  }
+
+  private static Tile child(Tile tile, int q) {
+    if (tile.children[q] == null) {
+      Envelope b = tile.bounds;
+      double midX = (b.getMinX() + b.getMaxX()) / 2;
+      double midY = (b.getMinY() + b.getMaxY()) / 2;
+      tile.children[q] = new Tile(tile.key + q, tile.level + 1, new Envelope(
+          (q & 1) == 0 ? b.getMinX() : midX, (q & 1) == 0 ? midX : b.getMaxX(),
+          (q & 2) == 0 ? b.getMinY() : midY, (q & 2) == 0 ? midY : b.getMaxY()));
+    }
+    return tile.children[q];
+  }
+
+  /**
+   * Replaces the features of a tile which simplify at its resolution by
+   * their simplified geometry, and passes them on to the children.
+   */
+  private void simplify(Tile tile) {
+    if (simplify && tile.hasChildren()) {
+      List<Feature> kept = new ArrayList<>();
+      for (Feature f : tile.features) {
+        Geometry geometry = f.getGeometry();
+        Envelope e = geometry.getEnvelopeInternal();
+        if (geometry.getDimension() == 0 || e.isNull()) {
+          kept.add(f);
+          continue;
+        }
+        int q = quadrant(tile, e);
+        Tile child = child(tile, q);
+        // half a pixel when the child tile gets loaded
+        double tolerance = Math.max(child.bounds.getWidth(),
+            child.bounds.getHeight()) / (2.0 * minLodPixels);
+        Geometry simplified = TopologyPreservingSimplifier.simplify(geometry,
+            tolerance);
+        if (simplified.getNumPoints() < geometry.getNumPoints()) {
+          tile.simplified.add(new Simplified(f, simplified, q));
+          child.features.add(f);
+        } else {
+          kept.add(f);
+        }
+      }
+      tile.features = kept;
+    }
+    for (Tile child : tile.children) {
+      if (child != null) {
+        simplify(child);
+      }
+    }
+  }
+
+  private void computeRegion(Tile tile) {
+    tile.region.expandToInclude(tile.bounds);
+    for (Feature f : tile.features) {
+      tile.region.expandToInclude(f.getGeometry().getEnvelopeInternal());
+    }
+    for (Simplified s : tile.simplified) {
+      tile.region.expandToInclude(s.feature.getGeometry()
+          .getEnvelopeInternal());
+    }
+    for (Tile child : tile.children) {
+      if (child != null) {
+        computeRegion(child);
+        tile.region.expandToInclude(child.region);
+      }
+    }
+    tile.box = geometryWriter.toGeographic(tile.region);
+  }
+
+  private static void collect(Tile tile, List<Tile> tiles) {
+    tiles.add(tile);
+    for (Tile child : tile.children) {
+      if (child != null) {
+        collect(child, tiles);
+      }
+    }
+  }
+
+  private void writeDirectory(File file, String name, List<Tile> tiles,
+      KMLOutputPlan plan, String schemaHeader) throws Exception {
+    File directory = new File(file.getParentFile(), name + "_files");
+    if (tiles.size() > 1 && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("could not create directory " + directory);
+    }
+    String prefix = directory.getName() + "/";
+    ThreadLocal<KMLGeometryWriter> geometryWriters = ThreadLocal
+        .withInitial(() -> new KMLGeometryWriter(geometryWriter));
+    ThreadLocal<KMLValueEncoder> valueEncoders = ThreadLocal
+        .withInitial(KMLValueEncoder::new);
+
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (Tile tile : tiles) {
+      tasks.add(() -> {
+        File tileFile = tile.level == 0 ? file : new File(directory, tile.key
+            + ".kml");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(tileFile), StandardCharsets.UTF_8))) {
+          writeTile(tile, tile.level == 0 ? name : tile.key,
+              tile.level == 0 ? prefix : "", plan, schemaHeader,
+              geometryWriters.get(), valueEncoders.get(), out);
+        }
+        return null;
+      });
+    }
+    if (threads == 1) {
+      for (Callable<Void> task : tasks) {
+        task.call();
+      }
+      return;
+    }
+    ExecutorService pool = newPool();
+    try {
+      for (Future<Void> result : pool.invokeAll(tasks)) {
+        get(result);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private void writeKMZ(File file, String name, List<Tile> tiles,
+      KMLOutputPlan plan, String schemaHeader) throws Exception {
+    String prefix = KMZ_TILE_FOLDER + "/";
+    ThreadLocal<KMLGeometryWriter> geometryWriters = ThreadLocal
+        .withInitial(() -> new KMLGeometryWriter(geometryWriter));
+    ThreadLocal<KMLValueEncoder> valueEncoders = ThreadLocal
+        .withInitial(KMLValueEncoder::new);
+    ExecutorService pool = threads > 1 ? newPool() : null;
+
+    try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file)))) {
+      zip.setLevel(compressionLevel);
+      Writer zipWriter = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+      // tiles are serialized in parallel and added in order, the root tile
+      // being the first entry
+      ArrayDeque<Future<KMLOutputBuffer>> pending = new ArrayDeque<>();
+      ArrayDeque<Tile> pendingTiles = new ArrayDeque<>();
+      for (Tile tile : tiles) {
+        Callable<KMLOutputBuffer> task = () -> {
+          KMLOutputBuffer buffer = new KMLOutputBuffer();
+          writeTile(tile, tile.level == 0 ? name : tile.key,
+              tile.level == 0 ? prefix : "", plan, schemaHeader,
+              geometryWriters.get(), valueEncoders.get(), buffer);
+          return buffer;
+        };
+        if (pool == null) {
+          addEntry(zip, zipWriter, tile, prefix, task.call());
+          continue;
+        }
+        if (pending.size() >= 2 * threads) {
+          addEntry(zip, zipWriter, pendingTiles.poll(), prefix,
+              get(pending.poll()));
+        }
+        pending.add(pool.submit(task));
+        pendingTiles.add(tile);
+      }
+      while (!pending.isEmpty()) {
+        addEntry(zip, zipWriter, pendingTiles.poll(), prefix,
+            get(pending.poll()));
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  private static void addEntry(ZipOutputStream zip, Writer zipWriter,
+      Tile tile, String prefix, KMLOutputBuffer buffer) throws IOException {
+    zip.putNextEntry(new ZipEntry(tile.level == 0 ? KMLWriter.KMZ_ENTRY_NAME
+        : prefix + tile.key + ".kml"));
+    buffer.writeTo(zipWriter);
+    zipWriter.flush();
+    zip.closeEntry();
+  }
+
+  private ExecutorService newPool() {
+    AtomicInteger threadCount = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "kml-tile-writer-"
+          + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private static <T> T get(Future<T> future) throws Exception {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
+  private void writeTile(Tile tile, String name, String hrefPrefix,
+      KMLOutputPlan plan, String schemaHeader,
+      KMLGeometryWriter tileGeometryWriter, KMLValueEncoder valueEncoder,
+      Writer out) throws IOException {
+    // Region and NetworkLink refresh on region need KML 2.1
+    out.write("<?xml version='1.0' encoding='UTF-8'?>\n"
+        + "<kml xmlns=\"http://earth.google.com/kml/2.1\">\n<Document>\n"
+        + "  <name>");
+    valueEncoder.writeEscaped(name, out);
+    out.write("</name>\n");
+    out.write(stylesText);
+    // the root tile is always shown
+    if (tile.level > 0) {
+      writeRegion(tile.box, minLodPixels, -1, "  ", valueEncoder, out);
+    }
+    out.write(schemaHeader);
+
+    out.write("    <Folder>\n");
+    for (Feature f : tile.features) {
+      plan.write(f, tileGeometryWriter, valueEncoder, out);
+    }
+    out.write("    </Folder>\n");
+
+    // simplified features, until the child they go on to is loaded
+    for (int q = 0; q < 4; q++) {
+      boolean open = false;
+      for (Simplified s : tile.simplified) {
+        if (s.child != q) {
+          continue;
+        }
+        if (!open) {
+          out.write("    <Folder>\n");
+          writeRegion(tile.children[q].box, 0, minLodPixels, "      ",
+              valueEncoder, out);
+          open = true;
+        }
+        plan.write(s.feature, s.geometry, tileGeometryWriter, valueEncoder,
+            out);
+      }
+      if (open) {
+        out.write("    </Folder>\n");
+      }
+    }
+
+    for (Tile child : tile.children) {
+      if (child == null) {
+        continue;
+      }
+      out.write("    <NetworkLink>\n      <name>");
+      valueEncoder.writeEscaped(child.key, out);
+      out.write("</name>\n");
+      writeRegion(child.box, minLodPixels, -1, "      ", valueEncoder, out);
+      out.write("      <Link>\n        <href>");
+      valueEncoder.writeEscaped(href(hrefPrefix + child.key + ".kml"), out);
+      out.write("</href>\n"
+          + "        <viewRefreshMode>onRegion</viewRefreshMode>\n"
+          + "      </Link>\n    </NetworkLink>\n");
+    }
+    out.write("</Document>\n</kml>\n");
+  }
+
+  static void writeRegion(Envelope box, int minLod, int maxLod,
+      String indent, KMLValueEncoder valueEncoder, Writer out)
+      throws IOException {
+    writeRegion(box, minLod, maxLod, false, indent, valueEncoder, out);
+  }
+
+  /**
+   * Writes a Region, on one line without indentation nor line break when
+   * compact.
+   */
+  static void writeRegion(Envelope box, int minLod, int maxLod,
+      boolean compact, String indent, KMLValueEncoder valueEncoder,
+      Writer out) throws IOException {
+    if (compact) {
+      out.write("<Region><LatLonAltBox>");
+      writeCompactElement("north", box.getMaxY(), valueEncoder, out);
+      writeCompactElement("south", box.getMinY(), valueEncoder, out);
+      writeCompactElement("east", box.getMaxX(), valueEncoder, out);
+      writeCompactElement("west", box.getMinX(), valueEncoder, out);
+      out.write("</LatLonAltBox><Lod>");
+      writeCompactElement("minLodPixels", minLod, valueEncoder, out);
+      writeCompactElement("maxLodPixels", maxLod, valueEncoder, out);
+      out.write("</Lod></Region>");
+      return;
+    }
+    out.write(indent);
+    out.write("<Region>\n");
+    out.write(indent);
+    out.write("  <LatLonAltBox>\n");
+    writeElement("north", box.getMaxY(), indent, valueEncoder, out);
+    writeElement("south", box.getMinY(), indent, valueEncoder, out);
+    writeElement("east", box.getMaxX(), indent, valueEncoder, out);
+    writeElement("west", box.getMinX(), indent, valueEncoder, out);
+    out.write(indent);
+    out.write("  </LatLonAltBox>\n");
+    out.write(indent);
+    out.write("  <Lod>\n");
+    writeElement("minLodPixels", minLod, indent, valueEncoder, out);
+    writeElement("maxLodPixels", maxLod, indent, valueEncoder, out);
+    out.write(indent);
+    out.write("  </Lod>\n");
+    out.write(indent);
+    out.write("</Region>\n");
+  }
+
+  private static void writeElement(String element, double value,
+      String indent, KMLValueEncoder valueEncoder, Writer out)
+      throws IOException {
+    out.write(indent);
+    out.write("    <");
+    out.write(element);
+    out.write('>');
+    valueEncoder.writeDouble(value, out);
+    out.write("</");
+    out.write(element);
+    out.write(">\n");
+  }
+
+  private static void writeCompactElement(String element, double value,
+      KMLValueEncoder valueEncoder, Writer out) throws IOException {
+    out.write('<');
+    out.write(element);
+    out.write('>');
+    valueEncoder.writeDouble(value, out);
+    out.write("</");
+    out.write(element);
+    out.write('>');
+  }
+
+  /** @return the path escaped for use as a relative URI */
+  static String href(String path) {
+    try {
+      return new URI(null, null, path, null).toASCIIString();
+    } catch (URISyntaxException e) {
+      return path;
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+package com.isa.jump.kml;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-read dictionary for attribute values. KML files repeat the same
+ * <code>name</code>, <code>styleUrl</code> or category values over and over;
+ * passing every parsed value through {@link #get(String, String)} makes all
+ * equal values share one String instance.
+ * <p>
+ * The dictionary holds at most <code>capacity</code> values and evicts the
+ * least recently used one when full. For every column it keeps a
+ * {@link ColumnStatistics} record; once a column has been sampled enough and
+ * turns out to have a high cardinality, its values bypass the dictionary so
+ * that unique values (ids, descriptions) do not push out the shared ones.
+ */
+public class KMLValueDictionary {
+
+  /** default maximum number of distinct values kept */
+  public static final int DEFAULT_CAPACITY = 65536;
+
+  /** number of values seen before a column is classified */
+  static final int SAMPLE_SIZE = 1000;
+
+  /** a column stays encoded while distinct/count is below this ratio */
+  static final double MAX_DISTINCT_RATIO = 0.5;
+
+  /** values longer than this are never pooled */
+  static final int MAX_VALUE_LENGTH = 256;
+
+  private final int capacity;
+  private final LinkedHashMap<String, String> values;
+  private final Map<String, ColumnStatistics> statistics = new LinkedHashMap<>();
+
+  public KMLValueDictionary() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity maximum number of distinct values kept in the dictionary
+   */
+  public KMLValueDictionary(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    // access ordered, so removeEldestEntry evicts the least recently used value
+    this.values = new LinkedHashMap<String, String>(Math.min(capacity, 1024), 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > KMLValueDictionary.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * Returns the shared instance of <code>value</code> for the given column,
+   * adding it to the dictionary if needed.
+   *
+   * @param column name of the column the value belongs to
+   * @param value parsed attribute value, may be null
+   * @return an equal String, shared with earlier occurrences when possible
+   */
+  public String get(String column, String value) {
+    if (value == null) {
+      return null;
+    }
+    ColumnStatistics stats = statistics.get(column);
+    if (stats == null) {
+      stats = new ColumnStatistics(column);
+      statistics.put(column, stats);
+    }
+    stats.count++;
+    if (!stats.encoded) {
+      stats.bypassed++;
+      return value;
+    }
+    String shared = value;
+    if (value.length() > MAX_VALUE_LENGTH) {
+      // long texts (descriptions) are hardly ever repeated
+      stats.misses++;
+    } else if ((shared = values.get(value)) == null) {
+      values.put(value, value);
+      stats.misses++;
+      shared = value;
+    }
+    if (stats.count == SAMPLE_SIZE
+        && stats.misses > SAMPLE_SIZE * MAX_DISTINCT_RATIO) {
+      stats.encoded = false;
+    }
+    return shared;
+  }
+
+  /** @return number of distinct values currently held */
+  public int size() {
+    return values.size();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** drop all values and statistics, ready for the next read */
+  public void clear() {
+    values.clear();
+    statistics.clear();
+  }
+
+  /**
+   * @return the statistics of all columns seen so far, in the order they were
+   *         first encountered
+   */
+  public Map<String, ColumnStatistics> getStatistics() {
+    return Collections.unmodifiableMap(statistics);
+  }
+
+  /**
+   * Cardinality statistics of one column. <code>misses</code> counts the
+   * values that were not found in the dictionary, which is the number of
+   * distinct values as long as nothing of this column got evicted.
+   */
+  public static class ColumnStatistics {
+    private final String column;
+    long count = 0;
+    long misses = 0;
+    long bypassed = 0;
+    boolean encoded = true;
+
+    ColumnStatistics(String column) {
+      this.column = column;
+    }
+
+    public String getColumn() {
+      return column;
+    }
+
+    /** @return number of values seen */
+    public long getCount() {
+      return count;
+    }
+
+    /** @return number of distinct values seen while the column was encoded */
+    public long getDistinctCount() {
+      return misses;
+    }
+
+    /** @return number of values which did not go through the dictionary */
+    public long getBypassedCount() {
+      return bypassed;
+    }
+
+    /** @return true if values of this column are shared through the dictionary */
+    public boolean isDictionaryEncoded() {
+      return encoded;
+    }
+
+    public String toString() {
+      return column + ": " + count + " values, " + misses + " distinct"
+          + (encoded ? "" : " (not encoded)");
+    }
+  }
+}
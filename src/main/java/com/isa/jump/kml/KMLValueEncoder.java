@@ -0,0 +1,226 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Encodes attribute values into KML text, writing straight to the output.
+ * <p>
+ * Text is XML escaped in a single scan, runs without special characters
+ * being passed to the Writer as they are. Numbers, booleans and dates are
+ * formatted in a reusable buffer, without allocation. Dates are written as
+ * yyyy-MM-dd in the default time zone.
+ * <p>
+ * Instances are not thread safe; use one per writing thread.
+ */
+public class KMLValueEncoder {
+
+  private static final long MILLIS_PER_DAY = 86400000L;
+
+  // dates before 1582-10-15 are written in the Julian calendar, as
+  // java.text.SimpleDateFormat does
+  private static final long GREGORIAN_CUTOVER = -12219292800000L;
+
+  private final char[] buffer = new char[KMLCoordinateFormatter.MAX_LENGTH];
+  private final KMLCoordinateFormatter formatter = new KMLCoordinateFormatter();
+  private final TimeZone timeZone = TimeZone.getDefault();
+
+  public KMLValueEncoder() {
+  }
+
+  /**
+   * Writes any value, choosing the encoding by its class.
+   */
+  public void writeValue(Object value, Writer out) throws IOException {
+    if (value instanceof Integer || value instanceof Long
+        || value instanceof Short || value instanceof Byte) {
+      writeLong(((Number) value).longValue(), out);
+    } else if (value instanceof Double) {
+      writeDouble((Double) value, out);
+    } else if (value instanceof Boolean) {
+      writeBoolean((Boolean) value, out);
+    } else if (value instanceof Date) {
+      writeDate((Date) value, out);
+    } else if (value instanceof LocalDate) {
+      LocalDate date = (LocalDate) value;
+      writeDate(date.getYear(), date.getMonthValue(), date.getDayOfMonth(),
+          true, out);
+    } else {
+      writeEscaped(value.toString(), out);
+    }
+  }
+
+  /**
+   * Writes text, replacing the XML special characters by their entities.
+   */
+  public void writeEscaped(String s, Writer out) throws IOException {
+    int length = s.length();
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c > '>') {
+        continue;
+      }
+      String entity;
+      switch (c) {
+      case '<':
+        entity = "&lt;";
+        break;
+      case '>':
+        entity = "&gt;";
+        break;
+      case '&':
+        entity = "&amp;";
+        break;
+      case '\'':
+        entity = "&apos;";
+        break;
+      case '"':
+        entity = "&quot;";
+        break;
+      default:
+        continue;
+      }
+      if (i > start) {
+        out.write(s, start, i - start);
+      }
+      out.write(entity);
+      start = i + 1;
+    }
+    if (start == 0) {
+      out.write(s);
+    } else if (start < length) {
+      out.write(s, start, length - start);
+    }
+  }
+
+  public void writeLong(long value, Writer out) throws IOException {
+    char[] buf = buffer;
+    int pos = buf.length;
+    // accumulate negatively, Long.MIN_VALUE has no positive counterpart
+    long v = value < 0 ? value : -value;
+    do {
+      long q = v / 10;
+      buf[--pos] = (char) ('0' + (q * 10 - v));
+      v = q;
+    } while (v != 0);
+    if (value < 0) {
+      buf[--pos] = '-';
+    }
+    out.write(buf, pos, buf.length - pos);
+  }
+
+  /**
+   * Writes the shortest decimal that reads back as the same double.
+   */
+  public void writeDouble(double value, Writer out) throws IOException {
+    out.write(buffer, 0, formatter.format(value, buffer, 0));
+  }
+
+  public void writeBoolean(boolean value, Writer out) throws IOException {
+    out.write(value ? "true" : "false");
+  }
+
+  /**
+   * Writes the day of a Date in the default time zone, as the former
+   * SimpleDateFormat("yyyy-MM-dd") did: Julian calendar before the
+   * Gregorian cutover, and the year of era, without era, for BC dates.
+   */
+  public void writeDate(Date date, Writer out) throws IOException {
+    long millis = date.getTime();
+    if (millis < GREGORIAN_CUTOVER + MILLIS_PER_DAY) {
+      Calendar calendar = new GregorianCalendar(timeZone);
+      calendar.setTime(date);
+      writeDate(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+          calendar.get(Calendar.DAY_OF_MONTH), false, out);
+      return;
+    }
+    millis += timeZone.getOffset(millis);
+    long days = Math.floorDiv(millis, MILLIS_PER_DAY);
+
+    // civil date of a day count since 1970-01-01, see H. Hinnant,
+    // "chrono-Compatible Low-Level Date Algorithms"
+    days += 719468;
+    long era = Math.floorDiv(days, 146097);
+    long doe = days - era * 146097;
+    long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+    int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+    long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+    writeDate(year, month, day, false, out);
+  }
+
+  /**
+   * @param iso true to write the year as LocalDate.toString() does, signed
+   *          if negative or over 9999
+   */
+  private void writeDate(long year, int month, int day, boolean iso,
+      Writer out) throws IOException {
+    char[] buf = buffer;
+    int pos = 0;
+    if (year < 0) {
+      buf[pos++] = '-';
+      year = -year;
+    } else if (iso && year > 9999) {
+      buf[pos++] = '+';
+    }
+    if (year < 10000) {
+      int y = (int) year;
+      buf[pos++] = (char) ('0' + y / 1000);
+      buf[pos++] = (char) ('0' + y / 100 % 10);
+      buf[pos++] = (char) ('0' + y / 10 % 10);
+      buf[pos++] = (char) ('0' + y % 10);
+    } else {
+      String y = Long.toString(year);
+      y.getChars(0, y.length(), buf, pos);
+      pos += y.length();
+    }
+    buf[pos++] = '-';
+    buf[pos++] = (char) ('0' + month / 10);
+    buf[pos++] = (char) ('0' + month % 10);
+    buf[pos++] = '-';
+    buf[pos++] = (char) ('0' + day / 10);
+    buf[pos++] = (char) ('0' + day % 10);
+    out.write(buf, 0, pos);
+  }
+}
@@ -34,16 +34,38 @@
 package com.isa.jump.kml;
 
 import com.vividsolutions.jump.feature.*;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import com.vividsolutions.jump.io.*;
 import com.vividsolutions.jump.io.datasource.DelegatingCompressedFileHandler;
 import com.vividsolutions.jump.io.datasource.StandardReaderWriterFileDataSource;
-import org.locationtech.jts.util.Assert;
 
 public class KMLWriter implements JUMPWriter {
   // Standard tags for the auto-generated outputTemplate.
@@ -54,12 +76,97 @@ public class KMLWriter implements JUMPWriter {
   public static String standard_folder = "Folder";
   public static String standard_name = "name";
   public static String placemarkName = "Placemark";
+  /** Name of the kml entry of a kmz file */
+  public static final String KMZ_ENTRY_NAME = "doc.kml";
   private KMLOutputTemplate outputTemplate = null;
   private final KMLGeometryWriter geometryWriter = new KMLGeometryWriter();
 
+  /** Default number of features serialized together by a worker thread. */
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  // bounds of the parts of a file read to append to it
+  private static final int MAX_HEAD_SIZE = 1 << 20;
+  private static final int MAX_TAIL_SIZE = 1 << 16;
+  private static final Pattern SIMPLE_FIELD_NAME = Pattern
+      .compile("<SimpleField\\s[^>]*\\bname=\"([^\"]*)\"");
+
+  private int writeThreads = 1;
+  private int writeBatchSize = DEFAULT_BATCH_SIZE;
+  private int writeBatchesInFlight = 0;
+  private boolean compact = false;
+  private KMLStyleTable styleTable = null;
+  private boolean hilbertOrder = false;
+
   /** constructor **/
   public KMLWriter() {
     geometryWriter.setLinePrefix("                ");
+    geometryWriter.setMaximumCoordinatesPerLine(1);
+  }
+
+  /**
+   * Sets the number of threads serializing features. With more than one
+   * thread, batches of features are serialized concurrently and appended to
+   * the file in their original order.
+   * 
+   * @param writeThreads number of worker threads, 1 to write serially
+   */
+  public void setWriteThreads(int writeThreads) {
+    this.writeThreads = Math.max(1, writeThreads);
+  }
+
+  /**
+   * @param writeBatchSize number of features in a batch serialized at once
+   */
+  public void setWriteBatchSize(int writeBatchSize) {
+    this.writeBatchSize = Math.max(1, writeBatchSize);
+  }
+
+  /**
+   * Bounds the memory used by the parallel write.
+   * 
+   * @param writeBatchesInFlight maximum number of batches being serialized
+   *          or waiting to be written, twice the number of threads if not
+   *          positive
+   */
+  public void setWriteBatchesInFlight(int writeBatchesInFlight) {
+    this.writeBatchesInFlight = writeBatchesInFlight;
+  }
+
+  /**
+   * Selects the compact output: no indentation, one line per Placemark,
+   * attribute values without surrounding line breaks, and compact
+   * coordinates (see {@link KMLGeometryWriter#setCompact(boolean)}).
+   * 
+   * @param compact true to write compact KML, false to pretty-print it
+   */
+  public void setCompact(boolean compact) {
+    this.compact = compact;
+    geometryWriter.setCompact(compact);
+  }
+
+  /**
+   * Styles the Placemarks according to the value of a column, each distinct
+   * style being written once in the document header.
+   * 
+   * @param styleTable the style table, or null to write no style
+   */
+  public void setStyleTable(KMLStyleTable styleTable) {
+    this.styleTable = styleTable;
+  }
+
+  /**
+   * Writes the features in the order of a Hilbert curve through their
+   * envelope centres instead of the collection order, see
+   * {@link KMLHilbertOrder}.
+   */
+  public void setHilbertOrder(boolean hilbertOrder) {
+    this.hilbertOrder = hilbertOrder;
+  }
+
+  /** @return the features in the order they are written */
+  private List<Feature> features(FeatureCollection featureCollection) {
+    List<Feature> features = featureCollection.getFeatures();
+    return hilbertOrder ? KMLHilbertOrder.sort(features) : features;
   }
 
   private static class ClassicReaderWriterFileDataSource extends
@@ -78,22 +185,142 @@ public class KMLWriter implements JUMPWriter {
     }
   }
 
+  public static class KMZ extends ClassicReaderWriterFileDataSource {
+    public KMZ() {
+      super(new KMLReader(false), new KMLWriter(), new String[] { "kmz" });
+    }
+  }
+
   /**
    * Main entry function - write the KML file.
    * 
    * @param featureCollection
    *          features to write
    * @param dp
-   *          specify the 'OuputFile' and 'OuputTemplateFile'
+   *          specify the 'File' and optionally the 'TemplateFile' giving
+   *          the layout of the document, used for plain and split output
    */
   public void write(FeatureCollection featureCollection, DriverProperties dp)
       throws Exception {
+    String outputFname = configure(dp);
+    if (outputFname == null) {
+      return;
+    }
+    configureTransform(featureCollection, dp);
+    if ("true".equalsIgnoreCase(dp.getProperty("Super_Overlay"))) {
+      KMLSuperOverlayWriter superOverlay = new KMLSuperOverlayWriter(
+          geometryWriter, this::getEncoder);
+      superOverlay.setMaxFeaturesPerTile(intProperty(dp, "Tile_Max_Features",
+          KMLSuperOverlayWriter.DEFAULT_MAX_FEATURES));
+      superOverlay.setMinLodPixels(intProperty(dp, "Tile_Min_Lod_Pixels",
+          KMLSuperOverlayWriter.DEFAULT_MIN_LOD_PIXELS));
+      superOverlay.setSimplify("true".equalsIgnoreCase(dp
+          .getProperty("Tile_Simplify")));
+      superOverlay.setThreads(writeThreads);
+      superOverlay.setCompact(compact);
+      superOverlay.setStyleTable(styleTable);
+      superOverlay.setCompressionLevel(intProperty(dp, "Compression_Level",
+          Deflater.DEFAULT_COMPRESSION));
+      superOverlay.write(featureCollection, outputFname);
+      return;
+    }
+    if ("true".equalsIgnoreCase(dp.getProperty("Point_Clusters"))) {
+      KMLClusterWriter clusters = new KMLClusterWriter(geometryWriter,
+          this::getEncoder);
+      clusters.setLevels(intProperty(dp, "Cluster_Levels",
+          KMLClusterWriter.DEFAULT_LEVELS));
+      clusters.setMinLodPixels(intProperty(dp, "Cluster_Min_Lod_Pixels",
+          KMLClusterWriter.DEFAULT_MIN_LOD_PIXELS));
+      clusters.setThreads(writeThreads);
+      clusters.setCompact(compact);
+      clusters.setStyleTable(styleTable);
+      Writer w = openWriter(outputFname, dp);
+      clusters.write(featureCollection, new File(outputFname).getName()
+          .replaceFirst("\\.[^.]*$", ""), w);
+      w.close();
+      return;
+    }
+    if ("true".equalsIgnoreCase(dp.getProperty("Append"))
+        && new File(outputFname).exists()) {
+      append(featureCollection, outputFname);
+      return;
+    }
+    String templateFile = dp.getProperty("TemplateFile");
+    if (templateFile != null && templateFile.length() > 0) {
+      outputTemplate = KMLOutputTemplate.load(new File(templateFile));
+    } else {
+      outputTemplate = KMLWriter.makeOutputTemplate(featureCollection
+          .getFeatureSchema(), compact, styleTable);
+    }
+    int maxFeatures = intProperty(dp, "Max_Features_Per_File", 0);
+    long maxBytes = longProperty(dp, "Max_Bytes_Per_File", 0);
+    if (maxFeatures > 0 || maxBytes > 0) {
+      writeParts(featureCollection, outputFname, dp, maxFeatures, maxBytes,
+          "true".equalsIgnoreCase(dp.getProperty("Index_File")));
+      return;
+    }
+    // java.io.Writer w = new java.io.BufferedWriter(new
+    // java.io.FileWriter(outputFname));
+    java.io.Writer w = openWriter(outputFname, dp);
+    this.write(featureCollection, w);
+    w.close();
+  }
+
+  /**
+   * Writes several layers into one KML or KMZ file, each in its own Folder
+   * with its own Schema, the layers being serialized concurrently with
+   * 'Write_Threads' threads.
+   * 
+   * @param names
+   *          names of the layers
+   * @param layers
+   *          features of each layer
+   * @param dp
+   *          the same properties as for a single layer
+   */
+  public void write(List<String> names, List<FeatureCollection> layers,
+      DriverProperties dp) throws Exception {
+    String outputFname = configure(dp);
+    if (outputFname == null) {
+      return;
+    }
+    KMLMultiLayerWriter multiLayer = new KMLMultiLayerWriter(geometryWriter,
+        this::getEncoder);
+    for (int i = 0; i < layers.size(); i++) {
+      multiLayer.addLayer(names.get(i), layers.get(i));
+    }
+    multiLayer.setCompact(compact);
+    multiLayer.setHilbertOrder(hilbertOrder);
+    multiLayer.setSourceCRS(dp.getProperty("Source_CRS"));
+    multiLayer.setThreads(writeThreads);
+    multiLayer.setBatchSize(writeBatchSize);
+    multiLayer.setCompressionLevel(intProperty(dp, "Compression_Level",
+        Deflater.DEFAULT_COMPRESSION));
+    multiLayer.setCompressionThreads(intProperty(dp, "Compression_Threads", 1));
+    multiLayer.write(outputFname);
+  }
+
+  /**
+   * Reads the output file name and the writing options from the driver
+   * properties.
+   * 
+   * @return the output file name, or null if the write was cancelled in the
+   *         export dialog
+   */
+  private String configure(DriverProperties dp) throws Exception {
     String outputFname;
     double centralMeridian;
 
     outputFname = dp.getProperty("File");
+    // missing UTM parameters mean no UTM projection
     String UTMZone = dp.getProperty("UTM_Zone");
     String centralMeridianStr = dp.getProperty("Central_Meridian");
+    if (UTMZone == null) {
+      UTMZone = "";
+    }
+    if (centralMeridianStr == null) {
+      centralMeridianStr = "";
+    }
 
     if (outputFname == null) {
       outputFname = dp.getProperty("DefaultValue");
@@ -104,180 +331,629 @@ public class KMLWriter implements JUMPWriter {
           "call to KMLWRite.write() has DriverProperties w/o a OutputFile specified");
     }
 
-    if ((UTMZone != null) && (centralMeridianStr != null)) {
-      if ((UTMZone.length() > 0) && (centralMeridianStr.length() > 0)) {
-        centralMeridian = Double
-            .parseDouble(dp.getProperty("Central_Meridian"));
-        geometryWriter.setParameters(UTMZone, centralMeridian);
-        // if either of these is empty it means that the KMLGeometryWriter
-        // will not be projecting the coords, ie, coord in == coord out
-        // only way this happens is that the user stated map coords were
-        // lat/long
-      }
-      outputTemplate = KMLWriter.makeOutputTemplate(featureCollection
-          .getFeatureSchema());
-      // java.io.Writer w = new java.io.BufferedWriter(new
-      // java.io.FileWriter(outputFname));
-      java.io.Writer w = new java.io.BufferedWriter(new OutputStreamWriter(
-          new FileOutputStream(outputFname), StandardCharsets.UTF_8));
-      this.write(featureCollection, w);
-      w.close();
+    // number of decimals of the coordinates, shortest exact text if empty
+    geometryWriter.setCoordinateDecimals(intProperty(dp, "Coordinate_Decimals",
+        KMLCoordinateFormatter.SHORTEST));
+    setWriteThreads(intProperty(dp, "Write_Threads", 1));
+    setWriteBatchSize(intProperty(dp, "Write_Batch_Size", DEFAULT_BATCH_SIZE));
+    setWriteBatchesInFlight(intProperty(dp, "Write_Batches_In_Flight", 0));
+    // "pretty" (the default) or "compact"
+    setCompact("compact".equalsIgnoreCase(dp.getProperty("Output_Profile")));
+    // styles by value of 'Style_Column', see KMLStyleTable for the rules
+    String styleColumn = dp.getProperty("Style_Column");
+    String styleRules = dp.getProperty("Style_Rules");
+    setStyleTable(styleColumn != null && styleColumn.length() > 0
+        && styleRules != null ? KMLStyleTable.parse(styleColumn, styleRules)
+        : null);
+    // "collection" (the default) or "hilbert"
+    setHilbertOrder("hilbert".equalsIgnoreCase(dp.getProperty("Output_Order")));
+
+    if ("true".equalsIgnoreCase(dp.getProperty("Write_Cancelled"))) {
+      return null;
+    }
+    if ((UTMZone.length() > 0) && (centralMeridianStr.length() > 0)) {
+      centralMeridian = Double.parseDouble(dp.getProperty("Central_Meridian"));
+      geometryWriter.setParameters(UTMZone, centralMeridian);
+      // if either of these is empty it means that the KMLGeometryWriter
+      // will not be projecting the coords, ie, coord in == coord out
+      // only way this happens is that the user stated map coords were
+      // lat/long
+    } else {
+      // a writer reused after a UTM export must not keep that zone
+      geometryWriter.clearParameters();
     }
+    return outputFname;
   }
 
-  private void write(FeatureCollection featureCollection, java.io.Writer writer)
-      throws Exception {
-    BufferedWriter buffWriter;
-    String pre;
-    String token;
-
-    if (outputTemplate == null) {
-      throw new Exception(
-          "attempt to write KML w/o specifying the output template");
+  /**
+   * Selects the transform of the coordinates to longitude/latitude when no
+   * UTM zone is given: the one of 'Source_CRS' ("EPSG:code", or "none" to
+   * write the coordinates as they are) if set, else the one of the SRID of
+   * each geometry, or of the coordinate system of the layer. Unsupported
+   * coordinate systems are reported here, before the output is opened.
+   */
+  private void configureTransform(FeatureCollection featureCollection,
+      DriverProperties dp) throws IllegalParametersException {
+    String sourceCRS = dp.getProperty("Source_CRS");
+    boolean useSRID = sourceCRS == null || sourceCRS.trim().length() == 0;
+    try {
+      geometryWriter.setSourceTransform(KMLCoordinateTransform.forLayer(
+          featureCollection.getFeatureSchema(), sourceCRS), useSRID);
+      if (useSRID && !geometryWriter.hasUTMParameters()) {
+        KMLCoordinateTransform.checkSRIDs(featureCollection.getFeatures());
+      }
+    } catch (IllegalArgumentException e) {
+      throw new IllegalParametersException(e.getMessage());
     }
+  }
 
-    buffWriter = new BufferedWriter(writer);
+  /**
+   * Opens the output file. A kmz file gets a single doc.kml entry, deflated
+   * at the given level by the given number of threads.
+   */
+  private static OutputStream openOutput(String outputFname,
+      int compressionLevel, int compressionThreads) throws IOException {
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(
+        outputFname));
+    if (!outputFname.matches("(?i).*\\.kmz")) {
+      return out;
+    }
+    if (compressionThreads > 1) {
+      return new KMZOutputStream(out, KMZ_ENTRY_NAME, compressionLevel,
+          compressionThreads);
+    }
+    ZipOutputStream zip = new ZipOutputStream(out);
+    zip.setLevel(compressionLevel);
+    zip.putNextEntry(new ZipEntry(KMZ_ENTRY_NAME));
+    return zip;
+  }
 
-    buffWriter.write(outputTemplate.headerText);
+  /**
+   * Opens the output file for writing text, with the 'Compression_Level',
+   * 'Compression_Threads' and 'Background_Flush' properties.
+   */
+  private static Writer openWriter(String outputFname, DriverProperties dp)
+      throws IOException {
+    return openWriter(outputFname, intProperty(dp, "Compression_Level",
+        Deflater.DEFAULT_COMPRESSION), intProperty(dp, "Compression_Threads",
+        1), "true".equalsIgnoreCase(dp.getProperty("Background_Flush")));
+  }
 
-    for (Feature f : featureCollection.getFeatures()) {
+  /**
+   * Opens the output file for writing text. A kml file is written through a
+   * FileChannel, a kmz file through a deflated doc.kml entry.
+   * 
+   * @param compressionLevel deflate level of a kmz file
+   * @param compressionThreads number of threads deflating a kmz file
+   * @param backgroundFlush true to write the buffers of a kml file on a
+   *          background thread
+   */
+  static Writer openWriter(String outputFname, int compressionLevel,
+      int compressionThreads, boolean backgroundFlush) throws IOException {
+    if (outputFname.matches("(?i).*\\.kmz")) {
+      return new BufferedWriter(new OutputStreamWriter(openOutput(
+          outputFname, compressionLevel, compressionThreads),
+          StandardCharsets.UTF_8));
+    }
+    return KMLChannelWriter.open(Paths.get(outputFname), backgroundFlush);
+  }
 
-      for (int u = 0; u < outputTemplate.featureText.size(); u++) {
-        String evaled;
-        pre = outputTemplate.featureText.get(u);
-        token = outputTemplate.codingText.get(u);
-        buffWriter.write(pre);
-        evaled = evaluateToken(f, token);
+  private static int intProperty(DriverProperties dp, String key, int defaultValue) {
+    String value = dp.getProperty(key);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return Integer.parseInt(value.trim());
+  }
 
-        if (evaled == null) {
-          evaled = "";
-        }
+  private static long longProperty(DriverProperties dp, String key,
+      long defaultValue) {
+    String value = dp.getProperty(key);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return Long.parseLong(value.trim());
+  }
 
-        buffWriter.write(evaled);
-      }
+  /**
+   * Writes the features to a series of files named after the output file,
+   * name_0001.kml, name_0002.kml..., each one a complete document holding
+   * at most maxFeatures features and maxBytes bytes of uncompressed kml. A
+   * feature larger than maxBytes on its own gets a file of its own. If
+   * index is true, the output file itself links to the parts.
+   * 
+   * @param maxFeatures maximum number of features of a file, no limit if
+   *          not positive
+   * @param maxBytes maximum size of a file, no limit if not positive
+   */
+  private void writeParts(FeatureCollection featureCollection,
+      String outputFname, DriverProperties dp, int maxFeatures,
+      long maxBytes, boolean index) throws Exception {
+    KMLOutputPlan plan = KMLOutputPlan.compile(outputTemplate,
+        featureCollection.getFeatureSchema(), this::getEncoder, styleTable);
+    KMLOutputBuffer header = new KMLOutputBuffer();
+    plan.writeHeader(header);
+    KMLOutputBuffer footer = new KMLOutputBuffer();
+    plan.writeFooter(footer);
 
-      buffWriter.write(outputTemplate.featureTextfooter);
-      buffWriter.write("\n");
+    PartWriter parts = new PartWriter(outputFname, dp, header, footer,
+        maxFeatures, maxBytes);
+    try {
+      serialize(features(featureCollection), plan, parts);
+      parts.finish();
+    } finally {
+      parts.close();
+    }
+    if (index) {
+      writeIndex(outputFname, dp, parts.names);
     }
-
-    buffWriter.write(outputTemplate.footerText);
-    buffWriter.flush();
   }
 
   /**
-   * Convert an arbitary string into something that will not cause XML to gack.
-   * Ie. convert "<" to "&lt;"
-   *
-   * @param s
-   *          string to safe-ify
+   * Splits the serialized features between the part files, opening a new
+   * file when the next feature would exceed one of the limits.
    */
-  private static String safeXML(String s) {
-    StringBuilder sb = new StringBuilder(s);
-    char c;
+  private static class PartWriter implements BatchConsumer {
+    private final String base;
+    private final String extension;
+    private final DriverProperties dp;
+    private final KMLOutputBuffer header;
+    private final KMLOutputBuffer footer;
+    private final long headerFooterBytes;
+    private final int maxFeatures;
+    private final long maxBytes;
+    private final List<String> names = new ArrayList<>();
+    private Writer part;
+    private int partFeatures;
+    private long partBytes;
 
-    for (int t = 0; t < sb.length(); t++) {
-      c = sb.charAt(t);
-
-      if (c == '<') {
-        sb.replace(t, t + 1, "&lt;");
+    PartWriter(String outputFname, DriverProperties dp,
+        KMLOutputBuffer header, KMLOutputBuffer footer, int maxFeatures,
+        long maxBytes) {
+      int dot = outputFname.lastIndexOf('.');
+      if (dot <= outputFname.lastIndexOf(File.separatorChar)) {
+        dot = outputFname.length();
       }
+      this.base = outputFname.substring(0, dot);
+      this.extension = outputFname.substring(dot);
+      this.dp = dp;
+      this.header = header;
+      this.footer = footer;
+      this.headerFooterBytes = header.utf8Length(0, header.size())
+          + footer.utf8Length(0, footer.size());
+      this.maxFeatures = maxFeatures;
+      this.maxBytes = maxBytes;
+    }
 
-      if (c == '>') {
-        sb.replace(t, t + 1, "&gt;");
+    public void accept(KMLOutputBuffer batch) throws Exception {
+      int start = 0;
+      for (int i = 0; i < batch.getMarkCount(); i++) {
+        int end = batch.getMark(i);
+        long bytes = maxBytes > 0 ? batch.utf8Length(start, end) : 0;
+        if (part != null
+            && ((maxFeatures > 0 && partFeatures >= maxFeatures)
+                || (maxBytes > 0 && partBytes + bytes > maxBytes))) {
+          closePart();
+        }
+        if (part == null) {
+          openPart();
+        }
+        batch.writeTo(part, start, end);
+        partFeatures++;
+        partBytes += bytes;
+        start = end;
       }
+    }
 
-      if (c == '&') {
-        sb.replace(t, t + 1, "&amp;");
+    /** Closes the last part, writing an empty one if there was no feature. */
+    void finish() throws IOException {
+      if (part == null && names.isEmpty()) {
+        openPart();
       }
-
-      if (c == '\'') {
-        sb.replace(t, t + 1, "&apos;");
+      if (part != null) {
+        closePart();
       }
+    }
+
+    private void openPart() throws IOException {
+      String name = String.format("%s_%04d%s", base, names.size() + 1,
+          extension);
+      names.add(new File(name).getName());
+      part = openWriter(name, dp);
+      header.writeTo(part);
+      partFeatures = 0;
+      partBytes = headerFooterBytes;
+    }
+
+    private void closePart() throws IOException {
+      footer.writeTo(part);
+      Writer w = part;
+      part = null;
+      w.close();
+    }
 
-      if (c == '"') {
-        sb.replace(t, t + 1, "&quot;");
+    /** Closes the current part after a failure. */
+    void close() throws IOException {
+      if (part != null) {
+        Writer w = part;
+        part = null;
+        w.close();
       }
     }
+  }
 
-    return sb.toString();
+  /** Writes a document with a NetworkLink to each part. */
+  private static void writeIndex(String outputFname, DriverProperties dp,
+      List<String> names) throws IOException {
+    KMLValueEncoder valueEncoder = new KMLValueEncoder();
+    try (Writer out = openWriter(outputFname, dp)) {
+      out.write("<?xml version='1.0' encoding='UTF-8'?>\n"
+          + "<kml xmlns=\"http://earth.google.com/kml/2.1\">\n<Document>\n"
+          + "  <name>");
+      valueEncoder.writeEscaped(new File(outputFname).getName(), out);
+      out.write("</name>\n");
+      for (String name : names) {
+        out.write("  <NetworkLink>\n    <name>");
+        valueEncoder.writeEscaped(name, out);
+        out.write("</name>\n    <Link>\n      <href>");
+        valueEncoder.writeEscaped(KMLSuperOverlayWriter.href(name), out);
+        out.write("</href>\n    </Link>\n  </NetworkLink>\n");
+      }
+      out.write("</Document>\n</kml>\n");
+    }
   }
 
   /**
-   * takes a token and replaces it with its value (ie. geometry or column)
+   * Appends features to an existing kml file written by this writer, taking
+   * time proportional to the new features only. The closing
+   * &lt;/Folder&gt;&lt;/Document&gt;&lt;/kml&gt; is looked for backwards
+   * from the end of the file, the file is truncated there, and the features
+   * are written followed by the footer, in the profile the file was written
+   * with.
    * 
-   * @param f
-   *          feature to take geometry or column value from
-   * @param token to evaluate - "column","geometry" or "geometrytype"
+   * @throws IllegalParametersException if the file is a kmz, has no such
+   *           footer or its Schema is not the one of the features
    */
-  private String evaluateToken(Feature f, String token) throws Exception {
-    String column;
-    String cmd;
-    String result;
-    int index;
+  private void append(FeatureCollection featureCollection, String outputFname)
+      throws Exception {
+    if (outputFname.matches("(?i).*\\.kmz")) {
+      throw new IllegalParametersException("cannot append to kmz file "
+          + outputFname);
+    }
+    FeatureSchema schema = featureCollection.getFeatureSchema();
+    try (FileChannel channel = FileChannel.open(Paths.get(outputFname),
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      String head = readHead(channel);
+      List<String> fields = new ArrayList<>();
+      for (int t = 0; t < schema.getAttributeCount(); t++) {
+        String colName = schema.getAttributeName(t);
+        if (!colName.equalsIgnoreCase("Geometry")
+            && (!colName.equalsIgnoreCase("FID"))) {
+          fields.add(colName);
+        }
+      }
+      List<String> fileFields = schemaFields(head);
+      if (!fields.equals(fileFields)) {
+        throw new IllegalParametersException("cannot append to "
+            + outputFname + ": its Schema has fields " + fileFields
+            + " instead of " + fields);
+      }
+      long end = findFooter(channel);
+      if (end < 0) {
+        throw new IllegalParametersException("cannot append to "
+            + outputFname + ": no </Folder></Document></kml> at its end");
+      }
 
-    // token = token.toLowerCase();
-    token = token.trim();
+      boolean fileCompact = head.contains("<" + standard_doc + "><"
+          + standard_name + ">");
+      // the styles referred to have to be in the header already
+      if (styleTable != null
+          && !head.contains(styleTable.getStylesText(fileCompact))) {
+        throw new IllegalParametersException("cannot append to "
+            + outputFname + ": its header lacks the styles of the features");
+      }
+      setCompact(fileCompact);
+      outputTemplate = makeOutputTemplate(schema, fileCompact, styleTable);
+      KMLOutputPlan plan = KMLOutputPlan.compile(outputTemplate, schema,
+          this::getEncoder, styleTable);
 
-    if (!(token.startsWith("=")) || (token.length() < 7)) {
-      throw new ParseException("couldn't understand token '" + token
-          + "' in the output template");
+      // the new Placemarks and the footer are serialized to a temporary
+      // file first, so that a failure there leaves the file as it was
+      Path output = Paths.get(outputFname).toAbsolutePath();
+      Path tail = Files.createTempFile(output.getParent(), output
+          .getFileName().toString(), ".tmp");
+      try {
+        Writer writer = KMLChannelWriter.open(tail, false);
+        try {
+          writeFeatures(featureCollection, plan, writer);
+          plan.writeFooter(writer);
+        } finally {
+          writer.close();
+        }
+        ByteBuffer footer = ByteBuffer.allocate((int) (channel.size() - end));
+        while (footer.hasRemaining()
+            && channel.read(footer, end + footer.position()) > 0) {
+        }
+        footer.flip();
+        try (FileChannel tailChannel = FileChannel.open(tail,
+            StandardOpenOption.READ)) {
+          long length = tailChannel.size();
+          try {
+            for (long done = 0; done < length;) {
+              done += channel.transferFrom(tailChannel.position(done), end
+                  + done, length - done);
+            }
+            channel.truncate(end + length);
+          } catch (IOException e) {
+            // put the original footer back
+            channel.truncate(end);
+            while (footer.hasRemaining()) {
+              channel.write(footer, end + footer.position());
+            }
+            throw e;
+          }
+        }
+      } finally {
+        Files.deleteIfExists(tail);
+      }
     }
+  }
 
-    token = token.substring(1);
-    token = token.trim();
-    index = token.indexOf(" ");
+  /**
+   * @return the beginning of the file as text, up to the end of its Schema
+   *         or its first Placemark
+   */
+  private static String readHead(FileChannel channel) throws IOException {
+    ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(channel.size(),
+        MAX_HEAD_SIZE));
+    String head = "";
+    while (bytes.hasRemaining()) {
+      int chunk = Math.min(bytes.remaining(), 1 << 16);
+      ByteBuffer slice = bytes.duplicate();
+      slice.limit(bytes.position() + chunk);
+      while (slice.hasRemaining()
+          && channel.read(slice, slice.position()) > 0) {
+      }
+      bytes.position(slice.position());
+      head = new String(bytes.array(), 0, bytes.position(),
+          StandardCharsets.UTF_8);
+      if (slice.hasRemaining() || head.contains("</" + standard_schema + ">")
+          || head.contains("<" + placemarkName)) {
+        break;
+      }
+    }
+    return head;
+  }
 
-    if (index == -1) {
-      cmd = token;
-    } else {
-      cmd = token.substring(0, token.indexOf(" "));
+  /** @return the names of the SimpleFields of the first Schema */
+  private static List<String> schemaFields(String head) {
+    List<String> fields = new ArrayList<>();
+    int schemaStart = head.indexOf("<" + standard_schema);
+    int placemark = head.indexOf("<" + placemarkName);
+    if (schemaStart < 0 || (placemark >= 0 && placemark < schemaStart)) {
+      return fields;
     }
+    int schemaEnd = head.indexOf("</" + standard_schema + ">", schemaStart);
+    Matcher m = SIMPLE_FIELD_NAME.matcher(schemaEnd < 0 ? head : head
+        .substring(schemaStart, schemaEnd));
+    while (m.find()) {
+      fields.add(m.group(1));
+    }
+    return fields;
+  }
 
-    if (cmd.equalsIgnoreCase("column")) {
-      column = token.substring(6);
-      column = column.trim();
+  /**
+   * Scans the end of the file backwards for &lt;/Folder&gt;, &lt;/Document&gt;
+   * and &lt;/kml&gt; separated by white space.
+   * 
+   * @return the offset of the line the closing Folder tag is on, without the
+   *         indentation before the tag, or -1 if the file does not end so
+   */
+  private static long findFooter(FileChannel channel) throws IOException {
+    long size = channel.size();
+    int length = (int) Math.min(size, MAX_TAIL_SIZE);
+    ByteBuffer tail = ByteBuffer.allocate(length);
+    long start = size - length;
+    while (tail.hasRemaining()
+        && channel.read(tail, start + tail.position()) > 0) {
+    }
+    byte[] b = tail.array();
+    int i = tail.position();
+    for (String tag : new String[] { "</kml>", "</" + standard_doc + ">",
+        "</" + standard_folder + ">" }) {
+      while (i > 0 && isWhitespace(b[i - 1])) {
+        i--;
+      }
+      i -= tag.length();
+      if (i < 0) {
+        return -1;
+      }
+      for (int k = 0; k < tag.length(); k++) {
+        if (b[i + k] != tag.charAt(k)) {
+          return -1;
+        }
+      }
+    }
+    while (i > 0 && (b[i - 1] == ' ' || b[i - 1] == '\t')) {
+      i--;
+    }
+    return start + i;
+  }
 
-      result = toString(f, column);
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+  }
 
-      // need to ensure that the output is XML okay
-      result = safeXML(result);
+  /**
+   * Writes the features to a buffered writer, which is flushed but not
+   * closed.
+   */
+  private void write(FeatureCollection featureCollection, java.io.Writer writer)
+      throws Exception {
+    if (outputTemplate == null) {
+      throw new Exception(
+          "attempt to write KML w/o specifying the output template");
+    }
 
-      return result;
-    } else if (cmd.equalsIgnoreCase("geometry")) {
-      geometryWriter.setMaximumCoordinatesPerLine(1);
+    KMLOutputPlan plan = KMLOutputPlan.compile(outputTemplate,
+        featureCollection.getFeatureSchema(), this::getEncoder, styleTable);
 
-      return geometryWriter.write(f.getGeometry());
+    plan.writeHeader(writer);
+    writeFeatures(featureCollection, plan, writer);
+    plan.writeFooter(writer);
+    writer.flush();
+  }
 
-    } else if (cmd.equalsIgnoreCase("geometrytype")) {
-      return f.getGeometry().getGeometryType();
+  private void writeFeatures(FeatureCollection featureCollection,
+      KMLOutputPlan plan, Writer writer) throws Exception {
+    if (writeThreads > 1) {
+      serialize(features(featureCollection), plan, batch -> batch
+          .writeTo(writer));
     } else {
-      throw new ParseException("couldn't understand token '" + token
-          + "' in the output template");
+      KMLValueEncoder valueEncoder = new KMLValueEncoder();
+      for (Feature f : features(featureCollection)) {
+        plan.write(f, geometryWriter, valueEncoder, writer);
+      }
     }
   }
 
-  protected String toString(Feature f, String column) {
-    if (column.equalsIgnoreCase("FID"))
-      return "" + f.getID();
-
-    Assert.isTrue(
-        f.getSchema().getAttributeType(column) != AttributeType.GEOMETRY);
-    Object attribute = f.getAttribute(column);
+  /** Receives batches of serialized features, in order. */
+  private interface BatchConsumer {
+    void accept(KMLOutputBuffer batch) throws Exception;
+  }
 
-    if (attribute == null) {
-      return "";
+  /**
+   * Serializes batches of features on worker threads, each into its own
+   * buffer with a mark at the end of every feature, and hands the buffers
+   * to the consumer in order. At most writeBatchesInFlight batches are held
+   * in memory. With a single thread the batches are serialized by the
+   * calling thread.
+   */
+  private void serialize(List<Feature> features, KMLOutputPlan plan,
+      BatchConsumer consumer) throws Exception {
+    if (writeThreads == 1) {
+      KMLValueEncoder valueEncoder = new KMLValueEncoder();
+      KMLOutputBuffer buffer = new KMLOutputBuffer();
+      for (int start = 0; start < features.size(); start += writeBatchSize) {
+        buffer.reset();
+        for (Feature f : features.subList(start, Math.min(features.size(),
+            start + writeBatchSize))) {
+          plan.write(f, geometryWriter, valueEncoder, buffer);
+          buffer.mark();
+        }
+        consumer.accept(buffer);
+      }
+      return;
     }
-    if (attribute instanceof Date) {
-      return format((Date) attribute);
+    int inFlight = writeBatchesInFlight > 0 ? writeBatchesInFlight
+        : 2 * writeThreads;
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(writeThreads,
+        runnable -> {
+          Thread thread = new Thread(runnable, "kml-writer-"
+              + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    // geometry writer and value encoder of each worker thread
+    ThreadLocal<KMLGeometryWriter> geometryWriters = ThreadLocal
+        .withInitial(() -> new KMLGeometryWriter(geometryWriter));
+    ThreadLocal<KMLValueEncoder> valueEncoders = ThreadLocal
+        .withInitial(KMLValueEncoder::new);
+
+    ArrayDeque<Future<KMLOutputBuffer>> pending = new ArrayDeque<>();
+    ArrayDeque<KMLOutputBuffer> freeBuffers = new ArrayDeque<>();
+    try {
+      for (int start = 0; start < features.size(); start += writeBatchSize) {
+        if (pending.size() >= inFlight) {
+          freeBuffers.add(consumeBatch(pending.poll(), consumer));
+        }
+        List<Feature> batch = new ArrayList<>(features.subList(start,
+            Math.min(features.size(), start + writeBatchSize)));
+        KMLOutputBuffer buffer = freeBuffers.isEmpty() ? new KMLOutputBuffer()
+            : freeBuffers.poll();
+        pending.add(pool.submit(() -> {
+          KMLGeometryWriter batchGeometryWriter = geometryWriters.get();
+          KMLValueEncoder batchValueEncoder = valueEncoders.get();
+          for (Feature f : batch) {
+            plan.write(f, batchGeometryWriter, batchValueEncoder, buffer);
+            buffer.mark();
+          }
+          return buffer;
+        }));
+      }
+      while (!pending.isEmpty()) {
+        consumeBatch(pending.poll(), consumer);
+      }
+    } finally {
+      pool.shutdownNow();
     }
-    return attribute.toString();
   }
 
-  protected String format(Date date) {
-    return dateFormatter.format(date);
+  private static KMLOutputBuffer consumeBatch(Future<KMLOutputBuffer> batch,
+      BatchConsumer consumer) throws Exception {
+    KMLOutputBuffer buffer;
+    try {
+      buffer = batch.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+    consumer.accept(buffer);
+    buffer.reset();
+    return buffer;
   }
 
-  private final SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd");
+  /**
+   * Returns the encoder used for the values of an attribute type. Values not
+   * of the expected class are encoded according to their own class.
+   * 
+   * @param type
+   *          type of the attribute
+   */
+  protected KMLOutputPlan.Encoder getEncoder(AttributeType type) {
+    if (type == AttributeType.STRING) {
+      // need to ensure that the output is XML okay
+      return (value, encoder, out) -> {
+        if (value instanceof String) {
+          encoder.writeEscaped((String) value, out);
+        } else {
+          encoder.writeValue(value, out);
+        }
+      };
+    }
+    if (type == AttributeType.INTEGER || type == AttributeType.LONG) {
+      return (value, encoder, out) -> {
+        if (value instanceof Integer || value instanceof Long) {
+          encoder.writeLong(((Number) value).longValue(), out);
+        } else {
+          encoder.writeValue(value, out);
+        }
+      };
+    }
+    if (type == AttributeType.DOUBLE) {
+      return (value, encoder, out) -> {
+        if (value instanceof Double) {
+          encoder.writeDouble((Double) value, out);
+        } else {
+          encoder.writeValue(value, out);
+        }
+      };
+    }
+    if (type == AttributeType.DATE) {
+      return (value, encoder, out) -> {
+        if (value instanceof Date) {
+          encoder.writeDate((Date) value, out);
+        } else {
+          encoder.writeValue(value, out);
+        }
+      };
+    }
+    return (value, encoder, out) -> encoder.writeValue(value, out);
+  }
 
   /**
    * given a FEatureSchema, make an output template in the JCS format
@@ -285,7 +961,23 @@ public class KMLWriter implements JUMPWriter {
    * @param fcmd
    *          input featureSchema
    */
-  private static KMLOutputTemplate makeOutputTemplate(FeatureSchema fcmd) {
+  static KMLOutputTemplate makeOutputTemplate(FeatureSchema fcmd,
+      boolean compact) {
+    return makeOutputTemplate(fcmd, compact, null);
+  }
+
+  /**
+   * Makes an output template whose Placemarks refer to the styles of a
+   * style table, which are written in the header.
+   * 
+   * @param styles
+   *          the style table, or null for no style
+   */
+  static KMLOutputTemplate makeOutputTemplate(FeatureSchema fcmd,
+      boolean compact, KMLStyleTable styles) {
+    if (compact) {
+      return makeCompactOutputTemplate(fcmd, styles);
+    }
     KMLOutputTemplate result;
     int t;
     String colName;
@@ -309,7 +1001,8 @@ public class KMLWriter implements JUMPWriter {
             + "</"
             + standard_name
             + ">\n"
-            + getSchemaHeader(fcmd)
+            + (styles == null ? "" : styles.getStylesText(false))
+            + getSchemaHeader(fcmd, false)
             + "    <" + standard_folder + ">\n");// +
     // "      <% FEATURE %>\n");
 
@@ -319,6 +1012,10 @@ public class KMLWriter implements JUMPWriter {
     colCode = "=COLUMN FID";
     colHeader = "\n          </" + standard_name + ">\n";
     result.addItem(colText, colCode);
+    if (styles != null) {
+      result.addItem(colHeader + "          ", "=STYLE");
+      colHeader = "\n";
+    }
 
     for (t = 0; t < fcmd.getAttributeCount(); t++) {
       colName = fcmd.getAttributeName(t);
@@ -347,13 +1044,150 @@ public class KMLWriter implements JUMPWriter {
     return result;
   }
 
-  private static String getSchemaHeader(FeatureSchema fcmd) {
+  /**
+   * Same document as the default template, without indentation or line
+   * breaks except one after each Placemark.
+   */
+  private static KMLOutputTemplate makeCompactOutputTemplate(
+      FeatureSchema fcmd, KMLStyleTable styles) {
+    KMLOutputTemplate result = new KMLOutputTemplate();
+
+    result.setHeaderText("<?xml version='1.0' encoding='UTF-8'?>\n"
+        + "<kml xmlns=\"http://earth.google.com/kml/2.0\">" + "<"
+        + standard_doc + ">" + "<" + standard_name + ">" + "Doc1" + "</"
+        + standard_name + ">"
+        + (styles == null ? "" : styles.getStylesText(true))
+        + getSchemaHeader(fcmd, true) + "<"
+        + standard_folder + ">\n");
+
+    String colHeader = "</" + standard_name + ">";
+    result.addItem("<" + placemarkName + "><" + standard_name + ">",
+        "=COLUMN FID");
+    if (styles != null) {
+      result.addItem(colHeader, "=STYLE");
+      colHeader = "";
+    }
+
+    for (int t = 0; t < fcmd.getAttributeCount(); t++) {
+      String colName = fcmd.getAttributeName(t);
+      if (t != fcmd.getGeometryIndex()) {
+        result.addItem(colHeader + "<" + colName + ">", "=COLUMN " + colName);
+        colHeader = "</" + colName + ">";
+      } else {
+        result.addItem(colHeader, "=GEOMETRY");
+        colHeader = "";
+      }
+    }
+
+    // the line break after each Placemark is added by KMLOutputPlan
+    result.setFeatureFooter(colHeader + "</" + placemarkName + ">");
+    result.setFooterText("</" + standard_folder + "></" + standard_doc
+        + "></kml>\n");
+
+    return result;
+  }
+
+  /**
+   * Makes an output template for KML 2.2 documents, whose Placemarks hold
+   * their attributes as SimpleData of a SchemaData referring to the Schema
+   * written by {@link #getSchemaHeader(FeatureSchema, boolean, String,
+   * String)}. The geometry is written last, as KML 2.2 requires. The
+   * template has no header or footer.
+   * 
+   * @param schemaId
+   *          id of the Schema, escaped
+   */
+  static KMLOutputTemplate makeExtendedDataTemplate(FeatureSchema fcmd,
+      boolean compact, KMLStyleTable styles, String schemaId) {
+    KMLOutputTemplate result = new KMLOutputTemplate();
+    result.setHeaderText("");
+    result.setFooterText("");
+    String line = compact ? "" : "\n";
+    String indent = compact ? "" : "          ";
+
+    result.addItem((compact ? "" : "        ") + "<" + placemarkName + ">"
+        + line + indent + "<" + standard_name + ">", "=COLUMN FID");
+    String colHeader = "</" + standard_name + ">" + line;
+    if (styles != null) {
+      result.addItem(colHeader + indent, "=STYLE");
+      colHeader = line;
+    }
+    colHeader += indent + "<ExtendedData><SchemaData schemaUrl=\"#" + schemaId
+        + "\">" + line;
+    for (int t = 0; t < fcmd.getAttributeCount(); t++) {
+      if (t != fcmd.getGeometryIndex()) {
+        String colName = fcmd.getAttributeName(t);
+        result.addItem(colHeader + indent + (compact ? "" : "  ")
+            + "<SimpleData name=\"" + colName + "\">", "=COLUMN " + colName);
+        colHeader = "</SimpleData>" + line;
+      }
+    }
+    result.addItem(colHeader + indent + "</SchemaData></ExtendedData>" + line,
+        "=GEOMETRY");
+    // the line break after each Placemark is added by KMLOutputPlan
+    result.setFeatureFooter((compact ? "" : "        ") + "</" + placemarkName
+        + ">");
+    return result;
+  }
+
+  /**
+   * Writes a KML 2.2 Schema of the attributes of the given schema, for the
+   * Placemarks of {@link #makeExtendedDataTemplate}.
+   * 
+   * @param schemaName
+   *          name of the Schema, escaped
+   * @param schemaId
+   *          id of the Schema, escaped
+   */
+  static String getSchemaHeader(FeatureSchema fcmd, boolean compact,
+      String schemaName, String schemaId) {
+    String line = compact ? "" : "\n";
+    StringBuilder schemaHeader = new StringBuilder(compact ? "" : "  ")
+        .append("<" + standard_schema + " name=\"" + schemaName + "\" id=\""
+            + schemaId + "\">" + line);
+    for (int t = 0; t < fcmd.getAttributeCount(); t++) {
+      AttributeType type = fcmd.getAttributeType(t);
+      if (t != fcmd.getGeometryIndex()) {
+        schemaHeader.append(compact ? "" : "    ").append(
+            "<" + standard_simplefield + " type=\""
+                + (type == AttributeType.INTEGER ? "int"
+                    : type == AttributeType.DOUBLE ? "double" : "string")
+                + "\" name=\"" + fcmd.getAttributeName(t) + "\"/>" + line);
+      }
+    }
+    return schemaHeader.append(compact ? "" : "  ")
+        .append("</" + standard_schema + ">" + line).toString();
+  }
+
+  static String getSchemaHeader(FeatureSchema fcmd, boolean compact) {
+    return getSchemaHeader(fcmd, compact, placemarkName);
+  }
+
+  /**
+   * @param schemaName
+   *          name of the Schema, escaped
+   */
+  static String getSchemaHeader(FeatureSchema fcmd, boolean compact,
+      String schemaName) {
+    if (compact) {
+      StringBuilder schemaHeader = new StringBuilder("<" + standard_schema
+          + " parent=\"Placemark\" name=\"" + schemaName + "\">");
+      for (int t = 0; t < fcmd.getAttributeCount(); t++) {
+        String colName = fcmd.getAttributeName(t);
+        if (!colName.equalsIgnoreCase("Geometry")
+            && (!colName.equalsIgnoreCase("FID"))) {
+          schemaHeader.append("<" + standard_simplefield
+              + " type=\"wstring\" name=\"" + colName + "\"/>");
+        }
+      }
+      return schemaHeader.append("</" + standard_schema + ">").toString();
+    }
     String schemaHeader;
     String fieldLine = "    <" + standard_simplefield
         + " type=\"wstring\" name=\"";
 
     schemaHeader = "  <" + standard_schema + " parent=\"Placemark\" name=\""
-        + placemarkName + "\">\n";
+        + schemaName + "\">\n";
 
     for (int t = 0; t < fcmd.getAttributeCount(); t++) {
       String colName = fcmd.getAttributeName(t);
@@ -0,0 +1,356 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+
+package com.isa.jump.kml;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip archive holding a single deflated entry, typically the
+ * doc.kml of a kmz file, compressing on several threads.
+ * <p>
+ * As pigz does, the data is cut into blocks which are deflated
+ * independently, each primed with the last 32 KB of the previous block as
+ * dictionary so the compression ratio is barely affected. Every block but
+ * the last ends with a sync flush, so the compressed blocks simply
+ * concatenate into one raw deflate stream. Sizes and CRC are written in a
+ * data descriptor after the data, and Zip64 records are used when the
+ * entry or the archive exceeds 4 GB.
+ */
+public class KMZOutputStream extends OutputStream {
+
+  /** Size of the blocks compressed independently. */
+  public static final int BLOCK_SIZE = 128 * 1024;
+
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+  private final OutputStream out;
+  private final byte[] name;
+  private final int dosTime;
+  private final int level;
+  private final int maxInFlight;
+  private final ExecutorService pool;
+  private final List<Deflater> deflaters = new ArrayList<>();
+  private final ThreadLocal<Deflater> deflater;
+  private final ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+
+  private byte[] block = new byte[BLOCK_SIZE];
+  private int blockLength = 0;
+  private byte[] previous = null;
+  private int previousLength = 0;
+
+  // bytes written to out
+  private long written = 0;
+  private long uncompressedSize = 0;
+  private long compressedSize = 0;
+  private boolean closed = false;
+
+  private static final class Block {
+    byte[] data;
+    int length;
+  }
+
+  /**
+   * @param out
+   *          destination of the archive
+   * @param entryName
+   *          name of the single entry
+   * @param level
+   *          compression level, from 0 to 9 or -1 for the default
+   * @param threads
+   *          number of compressing threads
+   */
+  public KMZOutputStream(OutputStream out, String entryName, int level,
+      int threads) throws IOException {
+    this.out = out;
+    this.name = entryName.getBytes(StandardCharsets.UTF_8);
+    this.level = level;
+    this.maxInFlight = 2 * threads;
+    AtomicInteger threadCount = new AtomicInteger();
+    this.pool = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "kmz-deflater-"
+          + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.deflater = ThreadLocal.withInitial(() -> {
+      Deflater d = new Deflater(this.level, true);
+      synchronized (deflaters) {
+        deflaters.add(d);
+      }
+      return d;
+    });
+
+    LocalDateTime now = LocalDateTime.now();
+    dosTime = (now.getYear() - 1980) << 25 | now.getMonthValue() << 21
+        | now.getDayOfMonth() << 16 | now.getHour() << 11
+        | now.getMinute() << 5 | now.getSecond() >> 1;
+
+    // local file header, sizes and crc follow the data
+    writeInt(0x04034b50);
+    writeShort(20);
+    writeShort(0x0008);
+    writeShort(Deflater.DEFLATED);
+    writeInt(dosTime);
+    writeInt(0);
+    writeInt(0);
+    writeInt(0);
+    writeShort(name.length);
+    writeShort(0);
+    writeBytes(name, 0, name.length);
+  }
+
+  public void write(int b) throws IOException {
+    block[blockLength++] = (byte) b;
+    if (blockLength == BLOCK_SIZE) {
+      submitBlock(false);
+    }
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = Math.min(len, BLOCK_SIZE - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      off += n;
+      len -= n;
+      if (blockLength == BLOCK_SIZE) {
+        submitBlock(false);
+      }
+    }
+  }
+
+  private void submitBlock(boolean last) throws IOException {
+    if (pending.size() >= maxInFlight) {
+      writeBlock(pending.poll());
+    }
+    final byte[] data = block;
+    final int length = blockLength;
+    final byte[] dictionary = previous;
+    final int dictionaryLength = previousLength;
+    crc.update(data, 0, length);
+    uncompressedSize += length;
+    pending.add(pool.submit(() -> deflate(data, length, dictionary,
+        dictionaryLength, last)));
+    previous = data;
+    previousLength = length;
+    block = new byte[BLOCK_SIZE];
+    blockLength = 0;
+  }
+
+  private Block deflate(byte[] data, int length, byte[] dictionary,
+      int dictionaryLength, boolean last) {
+    Deflater d = deflater.get();
+    d.reset();
+    if (dictionary != null) {
+      int n = Math.min(DICTIONARY_SIZE, dictionaryLength);
+      d.setDictionary(dictionary, dictionaryLength - n, n);
+    }
+    d.setInput(data, 0, length);
+    Block result = new Block();
+    result.data = new byte[length + (length >> 3) + 64];
+    if (last) {
+      d.finish();
+      while (!d.finished()) {
+        deflateInto(d, result, Deflater.NO_FLUSH);
+      }
+    } else {
+      // output filling the whole space means more may be pending
+      while (deflateInto(d, result, Deflater.SYNC_FLUSH)) {
+      }
+    }
+    return result;
+  }
+
+  /** @return true if the output space was filled */
+  private static boolean deflateInto(Deflater d, Block result, int flush) {
+    if (result.length == result.data.length) {
+      byte[] grown = new byte[result.data.length << 1];
+      System.arraycopy(result.data, 0, grown, 0, result.length);
+      result.data = grown;
+    }
+    int space = result.data.length - result.length;
+    int n = d.deflate(result.data, result.length, space, flush);
+    result.length += n;
+    return n == space;
+  }
+
+  private void writeBlock(Future<Block> future) throws IOException {
+    Block result;
+    try {
+      result = future.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+    writeBytes(result.data, 0, result.length);
+    compressedSize += result.length;
+  }
+
+  /**
+   * Flushes the completed blocks. Data of the block being filled is only
+   * written when it is full or when the stream is closed.
+   */
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      submitBlock(true);
+      while (!pending.isEmpty()) {
+        writeBlock(pending.poll());
+      }
+      boolean zip64 = compressedSize >= ZIP64_MAGIC
+          || uncompressedSize >= ZIP64_MAGIC;
+
+      // data descriptor
+      writeInt(0x08074b50);
+      writeInt((int) crc.getValue());
+      if (zip64) {
+        writeLong(compressedSize);
+        writeLong(uncompressedSize);
+      } else {
+        writeInt((int) compressedSize);
+        writeInt((int) uncompressedSize);
+      }
+
+      // central directory, the entry starts at offset 0
+      long centralOffset = written;
+      writeInt(0x02014b50);
+      writeShort(zip64 ? 45 : 20);
+      writeShort(zip64 ? 45 : 20);
+      writeShort(0x0008);
+      writeShort(Deflater.DEFLATED);
+      writeInt(dosTime);
+      writeInt((int) crc.getValue());
+      writeInt((int) (zip64 ? ZIP64_MAGIC : compressedSize));
+      writeInt((int) (zip64 ? ZIP64_MAGIC : uncompressedSize));
+      writeShort(name.length);
+      writeShort(zip64 ? 20 : 0);
+      writeShort(0);
+      writeShort(0);
+      writeShort(0);
+      writeInt(0);
+      writeInt(0);
+      writeBytes(name, 0, name.length);
+      if (zip64) {
+        writeShort(0x0001);
+        writeShort(16);
+        writeLong(uncompressedSize);
+        writeLong(compressedSize);
+      }
+      long centralSize = written - centralOffset;
+
+      if (centralOffset >= ZIP64_MAGIC) {
+        // zip64 end of central directory record and locator
+        long zip64EndOffset = written;
+        writeInt(0x06064b50);
+        writeLong(44);
+        writeShort(45);
+        writeShort(45);
+        writeInt(0);
+        writeInt(0);
+        writeLong(1);
+        writeLong(1);
+        writeLong(centralSize);
+        writeLong(centralOffset);
+        writeInt(0x07064b50);
+        writeInt(0);
+        writeLong(zip64EndOffset);
+        writeInt(1);
+      }
+
+      // end of central directory record
+      writeInt(0x06054b50);
+      writeShort(0);
+      writeShort(0);
+      writeShort(1);
+      writeShort(1);
+      writeInt((int) centralSize);
+      writeInt((int) Math.min(centralOffset, ZIP64_MAGIC));
+      writeShort(0);
+      out.flush();
+    } finally {
+      pool.shutdownNow();
+      synchronized (deflaters) {
+        for (Deflater d : deflaters) {
+          d.end();
+        }
+      }
+      out.close();
+    }
+  }
+
+  private void writeBytes(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    written += len;
+  }
+
+  private void writeShort(int v) throws IOException {
+    out.write(v & 0xff);
+    out.write((v >>> 8) & 0xff);
+    written += 2;
+  }
+
+  private void writeInt(int v) throws IOException {
+    writeShort(v & 0xffff);
+    writeShort(v >>> 16);
+  }
+
+  private void writeLong(long v) throws IOException {
+    writeInt((int) v);
+    writeInt((int) (v >>> 32));
+  }
+}
@@ -0,0 +1,444 @@
+/*
+ * The Unified Mapping Platform (JUMP) is an extensible, interactive GUI 
+ * for visualizing and manipulating spatial features with geometry and attributes.
+ *
+ * JUMP is Copyright (C) 2003 Vivid Solutions
+ *
+ * This program implements extensions to JUMP and is
+ * Copyright (C) 2005 Integrated Systems Analysts, Inc.
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * Integrated Systems Analysts, Inc.
+ * 630C Anchors St., Suite 101
+ * Fort Walton Beach, Florida
+ * USA
+ *
+ * (850)862-7321
+ */
+package com.isa.jump.kml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a gzip file with several threads.
+ * <p>
+ * A gzip file may consist of several members (bgzip, "cat a.gz b.gz", many
+ * parallel compressors), each of which can be inflated independently. A
+ * reader thread looks for member headers ahead of the decompression and hands
+ * every member to a worker pool; the inflated members are passed to the
+ * consumer in file order through a bounded queue.
+ * <p>
+ * Member boundaries are found by looking for the gzip magic bytes, which may
+ * also occur by chance inside compressed data. A member is therefore only
+ * used if it inflates exactly up to the next boundary and its CRC and size
+ * match the trailer. At the first member failing this check, and for files
+ * with a single member (or members larger than {@link #MAX_MEMBER_SIZE}), the
+ * rest of the file is inflated by a plain GZIPInputStream on the reader
+ * thread, which still gives read-ahead in parallel to the parser.
+ */
+public class ParallelGZIPInputStream extends InputStream {
+
+  /** members larger than this are streamed instead of being loaded */
+  static final int MAX_MEMBER_SIZE = 8 * 1024 * 1024;
+
+  private static final int CHUNK_SIZE = 256 * 1024;
+  private static final byte[] EOF = new byte[0];
+
+  private final File file;
+  private final int threads;
+  private final BlockingQueue<byte[]> chunks;
+  private final Thread readerThread;
+  private volatile Throwable error = null;
+  private volatile boolean closed = false;
+
+  private byte[] chunk = null;
+  private int chunkPos = 0;
+
+  /**
+   * @param file the gzip file
+   * @param threads number of inflating threads
+   */
+  public ParallelGZIPInputStream(File file, int threads) throws IOException {
+    if (!file.isFile()) {
+      throw new java.io.FileNotFoundException(file.getPath());
+    }
+    this.file = file;
+    this.threads = Math.max(1, threads);
+    this.chunks = new ArrayBlockingQueue<>(2 * this.threads + 2);
+    this.readerThread = new Thread(this::produce, "kml-gzip-reader");
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+  /**
+   * @param file the gzip file, inflated by as many threads as processors
+   */
+  public ParallelGZIPInputStream(File file) throws IOException {
+    this(file, Runtime.getRuntime().availableProcessors());
+  }
+
+  public int read() throws IOException {
+    if (!nextChunk()) {
+      return -1;
+    }
+    return chunk[chunkPos++] & 0xFF;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!nextChunk()) {
+      return -1;
+    }
+    int n = Math.min(len, chunk.length - chunkPos);
+    System.arraycopy(chunk, chunkPos, b, off, n);
+    chunkPos += n;
+    return n;
+  }
+
+  private boolean nextChunk() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    while (chunk == null || chunkPos == chunk.length) {
+      if (chunk == EOF) {
+        return false;
+      }
+      try {
+        chunk = chunks.take();
+        chunkPos = 0;
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+      if (chunk == EOF && error != null) {
+        throw error instanceof IOException ? (IOException) error
+            : new IOException(error);
+      }
+    }
+    return true;
+  }
+
+  public void close() {
+    closed = true;
+    readerThread.interrupt();
+  }
+
+  // ---------------------------------------------------------------------
+  // reader thread
+
+  private void produce() {
+    ExecutorService pool = null;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      MemberFinder finder = new MemberFinder(channel);
+      long start = finder.next();
+      if (start != 0) {
+        throw new IOException("Not in GZIP format: " + file);
+      }
+      ArrayDeque<Future<Member>> inFlight = new ArrayDeque<>();
+      long resumeAt = -1; // streaming takes over there after the members in flight
+      long failedAt = -1; // start of the first member which was not valid
+      while (start < finder.size && !closed) {
+        long end = finder.next();
+        if (end < 0 || (end == finder.size && start == 0)
+            || end - start > MAX_MEMBER_SIZE) {
+          // a single member file, no member boundary in sight, or a member
+          // too large to be loaded
+          resumeAt = start;
+          break;
+        }
+        if (pool == null) {
+          pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "kml-gzip-inflater");
+            t.setDaemon(true);
+            return t;
+          });
+        }
+        byte[] member = new byte[(int) (end - start)];
+        readFully(channel, start, member);
+        final long memberStart = start;
+        inFlight.add(pool.submit(() -> inflate(member, memberStart)));
+        if (inFlight.size() > threads) {
+          failedAt = emit(inFlight.poll());
+          if (failedAt >= 0) {
+            break;
+          }
+        }
+        start = end;
+      }
+      while (failedAt < 0 && !inFlight.isEmpty()) {
+        failedAt = emit(inFlight.poll());
+      }
+      for (Future<Member> future : inFlight) {
+        future.cancel(true);
+      }
+      long streamFrom = failedAt >= 0 ? failedAt : resumeAt;
+      if (streamFrom >= 0 && !closed) {
+        stream(streamFrom);
+      }
+    } catch (InterruptedException e) {
+      // closed
+    } catch (Throwable t) {
+      error = t;
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
+      }
+      if (closed) {
+        chunks.clear();
+      }
+      try {
+        chunks.put(EOF);
+      } catch (InterruptedException e) {
+        chunks.clear();
+        chunks.offer(EOF);
+      }
+    }
+  }
+
+  /**
+   * Passes the data of a member to the consumer.
+   *
+   * @return -1, or the offset where streaming must resume if the member was
+   *         not valid
+   */
+  private long emit(Future<Member> future) throws InterruptedException,
+      ExecutionException {
+    Member member = future.get();
+    if (member.data == null) {
+      return member.start;
+    }
+    byte[] data = member.data;
+    for (int off = 0; off < member.length; off += CHUNK_SIZE) {
+      int n = Math.min(CHUNK_SIZE, member.length - off);
+      chunks.put(off == 0 && n == data.length ? data
+          : Arrays.copyOfRange(data, off, off + n));
+    }
+    return -1;
+  }
+
+  /**
+   * Inflates the rest of the file from <code>position</code> on with a
+   * GZIPInputStream, which also handles further members.
+   */
+  private void stream(long position) throws IOException,
+      InterruptedException {
+    try (FileInputStream fis = new FileInputStream(file)) {
+      fis.getChannel().position(position);
+      GZIPInputStream gis = new GZIPInputStream(fis, 64 * 1024);
+      byte[] buf = new byte[CHUNK_SIZE];
+      int n = 0;
+      int r;
+      while (!closed && (r = gis.read(buf, n, buf.length - n)) > 0) {
+        n += r;
+        if (n == buf.length) {
+          chunks.put(buf);
+          buf = new byte[CHUNK_SIZE];
+          n = 0;
+        }
+      }
+      if (n > 0) {
+        chunks.put(Arrays.copyOf(buf, n));
+      }
+    }
+  }
+
+  private static void readFully(FileChannel channel, long position, byte[] dst)
+      throws IOException {
+    ByteBuffer bb = ByteBuffer.wrap(dst);
+    while (bb.hasRemaining()) {
+      if (channel.read(bb, position + bb.position()) < 0) {
+        throw new java.io.EOFException();
+      }
+    }
+  }
+
+  // ---------------------------------------------------------------------
+  // workers
+
+  private static final class Member {
+    final long start;
+    final byte[] data; // null if the member is not valid
+    final int length;
+
+    Member(long start, byte[] data, int length) {
+      this.start = start;
+      this.data = data;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Inflates one member and checks that it fills the whole buffer.
+   */
+  private static Member inflate(byte[] member, long start) {
+    int header = headerLength(member);
+    if (header < 0 || member.length - header < 8) {
+      return new Member(start, null, 0);
+    }
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(member, header, member.length - header);
+      byte[] out = new byte[Math.max(1024, (member.length - header) * 4)];
+      int n = 0;
+      while (!inflater.finished()) {
+        if (n == out.length) {
+          if (out.length >= Integer.MAX_VALUE / 2) {
+            return new Member(start, null, 0);
+          }
+          out = Arrays.copyOf(out, out.length * 2);
+        }
+        int r = inflater.inflate(out, n, out.length - n);
+        if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          // truncated: the next boundary was found inside compressed data
+          return new Member(start, null, 0);
+        }
+        n += r;
+      }
+      int trailer = member.length - inflater.getRemaining();
+      if (inflater.getRemaining() != 8) {
+        return new Member(start, null, 0);
+      }
+      CRC32 crc = new CRC32();
+      crc.update(out, 0, n);
+      if (crc.getValue() != readInt(member, trailer)
+          || (n & 0xFFFFFFFFL) != readInt(member, trailer + 4)) {
+        return new Member(start, null, 0);
+      }
+      return new Member(start, out, n);
+    } catch (DataFormatException e) {
+      return new Member(start, null, 0);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static long readInt(byte[] b, int off) {
+    return (b[off] & 0xFFL) | (b[off + 1] & 0xFFL) << 8
+        | (b[off + 2] & 0xFFL) << 16 | (b[off + 3] & 0xFFL) << 24;
+  }
+
+  /**
+   * @return length of the gzip member header at the start of b, or -1 if it
+   *         is not a valid header
+   */
+  static int headerLength(byte[] b) {
+    if (b.length < 10 || (b[0] & 0xFF) != 0x1F || (b[1] & 0xFF) != 0x8B
+        || b[2] != 8) {
+      return -1;
+    }
+    int flags = b[3] & 0xFF;
+    if ((flags & 0xE0) != 0) {
+      return -1;
+    }
+    int pos = 10;
+    if ((flags & 4) != 0) { // FEXTRA
+      if (pos + 2 > b.length) {
+        return -1;
+      }
+      pos += 2 + ((b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8);
+    }
+    for (int flag = 8; flag <= 16; flag += 8) { // FNAME, FCOMMENT
+      if ((flags & flag) != 0) {
+        while (pos < b.length && b[pos] != 0) {
+          pos++;
+        }
+        pos++;
+      }
+    }
+    if ((flags & 2) != 0) { // FHCRC
+      pos += 2;
+    }
+    return pos <= b.length ? pos : -1;
+  }
+
+  /**
+   * Finds the offsets of possible member headers, reading the file ahead in
+   * blocks.
+   */
+  private static final class MemberFinder {
+    private final FileChannel channel;
+    final long size;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+    private long bufferStart = 0;
+    private long position = 0; // next offset to look at
+
+    MemberFinder(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      buffer.limit(0);
+    }
+
+    /**
+     * @return the offset of the next candidate header, the file size at the
+     *         end of the file, or -1 if there is none within MAX_MEMBER_SIZE
+     */
+    long next() throws IOException {
+      long limit = position + MAX_MEMBER_SIZE;
+      while (position < size) {
+        if (position - bufferStart + 4 > buffer.limit()) {
+          if (position + 4 > size) {
+            position = size;
+            break;
+          }
+          buffer.clear();
+          bufferStart = position;
+          while (buffer.hasRemaining()
+              && channel.read(buffer, bufferStart + buffer.position()) > 0) {
+          }
+          buffer.flip();
+        }
+        int end = buffer.limit() - 3;
+        for (int i = (int) (position - bufferStart); i < end; i++) {
+          if (buffer.get(i) == 0x1F && (buffer.get(i + 1) & 0xFF) == 0x8B
+              && buffer.get(i + 2) == 8 && (buffer.get(i + 3) & 0xE0) == 0) {
+            long candidate = bufferStart + i;
+            // a member holds at least a header and a trailer
+            position = candidate + 18;
+            return candidate;
+          }
+          if (bufferStart + i >= limit) {
+            return -1;
+          }
+        }
+        position = bufferStart + end;
+      }
+      return size;
+    }
+  }
+}